@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.SpotCovarianceCache;
+import org.mastodon.mamut.tomancak.resolve.CreateConflictTagSet;
+import org.mastodon.mamut.tomancak.resolve.HellingerDistance;
+import org.mastodon.mamut.tomancak.resolve.HellingerDistanceBatch;
+import org.mastodon.model.tag.TagSetStructure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks {@link CreateConflictTagSet#run} and
+ * {@link HellingerDistance#hellingerDistance(Spot, Spot)}.
+ * <p>
+ * The model is created anew for every iteration, because
+ * {@link CreateConflictTagSet#run} adds a tag set to the model.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class ConflictBenchmark
+{
+
+	@Param( { "10000", "100000", "1000000", "10000000" } )
+	public int numSpots;
+
+	@Param( { "1", "4" } )
+	public int numThreads;
+
+	private Model model;
+
+	@Setup( Level.Iteration )
+	public void setup()
+	{
+		model = SyntheticLineages.createModel( numSpots, 1 );
+	}
+
+	@Benchmark
+	public TagSetStructure.TagSet createConflictTagSet()
+	{
+		return CreateConflictTagSet.run( model, "conflicts", 0.3, null, numThreads );
+	}
+
+	/**
+	 * Computes the Hellinger distance between each spot and the spot that
+	 * precedes it in the vertex pool, i.e. {@code numSpots - 1} evaluations.
+	 */
+	@Benchmark
+	public void hellingerDistance( final Blackhole blackhole )
+	{
+		final ModelGraph graph = model.getGraph();
+		final Spot previous = graph.vertexRef();
+		boolean first = true;
+		for ( final Spot spot : graph.vertices() )
+		{
+			if ( !first )
+				blackhole.consume( HellingerDistance.hellingerDistance( previous, spot ) );
+			previous.refTo( spot );
+			first = false;
+		}
+		graph.releaseRef( previous );
+	}
+
+	/**
+	 * Same pairs as {@link #hellingerDistance}, but computed with a
+	 * {@link HellingerDistanceBatch}. Includes building the
+	 * {@link SpotCovarianceCache}.
+	 */
+	@Benchmark
+	public double[] hellingerDistanceBatch()
+	{
+		final ModelGraph graph = model.getGraph();
+		final SpotCovarianceCache cache = new SpotCovarianceCache( graph );
+		final HellingerDistanceBatch batch = new HellingerDistanceBatch( numSpots );
+		int previous = -1;
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int index = spot.getInternalPoolIndex();
+			if ( previous >= 0 )
+				batch.add( cache, previous, cache, index );
+			previous = index;
+		}
+		return batch.compute();
+	}
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.tomancak.merging.MatchCandidates;
+import org.mastodon.mamut.tomancak.merging.MatchingGraph;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.merging.MergeModels;
+import org.mastodon.mamut.tomancak.merging.MergeSettings;
+import org.mastodon.util.TreeUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link MatchCandidates#buildMatchingGraph} and
+ * {@link MergeModels#merge} on two synthetic models that share the same
+ * lineages but have slightly different spot positions.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class MergingBenchmark
+{
+
+	@Param( { "10000", "100000", "1000000", "10000000" } )
+	public int numSpots;
+
+	@Param( { "1", "4" } )
+	public int numThreads;
+
+	private Model modelA;
+
+	private Model modelB;
+
+	private int maxTimepoint;
+
+	@Setup
+	public void setup()
+	{
+		modelA = SyntheticLineages.createModel( numSpots, 1 );
+		modelB = SyntheticLineages.createPerturbedCopy( modelA, 0.5, 2 );
+		maxTimepoint = TreeUtils.getMaxTimepoint( modelA );
+	}
+
+	@Benchmark
+	public MatchingGraph buildMatchingGraph()
+	{
+		final MatchCandidates candidates = new MatchCandidates( 1000, 1, 2, numThreads );
+		return candidates.buildMatchingGraph( modelA, modelB, 0, maxTimepoint );
+	}
+
+	@Benchmark
+	public Model merge()
+	{
+		final OutputDataSet output = new OutputDataSet( new Model() );
+		MergeModels.merge( modelA, modelB, output, 0, maxTimepoint, new MergeSettings( 1000, 1, 2 ).numThreads( numThreads ) );
+		return output.getModel();
+	}
+}
@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.benchmark;
+
+import java.util.Random;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefMaps;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Generates synthetic lineages for the benchmarks.
+ * <p>
+ * A model consists of a number of root cells at timepoint 0 that are
+ * distributed in a cube. Every cell moves by a small random step per
+ * timepoint and divides every {@link #CELL_CYCLE} generations. The roots are
+ * labeled "R0", "R1", ... such that the lineages can be paired by the spatial
+ * track matching. The volume of the cube grows with the number of spots, which
+ * keeps the density of cells roughly independent of the problem size.
+ */
+public class SyntheticLineages
+{
+
+	/**
+	 * Number of generations between two cell divisions.
+	 */
+	public static final int CELL_CYCLE = 20;
+
+	/**
+	 * Approximate number of spots per lineage.
+	 */
+	private static final int SPOTS_PER_LINEAGE = 5000;
+
+	private static final double RADIUS = 3;
+
+	private SyntheticLineages()
+	{
+		// prevent from instantiation
+	}
+
+	/**
+	 * Creates a model with exactly {@code numSpots} spots, one spot per cell
+	 * and timepoint.
+	 */
+	public static Model createModel( final int numSpots, final long seed )
+	{
+		return createModel( numSpots, 1, seed );
+	}
+
+	/**
+	 * Creates a model with exactly {@code numSpots} spots. Consecutive spots
+	 * of a cell are {@code timepointStep} timepoints apart, i.e. for
+	 * {@code timepointStep > 1} the model has gaps that can be filled by
+	 * {@link org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots}.
+	 */
+	public static Model createModel( final int numSpots, final int timepointStep, final long seed )
+	{
+		final Random random = new Random( seed );
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final Spot ref = graph.vertexRef();
+		final Link edgeRef = graph.edgeRef();
+		final int numRoots = Math.max( 3, numSpots / SPOTS_PER_LINEAGE );
+		final double size = 10 * RADIUS * Math.cbrt( numSpots / ( double ) CELL_CYCLE );
+		final double[] position = new double[ 3 ];
+		final double[] childPosition = new double[ 3 ];
+		RefList< Spot > leaves = RefCollections.createRefList( graph.vertices(), numRoots );
+		for ( int i = 0; i < numRoots; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				position[ d ] = size * random.nextDouble();
+			final Spot root = graph.addVertex( ref ).init( 0, position, RADIUS );
+			root.setLabel( "R" + i );
+			leaves.add( root );
+		}
+		int count = numRoots;
+		for ( int generation = 1; count < numSpots; generation++ )
+		{
+			final int children = generation % CELL_CYCLE == 0 ? 2 : 1;
+			final RefList< Spot > next = RefCollections.createRefList( graph.vertices(), children * leaves.size() );
+			final Spot child = graph.vertexRef();
+			for ( final Spot parent : leaves )
+			{
+				parent.localize( position );
+				final double[] direction = randomDirection( random );
+				for ( int c = 0; c < children && count < numSpots; c++ )
+				{
+					final double sign = children == 1 ? 0 : ( c == 0 ? 1 : -1 );
+					for ( int d = 0; d < 3; d++ )
+						childPosition[ d ] = position[ d ] + sign * 2 * RADIUS * direction[ d ] + 0.5 * random.nextGaussian();
+					graph.addVertex( child ).init( parent.getTimepoint() + timepointStep, childPosition, RADIUS );
+					graph.addEdge( parent, child, edgeRef ).init();
+					next.add( child );
+					count++;
+				}
+			}
+			graph.releaseRef( child );
+			leaves = next;
+		}
+		graph.releaseRef( ref );
+		graph.releaseRef( edgeRef );
+		return model;
+	}
+
+	/**
+	 * Returns a copy of the given model, with the same spots, links and
+	 * labels. The spot positions are displaced by Gaussian noise with the
+	 * given standard deviation.
+	 */
+	public static Model createPerturbedCopy( final Model model, final double noise, final long seed )
+	{
+		final Random random = new Random( seed );
+		final ModelGraph graph = model.getGraph();
+		final Model copy = new Model();
+		final ModelGraph copyGraph = copy.getGraph();
+		final RefRefMap< Spot, Spot > map = RefMaps.createRefRefMap( graph.vertices(), copyGraph.vertices() );
+		final Spot ref = copyGraph.vertexRef();
+		final Spot ref2 = copyGraph.vertexRef();
+		final Spot sourceRef = graph.vertexRef();
+		final Spot targetRef = graph.vertexRef();
+		final Link edgeRef = copyGraph.edgeRef();
+		final double[] position = new double[ 3 ];
+		final double[][] covariance = new double[ 3 ][ 3 ];
+		for ( final Spot spot : graph.vertices() )
+		{
+			spot.localize( position );
+			spot.getCovariance( covariance );
+			for ( int d = 0; d < 3; d++ )
+				position[ d ] += noise * random.nextGaussian();
+			final Spot spotCopy = copyGraph.addVertex( ref ).init( spot.getTimepoint(), position, covariance );
+			if ( spot.incomingEdges().isEmpty() )
+				spotCopy.setLabel( spot.getLabel() );
+			map.put( spot, spotCopy );
+		}
+		for ( final Link link : graph.edges() )
+		{
+			final Spot source = map.get( link.getSource( sourceRef ), ref );
+			final Spot target = map.get( link.getTarget( targetRef ), ref2 );
+			copyGraph.addEdge( source, target, edgeRef ).init();
+		}
+		copyGraph.releaseRef( ref );
+		copyGraph.releaseRef( ref2 );
+		copyGraph.releaseRef( edgeRef );
+		graph.releaseRef( sourceRef );
+		graph.releaseRef( targetRef );
+		return copy;
+	}
+
+	private static double[] randomDirection( final Random random )
+	{
+		final double[] direction = new double[ 3 ];
+		double norm = 0;
+		while ( norm < 1e-6 )
+		{
+			for ( int d = 0; d < 3; d++ )
+				direction[ d ] = random.nextGaussian();
+			norm = Math.sqrt( direction[ 0 ] * direction[ 0 ] + direction[ 1 ] * direction[ 1 ] + direction[ 2 ] * direction[ 2 ] );
+		}
+		for ( int d = 0; d < 3; d++ )
+			direction[ d ] /= norm;
+		return direction;
+	}
+}
@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.tomancak.sort_tree.SortTree;
+import org.mastodon.mamut.tomancak.trackmatching.RegisteredGraphs;
+import org.mastodon.mamut.tomancak.trackmatching.SpatialTrackMatchingAlgorithm;
+import org.mastodon.mamut.tomancak.trackmatching.spatial_registration.SpatialRegistrationMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link SpatialTrackMatchingAlgorithm#run} and
+ * {@link SortTree#sort}.
+ * <p>
+ * The models are created anew for every iteration, because sorting
+ * modifies the order of the outgoing edges.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class TrackMatchingBenchmark
+{
+
+	@Param( { "10000", "100000", "1000000", "10000000" } )
+	public int numSpots;
+
+	@Param( { "FIXED_ROOTS", "DYNAMIC_ROOTS" } )
+	public SpatialRegistrationMethod spatialRegistrationMethod;
+
+	private Model modelA;
+
+	private Model modelB;
+
+	@Setup( Level.Iteration )
+	public void setup()
+	{
+		modelA = SyntheticLineages.createModel( numSpots, 1 );
+		modelB = SyntheticLineages.createPerturbedCopy( modelA, 0.5, 2 );
+	}
+
+	@Benchmark
+	public RegisteredGraphs spatialTrackMatching()
+	{
+		return SpatialTrackMatchingAlgorithm.run( modelA, 0, modelB, 0, spatialRegistrationMethod );
+	}
+
+	@Benchmark
+	public void sortTree()
+	{
+		SortTree.sortCellLifetime( modelA, modelA.getGraph().vertices() );
+	}
+}
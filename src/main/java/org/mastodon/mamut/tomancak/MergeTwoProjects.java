@@ -28,14 +28,36 @@
  */
 package org.mastodon.mamut.tomancak;
 
+import java.awt.Frame;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import javax.swing.BorderFactory;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
 import org.mastodon.mamut.MainWindow;
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.io.ProjectCreator;
+import org.mastodon.mamut.tomancak.merging.CandidateCache;
 import org.mastodon.mamut.tomancak.merging.Dataset;
 import org.mastodon.mamut.tomancak.merging.MergeDatasets;
+import org.mastodon.mamut.tomancak.merging.MergeProgress;
+import org.mastodon.mamut.tomancak.merging.MergeSettings;
 import org.mastodon.mamut.tomancak.merging.MergingDialog;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots.CovarianceInterpolation;
 import org.scijava.Context;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
+import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
@@ -47,6 +69,8 @@ public class MergeTwoProjects implements Command
 
 	private MergingDialog mergingDialog;
 
+	private CandidateCache candidateCache;
+
 	@Override
 	public void run()
 	{
@@ -60,26 +84,109 @@ public class MergeTwoProjects implements Command
 
 	private void mergeProjects()
 	{
+		final String pathA = mergingDialog.getPathA();
+		final String pathB = mergingDialog.getPathB();
+		final double distCutoff;
+		final double mahalanobisDistCutoff;
+		final double ratioThreshold;
+		final int numThreads;
+		final int windowSize;
 		try
 		{
-			final String pathA = mergingDialog.getPathA();
-			final String pathB = mergingDialog.getPathB();
-			final double distCutoff = mergingDialog.getDistCutoff();
-			final double mahalanobisDistCutoff = mergingDialog.getMahalanobisDistCutoff();
-			final double ratioThreshold = mergingDialog.getRatioThreshold();
-
-			final Dataset dsA = new Dataset( pathA );
-			final Dataset dsB = new Dataset( pathB );
-
-			final ProjectModel projectMerged = ProjectCreator.createProjectFromBdvFile( dsA.project().getDatasetXmlFile(), context );
-			final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( projectMerged.getModel() );
-			MergeDatasets.merge( dsA, dsB, output, distCutoff, mahalanobisDistCutoff, ratioThreshold );
-			// start a new instance of Mastodon that shows the result of the merge operation
-			new MainWindow( projectMerged ).setVisible( true );
+			distCutoff = mergingDialog.getDistCutoff();
+			mahalanobisDistCutoff = mergingDialog.getMahalanobisDistCutoff();
+			ratioThreshold = mergingDialog.getRatioThreshold();
+			numThreads = mergingDialog.getNumThreads();
+			windowSize = mergingDialog.getWindowSize();
 		}
-		catch ( final Exception e )
+		catch ( final NumberFormatException e )
 		{
-			e.printStackTrace();
+			JOptionPane.showMessageDialog( null, "Invalid number: " + e.getMessage(), "Merge Two Projects", JOptionPane.ERROR_MESSAGE );
+			return;
 		}
+		if ( mergingDialog.isCacheCandidates() && candidateCache == null )
+			candidateCache = new CandidateCache( CandidateCache.defaultDirectory(), context.service( LogService.class ) );
+		final CandidateCache cache = mergingDialog.isCacheCandidates() ? candidateCache : null;
+		final CovarianceInterpolation covarianceInterpolation = mergingDialog.getCovarianceInterpolation();
+		final boolean memoryMapped = mergingDialog.isMemoryMapped();
+		final String summaryPath = mergingDialog.getSummaryPath();
+
+		// merge on a background thread, such that the merge can be canceled
+		final StatusService statusService = context.service( StatusService.class );
+		final LogService logService = context.service( LogService.class );
+		final MergeProgress progress = new MergeProgress( statusService );
+		final JDialog cancelDialog = createCancelDialog( progress );
+		new Thread( () -> {
+			try
+			{
+				final Dataset dsA = new Dataset( pathA );
+				final Dataset dsB = new Dataset( pathB );
+
+				final ProjectModel projectMerged = ProjectCreator.createProjectFromBdvFile( dsA.project().getDatasetXmlFile(), context );
+				final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( projectMerged.getModel() );
+				final MergeSettings settings = new MergeSettings( distCutoff, mahalanobisDistCutoff, ratioThreshold )
+						.numThreads( numThreads )
+						.windowSize( windowSize )
+						.candidateCache( cache )
+						.covarianceInterpolation( covarianceInterpolation )
+						.memoryMapped( memoryMapped )
+						.progress( progress );
+				MergeDatasets.merge( dsA, dsB, output, settings );
+				// start a new instance of Mastodon that shows the result of the merge operation
+				SwingUtilities.invokeLater( () -> new MainWindow( projectMerged ).setVisible( true ) );
+			}
+			catch ( final CancellationException e )
+			{
+				statusService.showStatus( "Merging canceled." );
+				logService.info( "Merging " + pathA + " and " + pathB + " canceled: " + e.getMessage() );
+			}
+			catch ( final Exception e )
+			{
+				statusService.showStatus( "Merging failed." );
+				logService.error( "Merging " + pathA + " and " + pathB + " failed.", e );
+				final String message = e.getMessage() != null ? e.getMessage() : e.toString();
+				SwingUtilities.invokeLater( () -> JOptionPane.showMessageDialog( null,
+						"Merging failed:\n" + message, "Merge Two Projects", JOptionPane.ERROR_MESSAGE ) );
+			}
+			finally
+			{
+				// machine-readable summary of the phases of the merge
+				logService.info( progress.getSummary() );
+				if ( !summaryPath.isEmpty() )
+				{
+					try
+					{
+						progress.writeSummary( new File( summaryPath ) );
+					}
+					catch ( final IOException e )
+					{
+						logService.error( "Could not write the merge summary to " + summaryPath + ".", e );
+					}
+				}
+				SwingUtilities.invokeLater( cancelDialog::dispose );
+			}
+		}, "Merge Two Projects" ).start();
+		cancelDialog.setVisible( true );
+	}
+
+	private static JDialog createCancelDialog( final MergeProgress progress )
+	{
+		final JDialog dialog = new JDialog( ( Frame ) null, "Merging Projects...", false );
+		final JPanel content = new JPanel();
+		content.setBorder( BorderFactory.createEmptyBorder( 10, 10, 10, 10 ) );
+		content.setLayout( new BoxLayout( content, BoxLayout.PAGE_AXIS ) );
+		content.add( new JLabel( "Merging projects. Progress is shown in the status bar." ) );
+		content.add( Box.createVerticalStrut( 10 ) );
+		final JButton cancelButton = new JButton( "Cancel" );
+		cancelButton.addActionListener( e -> {
+			progress.cancel( "Canceled by user." );
+			cancelButton.setEnabled( false );
+		} );
+		content.add( cancelButton );
+		dialog.getContentPane().add( content );
+		dialog.setDefaultCloseOperation( WindowConstants.DO_NOTHING_ON_CLOSE );
+		dialog.pack();
+		dialog.setLocationRelativeTo( null );
+		return dialog;
 	}
 }
@@ -41,8 +41,6 @@ import org.jdom2.Element;
 import org.jdom2.Namespace;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
-import org.mastodon.collection.RefMaps;
-import org.mastodon.collection.RefRefMap;
 import org.mastodon.collection.RefSet;
 import org.mastodon.graph.ListenableGraph;
 import org.mastodon.graph.algorithm.traversal.DepthFirstIterator;
@@ -56,6 +54,7 @@ import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.PoolIndexMap;
 import org.mastodon.pool.ByteMappedElement;
 import org.mastodon.pool.ByteMappedElementArray;
 import org.mastodon.pool.SingleArrayMemPool;
@@ -135,7 +134,6 @@ public class MakePhyloXml
 
 		final ModelGraph subgraph = new ModelGraph();
 		final Spot vref1 = subgraph.vertexRef();
-		final Spot vref2 = subgraph.vertexRef();
 		final Spot vref3 = subgraph.vertexRef();
 		final Spot vref4 = subgraph.vertexRef();
 		final Link eref = subgraph.edgeRef();
@@ -144,7 +142,7 @@ public class MakePhyloXml
 		final double[][] cov = new double[ 3 ][ 3 ];
 
 		final DepthFirstIterator< Spot, Link > iter = new DepthFirstIterator<>( root, graph );
-		final RefRefMap< Spot, Spot > spotToSubgraph = RefMaps.createRefRefMap( graph.vertices(), subgraph.vertices() );
+		final PoolIndexMap< Spot, Spot > spotToSubgraph = PoolIndexMap.automatic( graph.vertices().getRefPool(), subgraph.vertices().getRefPool(), 10 );
 		while ( iter.hasNext() )
 		{
 			final Spot spot = iter.next();
@@ -152,7 +150,7 @@ public class MakePhyloXml
 			spot.getCovariance( cov );
 			final Spot sgspot = subgraph.addVertex( vref1 ).init( spot.getTimepoint(), pos, cov );
 			sgspot.setLabel( spot.getLabel() );
-			spotToSubgraph.put( spot, sgspot, vref2 );
+			spotToSubgraph.put( spot, sgspot );
 			for ( final Link inedge : spot.incomingEdges() )
 			{
 				final Spot sgparent = spotToSubgraph.get( inedge.getSource( vref3 ), vref4 );
@@ -0,0 +1,473 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MatchCandidates.CandidatePairs;
+import org.scijava.log.Logger;
+import org.scijava.log.StderrLogService;
+
+/**
+ * Stores the raw match candidates of pairs of models, such that merging the
+ * same models again with different cutoffs doesn't need to repeat the
+ * nearest neighbor search, see
+ * {@link MatchCandidates#buildMatchingGraph(Model, Model, SpotCovarianceCache, SpotCovarianceCache, int, int, CandidateCache)}.
+ * <p>
+ * The candidates are stored in a binary file per pair of models in a
+ * directory. The file name is derived from hashes of the spots of the two
+ * models (pool index, timepoint, position and covariance), see
+ * {@link #key(Model, Model)}, so the cache becomes invalid as soon as one of
+ * the models is modified. The most recently used entry is also kept in
+ * memory, but only softly referenced: the garbage collector may release it,
+ * then it is read from its file again.
+ * <p>
+ * Files that were not used for longer than {@code maxAgeMillis} are
+ * deleted, and the least recently used files are deleted as long as the
+ * files of the cache take more than {@code maxBytes}. Problems with the
+ * files are reported to a {@link Logger}, they never fail the merge.
+ */
+public class CandidateCache
+{
+	private static final int MAGIC = 0x4d434331; // "MCC1"
+
+	private static final String SUFFIX = ".candidates";
+
+	/**
+	 * Default limit of the total size of the cache files, 2 GiB.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 2L << 30;
+
+	/**
+	 * Default limit of the age of the cache files, 30 days.
+	 */
+	public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis( 30 );
+
+	private final File directory;
+
+	private final long maxBytes;
+
+	private final long maxAgeMillis;
+
+	private final Logger logger;
+
+	private Key lastKey;
+
+	private SoftReference< Entry > lastEntry;
+
+	/**
+	 * Creates a cache with the default limits, that reports problems to
+	 * {@code stderr}.
+	 *
+	 * @param directory
+	 *            the directory where the cache files are stored. It is
+	 *            created if it doesn't exist.
+	 */
+	public CandidateCache( final File directory )
+	{
+		this( directory, new StderrLogService() );
+	}
+
+	/**
+	 * Creates a cache with the default limits.
+	 *
+	 * @param directory
+	 *            the directory where the cache files are stored. It is
+	 *            created if it doesn't exist.
+	 * @param logger
+	 *            receives warnings if cache files can not be read or
+	 *            written.
+	 */
+	public CandidateCache( final File directory, final Logger logger )
+	{
+		this( directory, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS, logger );
+	}
+
+	/**
+	 * @param directory
+	 *            the directory where the cache files are stored. It is
+	 *            created if it doesn't exist.
+	 * @param maxBytes
+	 *            maximum total size of the cache files.
+	 * @param maxAgeMillis
+	 *            cache files that were not used for longer are deleted.
+	 * @param logger
+	 *            receives warnings if cache files can not be read or
+	 *            written.
+	 */
+	public CandidateCache( final File directory, final long maxBytes, final long maxAgeMillis, final Logger logger )
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		this.logger = logger;
+	}
+
+	/**
+	 * The default cache directory {@code ~/.mastodon/merge-candidates}.
+	 */
+	public static File defaultDirectory()
+	{
+		return new File( System.getProperty( "user.home" ), ".mastodon" + File.separator + "merge-candidates" );
+	}
+
+	/**
+	 * Computes the key of the candidates of models {@code mA} and {@code mB}.
+	 * This hashes all spots of both models, so it should be computed only
+	 * once per merge and then be passed to {@link #get(Key)} and
+	 * {@link #put(Key, Entry)}.
+	 */
+	public static Key key( final Model mA, final Model mB )
+	{
+		return new Key( contentHash( mA ), contentHash( mB ) );
+	}
+
+	/**
+	 * Returns the cached candidates for the models with the given
+	 * {@code key}, or {@code null} if there are none.
+	 */
+	public synchronized Entry get( final Key key )
+	{
+		if ( key.equals( lastKey ) )
+		{
+			final Entry entry = lastEntry.get();
+			if ( entry != null )
+				return entry;
+		}
+
+		final File file = file( key );
+		if ( !file.isFile() )
+			return null;
+		try
+		{
+			final Entry entry = read( file, key );
+			file.setLastModified( System.currentTimeMillis() );
+			remember( key, entry );
+			return entry;
+		}
+		catch ( final IOException e )
+		{
+			// unreadable cache files are treated as missing
+			logger.warn( "Ignoring unreadable merge candidate cache file " + file + ": " + e.getMessage() );
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the candidates for the models with the given {@code key},
+	 * replacing any previously cached candidates. Then evicts old files, see
+	 * {@link CandidateCache}.
+	 */
+	public synchronized void put( final Key key, final Entry entry )
+	{
+		remember( key, entry );
+		final File file = file( key );
+		try
+		{
+			directory.mkdirs();
+			write( file, key, entry );
+		}
+		catch ( final IOException e )
+		{
+			file.delete();
+			logger.warn( "Could not write merge candidate cache file " + file + ": " + e.getMessage() );
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the cache files that were not used for longer than
+	 * {@code maxAgeMillis}, and the least recently used files beyond a total
+	 * size of {@code maxBytes}.
+	 */
+	synchronized void evict()
+	{
+		final File[] files = directory.listFiles( ( dir, name ) -> name.endsWith( SUFFIX ) );
+		if ( files == null )
+			return;
+		final long[] lastModified = new long[ files.length ];
+		final Integer[] order = new Integer[ files.length ];
+		for ( int i = 0; i < files.length; i++ )
+		{
+			lastModified[ i ] = files[ i ].lastModified();
+			order[ i ] = i;
+		}
+		// most recently used first
+		Arrays.sort( order, ( i, j ) -> Long.compare( lastModified[ j ], lastModified[ i ] ) );
+		final long now = System.currentTimeMillis();
+		long bytes = 0;
+		for ( final int i : order )
+		{
+			bytes += files[ i ].length();
+			final boolean evict = bytes > maxBytes || now - lastModified[ i ] > maxAgeMillis;
+			if ( evict && !files[ i ].delete() )
+				logger.warn( "Could not delete merge candidate cache file " + files[ i ] );
+		}
+	}
+
+	private void remember( final Key key, final Entry entry )
+	{
+		lastKey = key;
+		lastEntry = new SoftReference<>( entry );
+	}
+
+	private File file( final Key key )
+	{
+		return new File( directory, String.format( "%016x-%016x" + SUFFIX, key.hashA, key.hashB ) );
+	}
+
+	/**
+	 * Computes a hash of the pool index, timepoint, position and covariance
+	 * of all spots in the model.
+	 */
+	static long contentHash( final Model model )
+	{
+		final double[] pos = new double[ 3 ];
+		final double[][] cov = new double[ 3 ][ 3 ];
+		long hash = 17;
+		final Lock lock = model.getGraph().getLock().readLock();
+		lock.lock();
+		try
+		{
+			for ( final Spot spot : model.getGraph().vertices() )
+			{
+				hash = mix( hash, spot.getInternalPoolIndex() );
+				hash = mix( hash, spot.getTimepoint() );
+				spot.localize( pos );
+				spot.getCovariance( cov );
+				for ( int d = 0; d < 3; d++ )
+					hash = mix( hash, Double.doubleToLongBits( pos[ d ] ) );
+				for ( int r = 0; r < 3; r++ )
+					for ( int c = r; c < 3; c++ )
+						hash = mix( hash, Double.doubleToLongBits( cov[ r ][ c ] ) );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return hash;
+	}
+
+	private static long mix( final long hash, final long value )
+	{
+		long h = ( hash ^ value ) * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static void write( final File file, final Key key, final Entry entry ) throws IOException
+	{
+		try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeLong( key.hashA );
+			out.writeLong( key.hashB );
+			out.writeDouble( entry.distCutoff );
+			out.writeDouble( entry.mahalanobisDistCutoff );
+			out.writeInt( entry.minTimepoint );
+			out.writeInt( entry.maxTimepoint );
+			for ( int i = 0; i < entry.candidatesAB.length; i++ )
+			{
+				writeCandidates( out, entry.candidatesAB[ i ] );
+				writeCandidates( out, entry.candidatesBA[ i ] );
+			}
+		}
+	}
+
+	private static void writeCandidates( final DataOutputStream out, final CandidatePairs candidates ) throws IOException
+	{
+		final int size = candidates.size();
+		out.writeInt( size );
+		for ( int i = 0; i < size; i++ )
+		{
+			out.writeInt( candidates.sourceIds.get( i ) );
+			out.writeInt( candidates.targetIds.get( i ) );
+			out.writeDouble( candidates.distSqus.get( i ) );
+			out.writeDouble( candidates.mahalDistSqus.get( i ) );
+		}
+	}
+
+	private static Entry read( final File file, final Key key ) throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			if ( in.readInt() != MAGIC || in.readLong() != key.hashA || in.readLong() != key.hashB )
+				throw new IOException( "not a candidate cache file for these models: " + file );
+			final double distCutoff = in.readDouble();
+			final double mahalanobisDistCutoff = in.readDouble();
+			final int minTimepoint = in.readInt();
+			final int maxTimepoint = in.readInt();
+			final int numTimepoints = Math.max( 0, maxTimepoint - minTimepoint + 1 );
+			final CandidatePairs[] candidatesAB = new CandidatePairs[ numTimepoints ];
+			final CandidatePairs[] candidatesBA = new CandidatePairs[ numTimepoints ];
+			for ( int i = 0; i < numTimepoints; i++ )
+			{
+				candidatesAB[ i ] = readCandidates( in );
+				candidatesBA[ i ] = readCandidates( in );
+			}
+			return new Entry( distCutoff, mahalanobisDistCutoff, minTimepoint, maxTimepoint, candidatesAB, candidatesBA );
+		}
+	}
+
+	private static CandidatePairs readCandidates( final DataInputStream in ) throws IOException
+	{
+		final CandidatePairs candidates = new CandidatePairs();
+		final int size = in.readInt();
+		for ( int i = 0; i < size; i++ )
+		{
+			final int sourceId = in.readInt();
+			final int targetId = in.readInt();
+			final double distSqu = in.readDouble();
+			final double mahalDistSqu = in.readDouble();
+			candidates.add( sourceId, targetId, distSqu, mahalDistSqu );
+		}
+		return candidates;
+	}
+
+	/**
+	 * Identifies the candidates of a pair of models A and B by hashes of the
+	 * spots of both models, see {@link CandidateCache#key(Model, Model)}.
+	 */
+	public static final class Key
+	{
+		private final long hashA;
+
+		private final long hashB;
+
+		private Key( final long hashA, final long hashB )
+		{
+			this.hashA = hashA;
+			this.hashB = hashB;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key other = ( Key ) o;
+			return hashA == other.hashA && hashB == other.hashB;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode( hashA * 31 + hashB );
+		}
+	}
+
+	/**
+	 * The candidates of a pair of models A and B, found with the given
+	 * cutoffs, for every timepoint from {@code minTimepoint} to
+	 * {@code maxTimepoint}.
+	 */
+	public static class Entry
+	{
+		private final double distCutoff;
+
+		private final double mahalanobisDistCutoff;
+
+		private final int minTimepoint;
+
+		private final int maxTimepoint;
+
+		private final CandidatePairs[] candidatesAB;
+
+		private final CandidatePairs[] candidatesBA;
+
+		Entry( final double distCutoff, final double mahalanobisDistCutoff,
+				final int minTimepoint, final int maxTimepoint,
+				final CandidatePairs[] candidatesAB, final CandidatePairs[] candidatesBA )
+		{
+			this.distCutoff = distCutoff;
+			this.mahalanobisDistCutoff = mahalanobisDistCutoff;
+			this.minTimepoint = minTimepoint;
+			this.maxTimepoint = maxTimepoint;
+			this.candidatesAB = candidatesAB;
+			this.candidatesBA = candidatesBA;
+		}
+
+		public double distCutoff()
+		{
+			return distCutoff;
+		}
+
+		public double mahalanobisDistCutoff()
+		{
+			return mahalanobisDistCutoff;
+		}
+
+		public int minTimepoint()
+		{
+			return minTimepoint;
+		}
+
+		public int maxTimepoint()
+		{
+			return maxTimepoint;
+		}
+
+		/**
+		 * Returns {@code true} if this entry contains all candidates for the
+		 * given cutoffs and timepoints.
+		 */
+		public boolean covers( final double distCutoff, final double mahalanobisDistCutoff, final int minTimepoint, final int maxTimepoint )
+		{
+			return distCutoff <= this.distCutoff
+					&& mahalanobisDistCutoff <= this.mahalanobisDistCutoff
+					&& minTimepoint >= this.minTimepoint
+					&& maxTimepoint <= this.maxTimepoint;
+		}
+
+		CandidatePairs candidatesAB( final int timepoint )
+		{
+			return candidatesAB[ timepoint - minTimepoint ];
+		}
+
+		CandidatePairs candidatesBA( final int timepoint )
+		{
+			return candidatesBA[ timepoint - minTimepoint ];
+		}
+	}
+}
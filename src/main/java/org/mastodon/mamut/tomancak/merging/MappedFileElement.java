@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.nio.ByteBuffer;
+
+import org.mastodon.pool.MappedElement;
+
+/**
+ * A {@link MappedElement} that accesses one element of a
+ * {@link MappedFileElementArray}. The element is stored at
+ * {@code baseOffset} in one of the memory-mapped chunks of the array.
+ */
+class MappedFileElement implements MappedElement
+{
+	private ByteBuffer data;
+
+	private int baseOffset;
+
+	MappedFileElement( final ByteBuffer data, final int baseOffset )
+	{
+		this.data = data;
+		this.baseOffset = baseOffset;
+	}
+
+	void set( final ByteBuffer data, final int baseOffset )
+	{
+		this.data = data;
+		this.baseOffset = baseOffset;
+	}
+
+	ByteBuffer data()
+	{
+		return data;
+	}
+
+	int baseOffset()
+	{
+		return baseOffset;
+	}
+
+	@Override
+	public void putByte( final byte value, final int offset )
+	{
+		data.put( baseOffset + offset, value );
+	}
+
+	@Override
+	public byte getByte( final int offset )
+	{
+		return data.get( baseOffset + offset );
+	}
+
+	@Override
+	public void putBoolean( final boolean value, final int offset )
+	{
+		data.put( baseOffset + offset, value ? ( byte ) 1 : ( byte ) 0 );
+	}
+
+	@Override
+	public boolean getBoolean( final int offset )
+	{
+		return data.get( baseOffset + offset ) != 0;
+	}
+
+	@Override
+	public void putInt( final int value, final int offset )
+	{
+		data.putInt( baseOffset + offset, value );
+	}
+
+	@Override
+	public int getInt( final int offset )
+	{
+		return data.getInt( baseOffset + offset );
+	}
+
+	@Override
+	public void putIndex( final int value, final int offset )
+	{
+		data.putInt( baseOffset + offset, value );
+	}
+
+	@Override
+	public int getIndex( final int offset )
+	{
+		return data.getInt( baseOffset + offset );
+	}
+
+	@Override
+	public void putLong( final long value, final int offset )
+	{
+		data.putLong( baseOffset + offset, value );
+	}
+
+	@Override
+	public long getLong( final int offset )
+	{
+		return data.getLong( baseOffset + offset );
+	}
+
+	@Override
+	public void putFloat( final float value, final int offset )
+	{
+		data.putFloat( baseOffset + offset, value );
+	}
+
+	@Override
+	public float getFloat( final int offset )
+	{
+		return data.getFloat( baseOffset + offset );
+	}
+
+	@Override
+	public void putDouble( final double value, final int offset )
+	{
+		data.putDouble( baseOffset + offset, value );
+	}
+
+	@Override
+	public double getDouble( final int offset )
+	{
+		return data.getDouble( baseOffset + offset );
+	}
+
+	@Override
+	public boolean equals( final Object obj )
+	{
+		if ( !( obj instanceof MappedFileElement ) )
+			return false;
+		final MappedFileElement e = ( MappedFileElement ) obj;
+		return e.data == data && e.baseOffset == baseOffset;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * System.identityHashCode( data ) + baseOffset;
+	}
+}
@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mastodon.pool.MappedElementArray;
+import org.mastodon.pool.SingleArrayMemPool;
+
+/**
+ * A {@link MappedElementArray} that stores its elements in a memory-mapped
+ * file. The file is mapped in chunks of (at most) {@code chunkSize} bytes.
+ * Only the size that is needed for the elements is mapped: the last chunk
+ * is mapped with a smaller size, and remapped with a larger size as the
+ * array grows. The existing elements are never copied. The data lives
+ * outside the Java heap, the operating system pages it in and out as
+ * needed.
+ * <p>
+ * The file is created in a given directory and deleted by {@link #close()}.
+ * Use a {@link FileFactory} with
+ * {@link SingleArrayMemPool#factory} to create pools backed by such arrays.
+ */
+class MappedFileElementArray implements MappedElementArray< MappedFileElementArray, MappedFileElement >
+{
+	static final long DEFAULT_CHUNK_SIZE = 1L << 28;
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final int bytesPerElement;
+
+	private final int elementsPerChunk;
+
+	private final long chunkBytes;
+
+	private final List< ByteBuffer > chunks = new ArrayList<>();
+
+	/**
+	 * The number of elements that fit into the last chunk, all other chunks
+	 * hold {@link #elementsPerChunk} elements.
+	 */
+	private int lastChunkElements;
+
+	private int size;
+
+	MappedFileElementArray( final File file, final int numElements, final int bytesPerElement, final long chunkSize )
+	{
+		this.file = file;
+		this.bytesPerElement = bytesPerElement;
+		elementsPerChunk = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE / bytesPerElement, chunkSize / bytesPerElement ) );
+		chunkBytes = ( long ) elementsPerChunk * bytesPerElement;
+		try
+		{
+			raf = new RandomAccessFile( file, "rw" );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		resize( numElements );
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public int maxSize()
+	{
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public MappedFileElement createAccess()
+	{
+		return new MappedFileElement( chunks.isEmpty() ? null : chunks.get( 0 ), 0 );
+	}
+
+	@Override
+	public void updateAccess( final MappedFileElement access, final int index )
+	{
+		access.set( chunks.get( index / elementsPerChunk ), ( index % elementsPerChunk ) * bytesPerElement );
+	}
+
+	@Override
+	public void swapElement( final int index, final MappedFileElementArray array, final int arrayIndex )
+	{
+		final ByteBuffer a = chunks.get( index / elementsPerChunk );
+		final int offsetA = ( index % elementsPerChunk ) * bytesPerElement;
+		final ByteBuffer b = array.chunks.get( arrayIndex / array.elementsPerChunk );
+		final int offsetB = ( arrayIndex % array.elementsPerChunk ) * array.bytesPerElement;
+		for ( int i = 0; i < bytesPerElement; i++ )
+		{
+			final byte tmp = a.get( offsetA + i );
+			a.put( offsetA + i, b.get( offsetB + i ) );
+			b.put( offsetB + i, tmp );
+		}
+	}
+
+	@Override
+	public void resize( final int numElements )
+	{
+		while ( capacity() < numElements )
+		{
+			final int last = chunks.size() - 1;
+			if ( last >= 0 && lastChunkElements < elementsPerChunk )
+			{
+				// NB: Grow the last chunk at least by a factor of two, such
+				// that it is remapped only a few times. Accesses that still
+				// point to the old mapping see the same data, both mappings
+				// share the pages of the file.
+				final long needed = ( long ) numElements - ( long ) last * elementsPerChunk;
+				final int grown = ( int ) Math.min( elementsPerChunk, Math.max( needed, 2L * lastChunkElements ) );
+				chunks.set( last, mapChunk( last, grown ) );
+				lastChunkElements = grown;
+			}
+			else
+			{
+				final int added = ( int ) Math.min( elementsPerChunk, numElements - capacity() );
+				chunks.add( mapChunk( chunks.size(), added ) );
+				lastChunkElements = added;
+			}
+		}
+		size = numElements;
+	}
+
+	/**
+	 * The number of elements that fit into the mapped chunks.
+	 */
+	long capacity()
+	{
+		return chunks.isEmpty() ? 0 : ( long ) ( chunks.size() - 1 ) * elementsPerChunk + lastChunkElements;
+	}
+
+	private ByteBuffer mapChunk( final int index, final int numElements )
+	{
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer chunk = channel.map( MapMode.READ_WRITE, index * chunkBytes, ( long ) numElements * bytesPerElement );
+			chunk.order( ByteOrder.nativeOrder() );
+			return chunk;
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Releases the file. The mapped chunks are dropped, and the file is
+	 * closed and deleted. The array must not be used afterwards.
+	 * <p>
+	 * The mapping itself is released when the chunks are garbage collected.
+	 * Only if the file can not be deleted while it is still mapped (e.g., on
+	 * Windows), it is deleted when the JVM exits.
+	 */
+	void close()
+	{
+		chunks.clear();
+		size = 0;
+		try
+		{
+			raf.close();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		if ( !file.delete() )
+			file.deleteOnExit();
+	}
+
+	/**
+	 * Creates {@link MappedFileElementArray}s backed by temporary files in a
+	 * given directory, and remembers them, such that all their files can be
+	 * released by {@link #close()}.
+	 */
+	static class FileFactory implements MappedElementArray.Factory< MappedFileElementArray >
+	{
+		private final File directory;
+
+		private final long chunkSize;
+
+		private final List< MappedFileElementArray > arrays = new ArrayList<>();
+
+		/**
+		 * @param directory
+		 *            directory for the files, or {@code null} for the default
+		 *            temporary-file directory.
+		 */
+		FileFactory( final File directory )
+		{
+			this( directory, DEFAULT_CHUNK_SIZE );
+		}
+
+		FileFactory( final File directory, final long chunkSize )
+		{
+			this.directory = directory;
+			this.chunkSize = chunkSize;
+		}
+
+		File directory()
+		{
+			return directory;
+		}
+
+		@Override
+		public synchronized MappedFileElementArray createArray( final int numElements, final int bytesPerElement )
+		{
+			try
+			{
+				final File file = File.createTempFile( "matching-", ".pool", directory );
+				final MappedFileElementArray array = new MappedFileElementArray( file, numElements, bytesPerElement, chunkSize );
+				arrays.add( array );
+				return array;
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+
+		/**
+		 * Closes all arrays created by this factory, see
+		 * {@link MappedFileElementArray#close()}.
+		 */
+		synchronized void close()
+		{
+			for ( final MappedFileElementArray array : arrays )
+				array.close();
+			arrays.clear();
+		}
+	}
+}
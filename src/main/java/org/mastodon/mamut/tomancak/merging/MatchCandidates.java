@@ -28,26 +28,76 @@
  */
 package org.mastodon.mamut.tomancak.merging;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.IntStream;
 
+import org.mastodon.RefPool;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
+import org.mastodon.graph.Edges;
 import org.mastodon.kdtree.IncrementalNearestNeighborSearch;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.spatial.SpatialIndex;
 
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
 public class MatchCandidates
 {
+	private final double distCutoff;
+	private final double mahalanobisDistCutoff;
+	private final double ratioThreshold;
 	private final double absoluteDistSquCutoff;
 	private final double mahalanobisDistSquCutoff;
 	private final double ratioThresholdSqu;
+	private final int numThreads;
+	private final MergeProgress progress;
 
 	public MatchCandidates( final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
 	{
+		this( distCutoff, mahalanobisDistCutoff, ratioThreshold, 1 );
+	}
+
+	/**
+	 * @param distCutoff
+	 *            absolute distance cutoff.
+	 * @param mahalanobisDistCutoff
+	 *            mahalanobis distance cutoff.
+	 * @param ratioThreshold
+	 *            required ratio of the mahalanobis distances to the best and
+	 *            second best candidate.
+	 * @param numThreads
+	 *            number of threads used to search for candidates. If
+	 *            {@code numThreads <= 1}, timepoints are processed
+	 *            sequentially on the calling thread.
+	 */
+	public MatchCandidates( final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold, final int numThreads )
+	{
+		this( distCutoff, mahalanobisDistCutoff, ratioThreshold, numThreads, new MergeProgress() );
+	}
+
+	/**
+	 * Same as {@link #MatchCandidates(double, double, double, int)}, but the
+	 * search for candidates checks {@code progress} for cancellation for
+	 * every timepoint.
+	 */
+	public MatchCandidates( final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold, final int numThreads, final MergeProgress progress )
+	{
+		this.distCutoff = distCutoff;
+		this.mahalanobisDistCutoff = mahalanobisDistCutoff;
+		this.ratioThreshold = ratioThreshold;
 		absoluteDistSquCutoff = distCutoff * distCutoff;
 		mahalanobisDistSquCutoff = mahalanobisDistCutoff * mahalanobisDistCutoff;
 		ratioThresholdSqu = ratioThreshold * ratioThreshold;
+		this.numThreads = numThreads;
+		this.progress = progress;
 	}
 
 	public MatchingGraph buildMatchingGraph( final Dataset dsA, final Dataset dsB )
@@ -62,26 +112,251 @@ public class MatchCandidates
 		return buildMatchingGraph( dsA.model(), dsB.model(), minTimepoint, maxTimepoint );
 	}
 
-	public MatchingGraph buildMatchingGraph(final Model mA, final Model mB, final int minTimepoint, final int maxTimepoint )
+	public MatchingGraph buildMatchingGraph( final Model mA, final Model mB, final int minTimepoint, final int maxTimepoint )
+	{
+		return buildMatchingGraph( mA, mB, null, null, minTimepoint, maxTimepoint );
+	}
+
+	/**
+	 * Same as {@link #buildMatchingGraph(Model, Model, int, int)}, but uses
+	 * the given, possibly shared, {@link SpotCovarianceCache}s for the
+	 * mahalanobis distance computations.
+	 * <p>
+	 * A cache may be {@code null}. Then the spots of each timepoint are
+	 * cached only while that timepoint is searched, which keeps the memory
+	 * consumption proportional to the size of a timepoint.
+	 */
+	public MatchingGraph buildMatchingGraph( final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint )
 	{
 		final MatchingGraph matching = MatchingGraph.newWithAllSpots( mA, mB );
+		addCandidates( matching, mA, mB, cacheA, cacheB, minTimepoint, maxTimepoint );
+		return matching;
+	}
+
+	/**
+	 * Same as
+	 * {@link #buildMatchingGraph(Model, Model, SpotCovarianceCache, SpotCovarianceCache, int, int)},
+	 * but reuses the candidates stored in {@code candidateCache} for the same
+	 * pair of models, if they were searched with cutoffs at least as large as
+	 * the cutoffs of this {@link MatchCandidates}. The candidates for smaller
+	 * cutoffs are then obtained by filtering, which gives the same result as
+	 * a new search. Otherwise the candidates are searched with the larger of
+	 * the requested and the cached cutoffs, and stored in the cache.
+	 */
+	public MatchingGraph buildMatchingGraph( final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint,
+			final CandidateCache candidateCache )
+	{
+		return buildMatchingGraph( MatchingGraph.newWithAllSpots( mA, mB ), mA, mB, cacheA, cacheB, minTimepoint, maxTimepoint, candidateCache );
+	}
+
+	/**
+	 * Same as
+	 * {@link #buildMatchingGraph(Model, Model, SpotCovarianceCache, SpotCovarianceCache, int, int, CandidateCache)},
+	 * but adds the candidates to the given {@code matching} graph, e.g., one
+	 * created by {@link MatchingGraph#newMemoryMapped(java.io.File, Model...)}.
+	 */
+	public MatchingGraph buildMatchingGraph( final MatchingGraph matching, final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint,
+			final CandidateCache candidateCache )
+	{
+		final CandidateCache.Key key = CandidateCache.key( mA, mB );
+		final CandidateCache.Entry cached = candidateCache.get( key );
+		final CandidateCache.Entry entry;
+		if ( cached != null && cached.covers( distCutoff, mahalanobisDistCutoff, minTimepoint, maxTimepoint ) )
+			entry = cached;
+		else
+		{
+			final double d = cached == null ? distCutoff : Math.max( distCutoff, cached.distCutoff() );
+			final double md = cached == null ? mahalanobisDistCutoff : Math.max( mahalanobisDistCutoff, cached.mahalanobisDistCutoff() );
+			final int min = cached == null ? minTimepoint : Math.min( minTimepoint, cached.minTimepoint() );
+			final int max = cached == null ? maxTimepoint : Math.max( maxTimepoint, cached.maxTimepoint() );
+			final MatchCandidates search = new MatchCandidates( d, md, ratioThreshold, numThreads, progress );
+			final CandidatePairs[][] pairs = search.findAllCandidates( mA, mB, cacheA, cacheB, min, max );
+			entry = new CandidateCache.Entry( d, md, min, max, pairs[ 0 ], pairs[ 1 ] );
+			candidateCache.put( key, entry );
+		}
+
+		final int graphIdA = matching.modelGraphIndex( mA.getGraph() );
+		final int graphIdB = matching.modelGraphIndex( mB.getGraph() );
 		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
 		{
+			progress.checkCanceled();
+			entry.candidatesAB( timepoint ).filter( absoluteDistSquCutoff, mahalanobisDistSquCutoff ).addEdgesTo( matching, graphIdA, graphIdB );
+			entry.candidatesBA( timepoint ).filter( absoluteDistSquCutoff, mahalanobisDistSquCutoff ).addEdgesTo( matching, graphIdB, graphIdA );
+		}
+		return matching;
+	}
+
+	/**
+	 * Same as
+	 * {@link #buildMatchingGraph(Model, Model, SpotCovarianceCache, SpotCovarianceCache, int, int)},
+	 * but adds the candidates to the given {@code matching} graph, e.g., one
+	 * created by {@link MatchingGraph#newMemoryMapped(java.io.File, Model...)}.
+	 */
+	public MatchingGraph buildMatchingGraph( final MatchingGraph matching, final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint )
+	{
+		addCandidates( matching, mA, mB, cacheA, cacheB, minTimepoint, maxTimepoint );
+		return matching;
+	}
+
+	/**
+	 * Same as
+	 * {@link #buildMatchingGraph(Model, Model, SpotCovarianceCache, SpotCovarianceCache, int, int)},
+	 * but the returned graph only contains vertices for spots that have
+	 * candidates. Spots without candidates get a vertex on demand, see
+	 * {@link MatchingGraph#newSparse(Model...)}. The caches only need to
+	 * contain the spots from {@code minTimepoint} to {@code maxTimepoint}.
+	 */
+	public MatchingGraph buildSparseMatchingGraph( final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint )
+	{
+		final MatchingGraph matching = MatchingGraph.newSparse( mA, mB );
+		addCandidates( matching, mA, mB, cacheA, cacheB, minTimepoint, maxTimepoint );
+		return matching;
+	}
+
+	private void addCandidates( final MatchingGraph matching, final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint )
+	{
+		if ( numThreads > 1 )
+		{
+			addCandidatesParallel( matching, mA, mB, cacheA, cacheB, minTimepoint, maxTimepoint );
+			return;
+		}
+
+		final int graphIdA = matching.modelGraphIndex( mA.getGraph() );
+		final int graphIdB = matching.modelGraphIndex( mB.getGraph() );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+		{
+			progress.checkCanceled();
 			final SpatialIndex< Spot > indexA = mA.getSpatioTemporalIndex().getSpatialIndex( timepoint );
 			final SpatialIndex< Spot > indexB = mB.getSpatioTemporalIndex().getSpatialIndex( timepoint );
-			addCandidates( matching, indexA, indexB );
-			addCandidates( matching, indexB, indexA );
+			final SpotCovarianceCache cA = cacheA != null ? cacheA : new SpotCovarianceCache( mA.getGraph(), indexA );
+			final SpotCovarianceCache cB = cacheB != null ? cacheB : new SpotCovarianceCache( mB.getGraph(), indexB );
+			findCandidates( indexA, indexB, cA, cB ).addEdgesTo( matching, graphIdA, graphIdB );
+			findCandidates( indexB, indexA, cB, cA ).addEdgesTo( matching, graphIdB, graphIdA );
 		}
+	}
 
-		return matching;
+	/**
+	 * Same as {@link #addCandidates}, but the
+	 * candidate pairs of all timepoints are computed concurrently on a
+	 * {@link ForkJoinPool} with {@code numThreads} threads, while the read
+	 * locks of both models are held. The candidates are then inserted into
+	 * the {@link MatchingGraph} on the calling thread, in the same order as
+	 * in the sequential version. Therefore the result is identical.
+	 */
+	private void addCandidatesParallel( final MatchingGraph matching, final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint )
+	{
+		final int graphIdA = matching.modelGraphIndex( mA.getGraph() );
+		final int graphIdB = matching.modelGraphIndex( mB.getGraph() );
+		final CandidatePairs[][] pairs = findAllCandidates( mA, mB, cacheA, cacheB, minTimepoint, maxTimepoint );
+		final CandidatePairs[] candidatesAB = pairs[ 0 ];
+		final CandidatePairs[] candidatesBA = pairs[ 1 ];
+		for ( int i = 0; i < candidatesAB.length; i++ )
+		{
+			candidatesAB[ i ].addEdgesTo( matching, graphIdA, graphIdB );
+			candidatesAB[ i ] = null;
+			candidatesBA[ i ].addEdgesTo( matching, graphIdB, graphIdA );
+			candidatesBA[ i ] = null;
+		}
 	}
 
-	private void addCandidates( final MatchingGraph matching, final SpatialIndex< Spot > indexA, final SpatialIndex< Spot > indexB )
+	/**
+	 * Computes the candidate pairs A to B and B to A for every timepoint from
+	 * {@code minTimepoint} to {@code maxTimepoint}, using {@code numThreads}
+	 * threads.
+	 *
+	 * @return an array {@code { candidatesAB, candidatesBA }}, each indexed by
+	 *         {@code timepoint - minTimepoint}.
+	 */
+	private CandidatePairs[][] findAllCandidates( final Model mA, final Model mB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB,
+			final int minTimepoint, final int maxTimepoint )
 	{
-		final SpotMath spotMath = new SpotMath();
+		final int numTimepoints = Math.max( 0, maxTimepoint - minTimepoint + 1 );
+		final CandidatePairs[] candidatesAB = new CandidatePairs[ numTimepoints ];
+		final CandidatePairs[] candidatesBA = new CandidatePairs[ numTimepoints ];
+
+		final Lock lockA = mA.getGraph().getLock().readLock();
+		final Lock lockB = mB.getGraph().getLock().readLock();
+		lockA.lock();
+		lockB.lock();
+		try
+		{
+			// NB: Spatial indices are created lazily, therefore they are fetched on this thread.
+			final List< SpatialIndex< Spot > > indicesA = new ArrayList<>( numTimepoints );
+			final List< SpatialIndex< Spot > > indicesB = new ArrayList<>( numTimepoints );
+			for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+			{
+				indicesA.add( mA.getSpatioTemporalIndex().getSpatialIndex( timepoint ) );
+				indicesB.add( mB.getSpatioTemporalIndex().getSpatialIndex( timepoint ) );
+			}
+
+			final ForkJoinPool pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+			try
+			{
+				pool.submit( () -> IntStream.range( 0, numTimepoints ).parallel().forEach( i -> {
+					progress.checkCanceled();
+					final SpatialIndex< Spot > indexA = indicesA.get( i );
+					final SpatialIndex< Spot > indexB = indicesB.get( i );
+					// NB: The read locks are held by the submitting thread.
+					final SpotCovarianceCache cA = cacheA != null ? cacheA : SpotCovarianceCache.createWithoutLocking( mA.getGraph(), indexA );
+					final SpotCovarianceCache cB = cacheB != null ? cacheB : SpotCovarianceCache.createWithoutLocking( mB.getGraph(), indexB );
+					candidatesAB[ i ] = findCandidates( indexA, indexB, cA, cB );
+					candidatesBA[ i ] = findCandidates( indexB, indexA, cB, cA );
+				} ) ).get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof CancellationException )
+					throw new CancellationException( e.getCause().getMessage() );
+				throw new RuntimeException( e.getCause() );
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+		finally
+		{
+			lockB.unlock();
+			lockA.unlock();
+		}
+
+		return new CandidatePairs[][] { candidatesAB, candidatesBA };
+	}
+
+	/**
+	 * For every spot in {@code indexA}, find the spots in {@code indexB} that
+	 * are within the distance and mahalanobis distance cutoffs. Only reads
+	 * from the models, so it can be called concurrently for different
+	 * timepoints.
+	 */
+	private CandidatePairs findCandidates( final SpatialIndex< Spot > indexA, final SpatialIndex< Spot > indexB,
+			final SpotCovarianceCache cacheA, final SpotCovarianceCache cacheB )
+	{
+		final CandidatePairs candidates = new CandidatePairs();
 		final IncrementalNearestNeighborSearch< Spot > inns = indexB.getIncrementalNearestNeighborSearch();
 		for ( final Spot spot1 : indexA )
 		{
+			final int id1 = spot1.getInternalPoolIndex();
 			inns.search( spot1 );
 			while ( inns.hasNext() )
 			{
@@ -89,15 +364,86 @@ public class MatchCandidates
 				final double dSqu = inns.getSquareDistance();
 				if ( dSqu > absoluteDistSquCutoff )
 					break;
-				final Spot spot2 = inns.get();
-				final double mdSqu = spotMath.mahalanobisDistSqu( spot1, spot2 );
+				final int id2 = inns.get().getInternalPoolIndex();
+				final double mdSqu = cacheA.mahalanobisDistSqu( id1, cacheB, id2 );
 				if ( mdSqu > mahalanobisDistSquCutoff )
 					break;
-				matching.addEdge(
-						matching.getVertex( spot1 ),
-						matching.getVertex( spot2 )
-				).init( dSqu, mdSqu );
+				candidates.add( id1, id2, dSqu, mdSqu );
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Candidate matches, stored as spot pool indices and distances in
+	 * primitive lists. The candidates of each source spot are consecutive,
+	 * ordered by increasing distance.
+	 */
+	static class CandidatePairs
+	{
+		final TIntArrayList sourceIds = new TIntArrayList();
+
+		final TIntArrayList targetIds = new TIntArrayList();
+
+		final TDoubleArrayList distSqus = new TDoubleArrayList();
+
+		final TDoubleArrayList mahalDistSqus = new TDoubleArrayList();
+
+		int size()
+		{
+			return sourceIds.size();
+		}
+
+		void add( final int sourceId, final int targetId, final double distSqu, final double mahalDistSqu )
+		{
+			sourceIds.add( sourceId );
+			targetIds.add( targetId );
+			distSqus.add( distSqu );
+			mahalDistSqus.add( mahalDistSqu );
+		}
+
+		void addEdgesTo( final MatchingGraph matching, final int sourceGraphId, final int targetGraphId )
+		{
+			final MatchingVertex ref1 = matching.vertexRef();
+			final MatchingVertex ref2 = matching.vertexRef();
+			final MatchingEdge eref = matching.edgeRef();
+			for ( int i = 0; i < sourceIds.size(); i++ )
+			{
+				final MatchingVertex source = matching.getVertex( sourceGraphId, sourceIds.get( i ), ref1 );
+				final MatchingVertex target = matching.getVertex( targetGraphId, targetIds.get( i ), ref2 );
+				matching.addEdge( source, target, eref ).init( distSqus.get( i ), mahalDistSqus.get( i ) );
+			}
+			matching.releaseRef( eref );
+			matching.releaseRef( ref2 );
+			matching.releaseRef( ref1 );
+		}
+
+		/**
+		 * Returns the candidates that {@link #findCandidates} would have found
+		 * with the given (smaller) cutoffs. As the search stops at the first
+		 * neighbor of a source spot that exceeds one of the cutoffs, this
+		 * keeps, for every source spot, the candidates up to the first one
+		 * that exceeds a cutoff.
+		 */
+		CandidatePairs filter( final double distSquCutoff, final double mahalDistSquCutoff )
+		{
+			final CandidatePairs filtered = new CandidatePairs();
+			int skipSourceId = -1;
+			for ( int i = 0; i < sourceIds.size(); i++ )
+			{
+				final int sourceId = sourceIds.get( i );
+				if ( sourceId == skipSourceId )
+					continue;
+				final double dSqu = distSqus.get( i );
+				final double mdSqu = mahalDistSqus.get( i );
+				if ( dSqu > distSquCutoff || mdSqu > mahalDistSquCutoff )
+				{
+					skipSourceId = sourceId;
+					continue;
+				}
+				filtered.add( sourceId, targetIds.get( i ), dSqu, mdSqu );
 			}
+			return filtered;
 		}
 	}
 
@@ -119,11 +465,14 @@ public class MatchCandidates
 			no -->
 				continue
 
-			sort outgoing edges by mahalanobis distance
+			sort outgoing edges by target model, then by mahalanobis distance
+
+			for each target model:
+				do
+					add edge[i]
+				while |(i+1) <= |edge|) and (mdist(edge[i+1]) / mdist(edge[i]) > th3)
 
-			do
-				add edge[i]
-			while |(i+1) <= |edge|) and (mdist(edge[i+1]) / mdist(edge[i]) > th3)
+		(With two models, all outgoing edges of a vertex have the same target model.)
 		 */
 		final RefList< MatchingEdge > edges = RefCollections.createRefList( graph.edges() );
 		for ( final MatchingVertex v : graph.vertices() )
@@ -132,7 +481,8 @@ public class MatchCandidates
 			v.outgoingEdges().forEach( edges::add );
 			if ( edges.isEmpty() )
 				continue;
-			edges.sort( Comparator.comparingDouble( MatchingEdge::getMahalDistSqu ) );
+			edges.sort( Comparator.comparingInt( ( MatchingEdge e ) -> e.getTarget().graphId() )
+					.thenComparingDouble( MatchingEdge::getMahalDistSqu ) );
 			for ( int i = 0; i < edges.size(); ++i )
 			{
 				final MatchingEdge ge = edges.get( i );
@@ -140,11 +490,16 @@ public class MatchCandidates
 				final MatchingVertex target = matching.getVertex( ge.getTarget().getSpot() );
 				matching.addEdge( source, target ).init( ge.getDistSqu(), ge.getMahalDistSqu() );
 
+				final int targetGraphId = ge.getTarget().graphId();
 				if ( i + 1 < edges.size() )
 				{
 					final MatchingEdge ne = edges.get( i + 1 );
-					if ( ne.getMahalDistSqu() / ge.getMahalDistSqu() > ratioThresholdSqu )
-						break;
+					if ( ne.getTarget().graphId() == targetGraphId && ne.getMahalDistSqu() / ge.getMahalDistSqu() > ratioThresholdSqu )
+					{
+						// skip the remaining edges to the same target model
+						while ( i + 1 < edges.size() && edges.get( i + 1 ).getTarget().graphId() == targetGraphId )
+							++i;
+					}
 				}
 			}
 		}
@@ -155,4 +510,91 @@ public class MatchCandidates
 
 		return matching;
 	}
+
+	/**
+	 * Same as {@link #pruneMatchingGraph(MatchingGraph)}, but modifies
+	 * {@code graph} in place instead of creating a pruned copy.
+	 * <p>
+	 * For every vertex, the outgoing edges are collected into primitive
+	 * arrays, sorted by mahalanobis distance and removed. The edges that
+	 * pass the ratio test are then re-inserted in sorted order, reusing the
+	 * freed slots of the edge pool. Thus, no second vertex pool is allocated
+	 * and the edge lists of the result are ordered exactly like those of
+	 * {@link #pruneMatchingGraph(MatchingGraph)} (up to the order of edges
+	 * with equal mahalanobis distance).
+	 *
+	 * @param graph
+	 *            the matching graph to prune.
+	 * @return {@code graph}, for convenience.
+	 */
+	public MatchingGraph pruneMatchingGraphInPlace( final MatchingGraph graph )
+	{
+		final RefPool< MatchingVertex > vertexPool = graph.vertices().getRefPool();
+		final MatchingVertex vref = graph.vertexRef();
+		final MatchingEdge eref = graph.edgeRef();
+		int[] targetIds = new int[ 16 ];
+		int[] targetGraphIds = new int[ 16 ];
+		double[] distSqus = new double[ 16 ];
+		double[] mahalDistSqus = new double[ 16 ];
+		for ( final MatchingVertex v : graph.vertices() )
+		{
+			final Edges< MatchingEdge > edges = v.outgoingEdges();
+			final int n = edges.size();
+			if ( n == 0 )
+				continue;
+			if ( n > targetIds.length )
+			{
+				targetIds = new int[ 2 * n ];
+				targetGraphIds = new int[ 2 * n ];
+				distSqus = new double[ 2 * n ];
+				mahalDistSqus = new double[ 2 * n ];
+			}
+
+			// remove all outgoing edges, insertion sort by target model and mahalanobis distance (n is small)
+			for ( int i = 0; i < n; i++ )
+			{
+				final MatchingEdge edge = edges.get( 0, eref );
+				final MatchingVertex target = edge.getTarget( vref );
+				final int targetId = vertexPool.getId( target );
+				final int targetGraphId = target.graphId();
+				final double distSqu = edge.getDistSqu();
+				final double mahalDistSqu = edge.getMahalDistSqu();
+				graph.remove( edge );
+
+				int j = i;
+				for ( ; j > 0 && ( targetGraphIds[ j - 1 ] > targetGraphId
+						|| ( targetGraphIds[ j - 1 ] == targetGraphId && mahalDistSqus[ j - 1 ] > mahalDistSqu ) ); j-- )
+				{
+					targetIds[ j ] = targetIds[ j - 1 ];
+					targetGraphIds[ j ] = targetGraphIds[ j - 1 ];
+					distSqus[ j ] = distSqus[ j - 1 ];
+					mahalDistSqus[ j ] = mahalDistSqus[ j - 1 ];
+				}
+				targetIds[ j ] = targetId;
+				targetGraphIds[ j ] = targetGraphId;
+				distSqus[ j ] = distSqu;
+				mahalDistSqus[ j ] = mahalDistSqu;
+			}
+
+			// re-insert the edges that pass the ratio test, separately for every target model
+			for ( int start = 0; start < n; )
+			{
+				int end = start + 1;
+				while ( end < n && targetGraphIds[ end ] == targetGraphIds[ start ] )
+					end++;
+				int numKept = start + 1;
+				while ( numKept < end && !( mahalDistSqus[ numKept ] / mahalDistSqus[ numKept - 1 ] > ratioThresholdSqu ) )
+					numKept++;
+				for ( int i = start; i < numKept; i++ )
+				{
+					final MatchingVertex target = vertexPool.getObject( targetIds[ i ], vref );
+					graph.addEdge( v, target, eref ).init( distSqus[ i ], mahalDistSqus[ i ] );
+				}
+				start = end;
+			}
+		}
+		graph.releaseRef( eref );
+		graph.releaseRef( vref );
+		return graph;
+	}
 }
@@ -30,9 +30,9 @@ package org.mastodon.mamut.tomancak.merging;
 
 import org.mastodon.graph.ref.AbstractEdge;
 import org.mastodon.mamut.tomancak.merging.MatchingGraph.MatchingEdgePool;
-import org.mastodon.pool.ByteMappedElement;
+import org.mastodon.pool.MappedElement;
 
-public class MatchingEdge extends AbstractEdge< MatchingEdge, MatchingVertex, MatchingEdgePool, ByteMappedElement >
+public class MatchingEdge extends AbstractEdge< MatchingEdge, MatchingVertex, MatchingEdgePool, MappedElement >
 {
 	MatchingEdge( final MatchingEdgePool pool )
 	{
@@ -28,6 +28,7 @@
  */
 package org.mastodon.mamut.tomancak.merging;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -35,6 +36,7 @@ import java.util.stream.Collectors;
 
 import org.mastodon.collection.IntRefMap;
 import org.mastodon.collection.ref.IntRefArrayMap;
+import org.mastodon.collection.ref.IntRefHashMap;
 import org.mastodon.graph.ref.AbstractEdgePool;
 import org.mastodon.graph.ref.AbstractEdgePool.AbstractEdgeLayout;
 import org.mastodon.graph.ref.AbstractVertexPool;
@@ -43,8 +45,9 @@ import org.mastodon.graph.ref.GraphImp;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
-import org.mastodon.pool.ByteMappedElement;
 import org.mastodon.pool.ByteMappedElementArray;
+import org.mastodon.pool.MappedElement;
+import org.mastodon.pool.MemPool;
 import org.mastodon.pool.SingleArrayMemPool;
 import org.mastodon.pool.attributes.DoubleAttribute;
 import org.mastodon.pool.attributes.IndexAttribute;
@@ -64,7 +67,7 @@ import gnu.trove.map.hash.TObjectIntHashMap;
 public class MatchingGraph extends GraphImp<
 		MatchingGraph.MatchingVertexPool,
 		MatchingGraph.MatchingEdgePool,
-		MatchingVertex, MatchingEdge, ByteMappedElement >
+		MatchingVertex, MatchingEdge, MappedElement >
 {
 	public static MatchingGraph newWithAllSpots( final Model... models )
 	{
@@ -89,9 +92,47 @@ public class MatchingGraph extends GraphImp<
 		return matching;
 	}
 
+	/**
+	 * Same as {@link #newWithAllSpots(Model...)}, but the vertex and edge
+	 * pools of the returned graph are backed by memory-mapped files in
+	 * {@code directory}. The pools grow by mapping additional chunks of the
+	 * files instead of copying, and their data lives outside the Java heap.
+	 * This allows matching graphs that are larger than the heap, e.g., for
+	 * merging many large models. Prune such a graph with
+	 * {@link MatchCandidates#pruneMatchingGraphInPlace(MatchingGraph)}, which
+	 * doesn't allocate a second graph.
+	 * <p>
+	 * Call {@link #close()} to delete the files when the graph is no longer
+	 * needed. Otherwise they are deleted when the JVM exits.
+	 *
+	 * @param directory
+	 *            directory for the memory-mapped files, or {@code null} for
+	 *            the default temporary-file directory.
+	 * @param models
+	 *            the models.
+	 * @return a new {@link MatchingGraph}.
+	 */
+	public static MatchingGraph newMemoryMapped( final File directory, final Model... models )
+	{
+		final List< ModelGraph > graphs = Arrays.stream( models ).map( ds -> ds.getGraph() ).collect( Collectors.toList() );
+		return newMemoryMapped( directory, graphs );
+	}
+
+	public static MatchingGraph newMemoryMapped( final File directory, final List< ModelGraph > graphs )
+	{
+		final int capacity = graphs.stream().mapToInt( g -> g.vertices().size() ).sum();
+		final MatchingGraph matching = new MatchingGraph( graphs, capacity, false, new MappedFileElementArray.FileFactory( directory ) );
+		final MatchingVertex ref = matching.vertexRef();
+		for ( final ModelGraph graph : graphs )
+			for ( final Spot spot : graph.vertices() )
+				matching.getVertex( spot, ref );
+		return matching;
+	}
+
 	/**
 	 * Initialize a new MatchingGraph with all MatchingVertices from
-	 * {@code graph} (but no edges).
+	 * {@code graph} (but no edges). If {@code graph} is backed by
+	 * memory-mapped files, so is the new graph.
 	 * 
 	 * @param graph
 	 *            the source graph.
@@ -99,13 +140,42 @@ public class MatchingGraph extends GraphImp<
 	 */
 	public static MatchingGraph newWithAllSpots( final MatchingGraph graph )
 	{
-		final MatchingGraph matching = new MatchingGraph( graph.vertexPool.modelGraphs, graph.vertexPool.size() );
+		final MappedFileElementArray.FileFactory mappedFiles = graph.mappedFiles == null
+				? null
+				: new MappedFileElementArray.FileFactory( graph.mappedFiles.directory() );
+		final MatchingGraph matching = new MatchingGraph( graph.vertexPool.modelGraphs, graph.vertexPool.size(), graph.sparse, mappedFiles );
 		final MatchingVertex ref = matching.vertexRef();
 		for ( final MatchingVertex v : graph.vertices() )
 			matching.superAddVertex( ref ).init( v.graphId(), v.spotId() );
 		return matching;
 	}
 
+	/**
+	 * Create a new MatchingGraph without vertices. Vertices are created on
+	 * demand by {@link #getVertex(Spot)}. The mapping from spots to vertices
+	 * is stored in hash maps, such that the memory consumption is
+	 * proportional to the number of vertices, rather than to the size of the
+	 * {@code models}. This is useful if the MatchingGraph covers only a small
+	 * part of the models, e.g., a window of timepoints.
+	 *
+	 * @param models
+	 *            the models.
+	 * @return a new {@link MatchingGraph}.
+	 */
+	public static MatchingGraph newSparse( final Model... models )
+	{
+		final List< ModelGraph > graphs = Arrays.stream( models ).map( ds -> ds.getGraph() ).collect( Collectors.toList() );
+		return new MatchingGraph( graphs, 10000, true );
+	}
+
+	private final boolean sparse;
+
+	/**
+	 * Creates the arrays of the pools, if they are backed by memory-mapped
+	 * files. {@code null} if the pools are on the heap.
+	 */
+	private final MappedFileElementArray.FileFactory mappedFiles;
+
 	private final List< IntRefMap< MatchingVertex > > graphToSpotToMatchingVertex;
 
 	public MatchingGraph( final ModelGraph... modelGraphs )
@@ -116,16 +186,39 @@ public class MatchingGraph extends GraphImp<
 	public MatchingGraph(
 			final List< ModelGraph > modelGraphs,
 			final int initialCapacity )
+	{
+		this( modelGraphs, initialCapacity, false );
+	}
+
+	private MatchingGraph(
+			final List< ModelGraph > modelGraphs,
+			final int initialCapacity,
+			final boolean sparse )
+	{
+		this( modelGraphs, initialCapacity, sparse, null );
+	}
+
+	private MatchingGraph(
+			final List< ModelGraph > modelGraphs,
+			final int initialCapacity,
+			final boolean sparse,
+			final MappedFileElementArray.FileFactory mappedFiles )
 	{
 		super( new MatchingEdgePool(
 				initialCapacity,
 				new MatchingVertexPool(
 						initialCapacity,
-						modelGraphs ) ) );
+						modelGraphs,
+						poolFactory( mappedFiles ) ),
+				poolFactory( mappedFiles ) ) );
+		this.sparse = sparse;
+		this.mappedFiles = mappedFiles;
 		final int numModelGraphs = modelGraphs.size();
 		graphToSpotToMatchingVertex = new ArrayList<>( numModelGraphs );
 		for ( int i = 0; i < numModelGraphs; i++ )
-			graphToSpotToMatchingVertex.add( new IntRefArrayMap<>( vertexPool ) );
+			graphToSpotToMatchingVertex.add( sparse
+					? new IntRefHashMap<>( vertexPool, -1 )
+					: new IntRefArrayMap<>( vertexPool ) );
 	}
 
 	public MatchingVertex getVertex( final Spot spot )
@@ -135,9 +228,16 @@ public class MatchingGraph extends GraphImp<
 
 	public MatchingVertex getVertex( final Spot spot, final MatchingVertex ref )
 	{
-		final int graphId = vertexPool.modelGraphIndex( spot );
-		final int spotId = spot.getInternalPoolIndex();
+		return getVertex( vertexPool.modelGraphIndex( spot ), spot.getInternalPoolIndex(), ref );
+	}
 
+	/**
+	 * Get the vertex corresponding to the spot with the given internal pool
+	 * index in the model graph with the given index. The vertex is created if
+	 * it does not exist yet.
+	 */
+	MatchingVertex getVertex( final int graphId, final int spotId, final MatchingVertex ref )
+	{
 		final IntRefMap< MatchingVertex > map = graphToSpotToMatchingVertex.get( graphId );
 		MatchingVertex v = map.get( spotId, ref );
 		if ( v == null )
@@ -202,15 +302,46 @@ public class MatchingGraph extends GraphImp<
 		return super.addVertex( ref );
 	}
 
+	int modelGraphIndex( final ModelGraph graph )
+	{
+		return vertexPool.modelGraphIndex( graph );
+	}
+
 	public Spot spotRef()
 	{
 		return vertexPool.modelGraphs.get( 0 ).vertexRef();
 	}
 
+	/**
+	 * Deletes the memory-mapped files backing this graph, see
+	 * {@link #newMemoryMapped(File, List)}. The graph must not be used
+	 * afterwards. Does nothing if the graph is stored on the heap.
+	 */
+	public void close()
+	{
+		if ( mappedFiles != null )
+			mappedFiles.close();
+	}
+
 	/*
 	 * vertex and edge pools
 	 */
 
+	/*
+	 * The pools are declared with element type MappedElement, such that they
+	 * can be backed by either heap arrays or memory-mapped files. The casts
+	 * are safe, because the pools only access their elements through the
+	 * MappedElement interface.
+	 */
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static MemPool.Factory< MappedElement > poolFactory( final MappedFileElementArray.FileFactory mappedFiles )
+	{
+		return mappedFiles == null
+				? ( MemPool.Factory ) SingleArrayMemPool.factory( ByteMappedElementArray.factory )
+				: ( MemPool.Factory ) SingleArrayMemPool.factory( mappedFiles );
+	}
+
 	static class MatchingVertexLayout extends AbstractVertexLayout
 	{
 		final IndexField graphId = indexField();
@@ -219,7 +350,7 @@ public class MatchingGraph extends GraphImp<
 
 	static MatchingVertexLayout vertexLayout = new MatchingVertexLayout();
 
-	static class MatchingVertexPool extends AbstractVertexPool< MatchingVertex, MatchingEdge, ByteMappedElement >
+	static class MatchingVertexPool extends AbstractVertexPool< MatchingVertex, MatchingEdge, MappedElement >
 	{
 		final List< ModelGraph > modelGraphs;
 		final TObjectIntMap< ModelGraph > modelGraphToIndex;
@@ -227,9 +358,9 @@ public class MatchingGraph extends GraphImp<
 		final IndexAttribute< MatchingVertex > graphId = new IndexAttribute<>( vertexLayout.graphId, this );
 		final IndexAttribute< MatchingVertex > spotId = new IndexAttribute<>( vertexLayout.spotId, this );
 
-		private MatchingVertexPool( final int initialCapacity, final List< ModelGraph > modelGraphs )
+		private MatchingVertexPool( final int initialCapacity, final List< ModelGraph > modelGraphs, final MemPool.Factory< MappedElement > poolFactory )
 		{
-			super( initialCapacity, vertexLayout, MatchingVertex.class, SingleArrayMemPool.factory( ByteMappedElementArray.factory ) );
+			super( initialCapacity, vertexLayout, MatchingVertex.class, poolFactory );
 			this.modelGraphs = modelGraphs;
 			modelGraphToIndex = new TObjectIntHashMap<>( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1 );
 			for ( int i = 0; i < modelGraphs.size(); i++ )
@@ -244,7 +375,12 @@ public class MatchingGraph extends GraphImp<
 
 		int modelGraphIndex( final Spot spot )
 		{
-			final int i = modelGraphToIndex.get( spot.getModelGraph() );
+			return modelGraphIndex( spot.getModelGraph() );
+		}
+
+		int modelGraphIndex( final ModelGraph graph )
+		{
+			final int i = modelGraphToIndex.get( graph );
 			if ( i < 0 )
 				throw new IllegalArgumentException();
 			return i;
@@ -259,14 +395,14 @@ public class MatchingGraph extends GraphImp<
 
 	static MatchingEdgeLayout edgeLayout = new MatchingEdgeLayout();
 
-	static class MatchingEdgePool extends AbstractEdgePool< MatchingEdge, MatchingVertex, ByteMappedElement >
+	static class MatchingEdgePool extends AbstractEdgePool< MatchingEdge, MatchingVertex, MappedElement >
 	{
 		final DoubleAttribute< MatchingEdge > distSqu = new DoubleAttribute<>( edgeLayout.distSqu, this );
 		final DoubleAttribute< MatchingEdge > mahalDistSqu = new DoubleAttribute<>( edgeLayout.mahalDistSqu, this );
 
-		private MatchingEdgePool( final int initialCapacity, final MatchingVertexPool vertexPool )
+		private MatchingEdgePool( final int initialCapacity, final MatchingVertexPool vertexPool, final MemPool.Factory< MappedElement > poolFactory )
 		{
-			super( initialCapacity, edgeLayout, MatchingEdge.class, SingleArrayMemPool.factory( ByteMappedElementArray.factory ), vertexPool );
+			super( initialCapacity, edgeLayout, MatchingEdge.class, poolFactory, vertexPool );
 			vertexPool.linkEdgePool( this );
 		}
 
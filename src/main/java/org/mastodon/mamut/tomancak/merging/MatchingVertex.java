@@ -32,9 +32,9 @@ import org.mastodon.graph.ref.AbstractVertex;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.tomancak.merging.MatchingGraph.MatchingVertexPool;
-import org.mastodon.pool.ByteMappedElement;
+import org.mastodon.pool.MappedElement;
 
-public class MatchingVertex extends AbstractVertex< MatchingVertex, MatchingEdge, MatchingVertexPool, ByteMappedElement >
+public class MatchingVertex extends AbstractVertex< MatchingVertex, MatchingEdge, MatchingVertexPool, MappedElement >
 {
 	MatchingVertex( final MatchingVertexPool pool )
 	{
@@ -30,6 +30,8 @@ package org.mastodon.mamut.tomancak.merging;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.io.ProjectSaver;
@@ -132,11 +134,40 @@ public class MergeDatasets
 	}
 
 	public static void merge( final Dataset dsA, final Dataset dsB, final OutputDataSet output, final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
+	{
+		merge( dsA, dsB, output, new MergeSettings( distCutoff, mahalanobisDistCutoff, ratioThreshold ) );
+	}
+
+	/**
+	 * Merge the two datasets into {@code output}, see {@link MergeSettings}.
+	 * If the {@link MergeSettings#windowSize(int) window size} is positive,
+	 * the time axis is processed in windows of this number of timepoints to
+	 * bound the memory consumption, see {@link StreamingMergeModels}.
+	 * Otherwise all timepoints are processed at once, see
+	 * {@link MergeModels}.
+	 */
+	public static void merge( final Dataset dsA, final Dataset dsB, final OutputDataSet output, final MergeSettings settings )
+	{
+		if ( settings.getWindowSize() > 0 )
+			StreamingMergeModels.merge( dsA.model(), dsB.model(), output, settings );
+		else
+		{
+			final int minTimepoint = 0;
+			final int maxTimepoint = Math.max( dsA.maxNonEmptyTimepoint(), dsB.maxNonEmptyTimepoint() );
+			MergeModels.merge( dsA.model(), dsB.model(), output, minTimepoint, maxTimepoint, settings );
+		}
+	}
+
+	/**
+	 * Merge any number of datasets into {@code output} in a single pass, see
+	 * {@link MergeMultipleModels}. The window size, candidate cache and
+	 * storage of the match candidates of the {@code settings} are ignored.
+	 */
+	public static void merge( final List< Dataset > datasets, final OutputDataSet output, final MergeSettings settings )
 	{
 		final int minTimepoint = 0;
-		final int maxTimepoint = Math.max( dsA.maxNonEmptyTimepoint(), dsB.maxNonEmptyTimepoint() );
-		MergeModels.merge( dsA.model(), dsB.model(), output,
-				minTimepoint, maxTimepoint,
-				distCutoff, mahalanobisDistCutoff, ratioThreshold );
+		final int maxTimepoint = datasets.stream().mapToInt( Dataset::maxNonEmptyTimepoint ).max().orElse( 0 );
+		final List< Model > models = datasets.stream().map( Dataset::model ).collect( Collectors.toList() );
+		MergeMultipleModels.merge( models, output, minTimepoint, maxTimepoint, settings );
 	}
 }
@@ -28,23 +28,19 @@
  */
 package org.mastodon.mamut.tomancak.merging;
 
-import org.mastodon.collection.RefMaps;
-import org.mastodon.collection.RefRefMap;
-import org.mastodon.graph.algorithm.traversal.UndirectedDepthFirstIterator;
 import org.mastodon.mamut.io.importer.ModelImporter;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots.CovarianceInterpolation;
 import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
 import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
 import org.mastodon.model.tag.ObjTags;
 import org.mastodon.model.tag.TagSetModel;
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.model.tag.TagSetStructure.Tag;
-import org.mastodon.model.tag.TagSetStructure.TagSet;
-import org.mastodon.spatial.SpatialIndex;
 import org.mastodon.util.TreeUtils;
 
 public class MergeModels
@@ -62,14 +58,45 @@ public class MergeModels
 			final int minTimepoint, final int maxTimepoint,
 			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
 	{
-		new ModelImporter( output.getModel() ){{ startImport(); }};
+		merge( mA, mB, output, minTimepoint, maxTimepoint, new MergeSettings( distCutoff, mahalanobisDistCutoff, ratioThreshold ) );
+	}
 
-		InterpolateMissingSpots.interpolate( mA );
-		InterpolateMissingSpots.interpolate( mB );
+	/**
+	 * Merge {@code mA} and {@code mB} into {@code output}, with the cutoffs,
+	 * number of threads, candidate cache, covariance interpolation and
+	 * storage of the match candidates given by {@code settings}. The window
+	 * size of the settings is ignored, see {@link StreamingMergeModels}.
+	 * <p>
+	 * The phases of the merge are reported to the
+	 * {@link MergeSettings#getProgress() progress} of the settings. It
+	 * records the time and the number of processed spots (or candidates) of
+	 * every phase, and is checked for cancellation between phases, for every
+	 * link of the interpolation, and for every timepoint of the candidate
+	 * search and the spot placement.
+	 * <p>
+	 * If the match candidates are memory-mapped, the temporary files are
+	 * deleted as soon as the spots of {@code mB} are placed. This allows to
+	 * merge models whose candidates don't fit into the heap.
+	 *
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress was canceled. The output model is
+	 *             incomplete in this case.
+	 */
+	public static void merge( final Model mA, final Model mB, final OutputDataSet output,
+			final int minTimepoint, final int maxTimepoint,
+			final MergeSettings settings )
+	{
+		final int numThreads = settings.getNumThreads();
+		final CovarianceInterpolation covarianceInterpolation = settings.getCovarianceInterpolation();
+		final CandidateCache candidateCache = settings.getCandidateCache();
+		final MergeProgress progress = settings.getProgress();
+
+		new ModelImporter( output.getModel() ){{ startImport(); }};
 
-		final MatchCandidates candidates = new MatchCandidates( distCutoff, mahalanobisDistCutoff, ratioThreshold );
-		final MatchingGraph matching = candidates.pruneMatchingGraph( candidates.buildMatchingGraph( mA, mB, minTimepoint, maxTimepoint ) );
-		final MatchingGraphUtils utils = new MatchingGraphUtils( matching );
+		progress.startPhase( MergeProgress.INTERPOLATION );
+		InterpolateMissingSpots.interpolate( mA, numThreads, covarianceInterpolation, progress );
+		InterpolateMissingSpots.interpolate( mB, numThreads, covarianceInterpolation, progress );
+		progress.addCount( mA.getGraph().vertices().size() + mB.getGraph().vertices().size() );
 
 		final Tag tagA = output.addSourceTag( "A", 0xffffff00 );
 		final Tag tagB = output.addSourceTag( "B", 0xffff00ff );
@@ -92,8 +119,10 @@ public class MergeModels
 			add a' with shape and translated a tags
 			add mapping MA: a --> a'
 */
+		progress.startPhase( MergeProgress.COPY_SPOTS_A );
 		final ModelGraph graphA = mA.getGraph();
-		final RefRefMap< Spot, Spot > mapAtoDest = RefMaps.createRefRefMap( graphA.vertices(), graph.vertices() );
+		progress.addCount( graphA.vertices().size() );
+		final PoolIndexMap< Spot, Spot > mapAtoDest = PoolIndexMap.dense( graphA.vertices().getRefPool(), graph.vertices().getRefPool(), graphA.vertices().size() );
 		for ( final Spot spotA : graphA.vertices() )
 		{
 			final int tp = spotA.getTimepoint();
@@ -110,12 +139,18 @@ public class MergeModels
 			get a1', a2' from mapping MA
 			add edge (a1',a2') and translated (a1,a2) tags
 */
-		final RefRefMap< Link, Link > mapAtoDestLinks = RefMaps.createRefRefMap( graphA.edges(), graph.edges() );
+		progress.startPhase( MergeProgress.COPY_LINKS );
+		progress.addCount( graphA.edges().size() );
+		final PoolIndexMap< Link, Link > mapAtoDestLinks = PoolIndexMap.dense( graphA.edges().getRefPool(), graph.edges().getRefPool(), graphA.edges().size() );
+		final Spot aref = graphA.vertexRef();
+		final Spot sref = graph.vertexRef();
+		final Spot tref = graph.vertexRef();
+		final Link lref = graph.edgeRef();
 		for ( final Link linkA : graphA.edges() )
 		{
-			final Spot source = mapAtoDest.get( linkA.getSource() );
-			final Spot target = mapAtoDest.get( linkA.getTarget() );
-			final Link destLink = graph.addEdge( source, target );
+			final Spot source = mapAtoDest.get( linkA.getSource( aref ), sref );
+			final Spot target = mapAtoDest.get( linkA.getTarget( aref ), tref );
+			final Link destLink = graph.addEdge( source, target, lref );
 			mapAtoDestLinks.put( linkA, destLink );
 		}
 
@@ -141,79 +176,42 @@ public class MergeModels
 				add "conflict" tag to b' and any connected (and already present) c'
 				add mapping MB: b --> b'
 */
+		final MatchingGraph matching = settings.isMemoryMapped()
+				? MatchingGraph.newMemoryMapped( null, mA, mB )
+				: MatchingGraph.newWithAllSpots( mA, mB );
 		final ModelGraph graphB = mB.getGraph();
-		final RefRefMap< Spot, Spot > mapBtoDest = RefMaps.createRefRefMap( graphA.vertices(), graph.vertices() );
-		final UndirectedDepthFirstIterator< MatchingVertex, MatchingEdge > miter = new UndirectedDepthFirstIterator<>( matching );
-		for ( int timepoint = 0; timepoint <= maxTimepoint; timepoint++ )
+		final PoolIndexMap< Spot, Spot > mapBtoDest = PoolIndexMap.dense( graphB.vertices().getRefPool(), graph.vertices().getRefPool(), graphB.vertices().size() );
+		try
 		{
-			final SpatialIndex< Spot > indexB = mB.getSpatioTemporalIndex().getSpatialIndex( timepoint );
-			for ( final Spot spotB : indexB )
-			{
-				final MatchingVertex mvB = matching.getVertex( spotB );
+			progress.startPhase( MergeProgress.CANDIDATE_SEARCH );
+			final MatchCandidates candidates = new MatchCandidates( settings.getDistCutoff(), settings.getMahalanobisDistCutoff(), settings.getRatioThreshold(), numThreads, progress );
+			if ( candidateCache == null )
+				candidates.buildMatchingGraph( matching, mA, mB, null, null, minTimepoint, maxTimepoint );
+			else
+				candidates.buildMatchingGraph( matching, mA, mB, null, null, minTimepoint, maxTimepoint, candidateCache );
+			progress.addCount( matching.edges().size() );
 
-				if ( utils.isUnmatched( mvB ) )
-				{
-					final int tp = spotB.getTimepoint();
-					spotB.localize( pos );
-					spotB.getCovariance( cov );
-					final Spot destSpot = graph.addVertex( vref ).init( tp, pos, cov );
-					vertexTags.set( destSpot, tagB );
-					vertexTags.set( destSpot, tagSingletonB );
-					mapBtoDest.put( spotB, destSpot );
-				}
-				else if ( utils.isPerfectlyMatched( mvB ) )
-				{
-					final MatchingVertex mvA = mvB.outgoingEdges().get( 0 ).getTarget();
-					final Spot spotA = mvA.getSpot( vref );
-					final Spot destSpotA = mapAtoDest.get( spotA );
-					if ( ! ( spotB.incomingEdges().isEmpty() || spotA.incomingEdges().isEmpty() ) )
-					{
-						final Spot spotC = spotB.incomingEdges().get( 0 ).getSource();
-						final Spot spotD = spotA.incomingEdges().get( 0 ).getSource();
-						final Spot destSpotC = mapBtoDest.get( spotC );
-						final Spot destSpotD = mapAtoDest.get( spotD );
-						if ( !destSpotC.equals( destSpotD ) )
-						{
-							final int tp = spotB.getTimepoint();
-							spotB.localize( pos );
-							spotB.getCovariance( cov );
-							final Spot destSpotB = graph.addVertex( vref ).init( tp, pos, cov );
-							vertexTags.set( destSpotB, tagB );
-							mapBtoDest.put( spotB, destSpotB );
-							vertexTags.set( destSpotB, tagConflict );
-							vertexTags.set( destSpotA, tagConflict );
-							continue;
-						}
-					}
-					vertexTags.set( destSpotA, tagB );
-					vertexTags.set( destSpotA, tagMatchAB );
-					mapBtoDest.put( spotB, destSpotA );
-				}
-				else
+			progress.startPhase( MergeProgress.PRUNING );
+			candidates.pruneMatchingGraphInPlace( matching );
+			progress.addCount( matching.edges().size() );
+
+			progress.startPhase( MergeProgress.PLACE_SPOTS_B );
+			progress.addCount( graphB.vertices().size() );
+			try ( final PlaceSpotsB placeSpotsB = new PlaceSpotsB( matching, mA, mB, graph, mapAtoDest, mapBtoDest,
+					vertexTags, tagB, tagSingletonB, tagMatchAB, tagConflict, numThreads ) )
+			{
+				for ( int timepoint = 0; timepoint <= maxTimepoint; timepoint++ )
 				{
-					final int tp = spotB.getTimepoint();
-					spotB.localize( pos );
-					spotB.getCovariance( cov );
-					final Spot destSpot = graph.addVertex( vref ).init( tp, pos, cov );
-					vertexTags.set( destSpot, tagB );
-					mapBtoDest.put( spotB, destSpot );
-
-					miter.reset( mvB );
-					while ( miter.hasNext() )
-					{
-						final MatchingVertex mv = miter.next();
-						final Spot sourceSpot = mv.getSpot();
-						final Spot spot;
-						if ( sourceSpot.getModelGraph() == graphA )
-							spot = mapAtoDest.get( sourceSpot );
-						else
-							spot = mapBtoDest.get( sourceSpot );
-						if ( spot != null )
-							vertexTags.set( spot, tagConflict );
-					}
+					progress.checkCanceled();
+					progress.showProgress( timepoint, maxTimepoint + 1 );
+					placeSpotsB.placeSpots( timepoint );
 				}
 			}
 		}
+		finally
+		{
+			matching.close();
+		}
 
 /*
 		for every edge (b1,b2) in B
@@ -221,14 +219,17 @@ public class MergeModels
 			add edge (b1',b2') if not exists
 			add translated (b1,b2) tags, checking for conflicts
 */
-		final RefRefMap< Link, Link > mapBtoDestLinks = RefMaps.createRefRefMap( graphB.edges(), graph.edges() );
+		progress.startPhase( MergeProgress.COPY_LINKS );
+		progress.addCount( graphB.edges().size() );
+		final PoolIndexMap< Link, Link > mapBtoDestLinks = PoolIndexMap.dense( graphB.edges().getRefPool(), graph.edges().getRefPool(), graphB.edges().size() );
+		final Spot bref = graphB.vertexRef();
 		for ( final Link linkB : graphB.edges() )
 		{
-			final Spot source = mapBtoDest.get( linkB.getSource() );
-			final Spot target = mapBtoDest.get( linkB.getTarget() );
-			Link destLink = graph.getEdge( source, target );
+			final Spot source = mapBtoDest.get( linkB.getSource( bref ), sref );
+			final Spot target = mapBtoDest.get( linkB.getTarget( bref ), tref );
+			Link destLink = graph.getEdge( source, target, lref );
 			if ( destLink == null )
-				destLink = graph.addEdge( source, target );
+				destLink = graph.addEdge( source, target, lref );
 			mapBtoDestLinks.put( linkB, destLink );
 		}
 
@@ -241,6 +242,8 @@ public class MergeModels
 		 * ========================================
 		 */
 
+		progress.startPhase( MergeProgress.COPY_TAGS );
+		progress.addCount( graphA.vertices().size() + graphB.vertices().size() );
 		final TagSetModel< Spot, Link > tsm = output.getModel().getTagSetModel();
 		final TagSetStructure tss = output.getTagSetStructure();
 		final TagSetModel< Spot, Link > tsmA = mA.getTagSetModel();
@@ -265,38 +268,8 @@ public class MergeModels
 					set t" for a'
 		analogous for links in A...
 */
-		for ( final Spot spotA : graphA.vertices() )
-		{
-			final Spot destSpot = mapAtoDest.get( spotA );
-			for ( final TagSet tagSet : tssA.getTagSets() )
-			{
-				final Tag tag = tsmA.getVertexTags().tags( tagSet ).get( spotA );
-				if ( tag != null )
-				{
-					// copy ((A))
-					tsm.getVertexTags().set( destSpot, tssAtoCopy.tagMap.get( tag ) );
-
-					// merged
-					tsm.getVertexTags().set( destSpot, tssAtoDest.tagMap.get( tag ) );
-				}
-			}
-		}
-		for ( final Link linkA : graphA.edges() )
-		{
-			final Link destLink = mapAtoDestLinks.get( linkA );
-			for ( final TagSet tagSet : tssA.getTagSets() )
-			{
-				final Tag tag = tsmA.getEdgeTags().tags( tagSet ).get( linkA );
-				if ( tag != null )
-				{
-					// copy ((A))
-					tsm.getEdgeTags().set( destLink, tssAtoCopy.tagMap.get( tag ) );
-
-					// merged
-					tsm.getEdgeTags().set( destLink, tssAtoDest.tagMap.get( tag ) );
-				}
-			}
-		}
+		MergeTags.transferTags( tsmA.getVertexTags(), tssA, mapAtoDest, tsm.getVertexTags(), tssAtoCopy, tssAtoDest, null );
+		MergeTags.transferTags( tsmA.getEdgeTags(), tssA, mapAtoDestLinks, tsm.getEdgeTags(), tssAtoCopy, tssAtoDest, null );
 
 /*
 		for every spot b in B:
@@ -315,50 +288,8 @@ public class MergeModels
 						set t" for b'
 		analogous for links in B...
 */
-		for ( final Spot spotB : graphB.vertices() )
-		{
-			final Spot destSpot = mapBtoDest.get( spotB );
-			for ( final TagSet tagSet : tssB.getTagSets() )
-			{
-				final Tag tag = tsmB.getVertexTags().tags( tagSet ).get( spotB );
-				if ( tag != null )
-				{
-					// copy ((B))
-					tsm.getVertexTags().set( destSpot, tssBtoCopy.tagMap.get( tag ) );
-
-					// merged
-					final TagSet destTagSet = tssBtoDest.tagSetMap.get( tagSet );
-					final Tag destTag = tsm.getVertexTags().tags( destTagSet ).get( destSpot );
-					final Tag expectedDestTag = tssBtoDest.tagMap.get( tag );
-					if ( destTag == null )
-						tsm.getVertexTags().set( destSpot, expectedDestTag );
-					else if ( !destTag.equals( expectedDestTag ) )
-						tsm.getVertexTags().set( destSpot, tagTagConflict );
-				}
-			}
-		}
-		for ( final Link linkB : graphB.edges() )
-		{
-			final Link destLink = mapBtoDestLinks.get( linkB );
-			for ( final TagSet tagSet : tssB.getTagSets() )
-			{
-				final Tag tag = tsmB.getEdgeTags().tags( tagSet ).get( linkB );
-				if ( tag != null )
-				{
-					// copy ((B))
-					tsm.getEdgeTags().set( destLink, tssBtoCopy.tagMap.get( tag ) );
-
-					// merged
-					final TagSet destTagSet = tssBtoDest.tagSetMap.get( tagSet );
-					final Tag destTag = tsm.getEdgeTags().tags( destTagSet ).get( destLink );
-					final Tag expectedDestTag = tssBtoDest.tagMap.get( tag );
-					if ( destTag == null )
-						tsm.getEdgeTags().set( destLink, expectedDestTag );
-					else if ( !destTag.equals( expectedDestTag ) )
-						tsm.getEdgeTags().set( destLink, tagTagConflict );
-				}
-			}
-		}
+		MergeTags.transferTags( tsmB.getVertexTags(), tssB, mapBtoDest, tsm.getVertexTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
+		MergeTags.transferTags( tsmB.getEdgeTags(), tssB, mapBtoDestLinks, tsm.getEdgeTags(), tssBtoCopy, tssBtoDest, tagTagConflict );
 
 
 
@@ -369,11 +300,13 @@ public class MergeModels
 		 * ========================================
 		 */
 
+		progress.startPhase( MergeProgress.MERGE_LABELS );
+		progress.addCount( graphA.vertices().size() + graphB.vertices().size() );
 		for ( final Spot spotA : graphA.vertices() )
 		{
 			if ( MergingUtil.hasLabel( spotA ) )
 			{
-				final Spot destSpot = mapAtoDest.get( spotA );
+				final Spot destSpot = mapAtoDest.get( spotA, sref );
 				destSpot.setLabel( spotA.getLabel() );
 			}
 		}
@@ -382,7 +315,7 @@ public class MergeModels
 		{
 			if ( MergingUtil.hasLabel( spotB ) )
 			{
-				final Spot destSpot = mapBtoDest.get( spotB );
+				final Spot destSpot = mapBtoDest.get( spotB, sref );
 				final String lB = spotB.getLabel();
 				if ( MergingUtil.hasLabel( destSpot ) )
 				{
@@ -401,9 +334,10 @@ public class MergeModels
 		}
 
 		new ModelImporter( output.getModel() ){{ finishImport(); }};
+		progress.finish();
 	}
 
-	private static class MatchingGraphUtils
+	static class MatchingGraphUtils
 	{
 		private final MatchingEdge eref1;
 		private final MatchingEdge eref2;
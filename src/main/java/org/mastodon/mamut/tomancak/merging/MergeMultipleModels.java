@@ -0,0 +1,439 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefMaps;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.graph.algorithm.traversal.UndirectedDepthFirstIterator;
+import org.mastodon.mamut.io.importer.ModelImporter;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots;
+import org.mastodon.mamut.tomancak.util.Glasbey;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.util.TreeUtils;
+
+/**
+ * Merges any number of models into one output model in a single pass,
+ * instead of chaining pairwise merges with {@link MergeModels}.
+ * <p>
+ * All models are put into one {@link MatchingGraph}. To keep the cost
+ * linear in the number of models, match candidates are only searched
+ * between every model and the {@link #NUM_PARTNERS} models following it in
+ * the list, matches between other models are established transitively. The
+ * matching graph is pruned with
+ * {@link MatchCandidates#pruneMatchingGraphInPlace(MatchingGraph)}, which
+ * applies the ratio test separately for every target model.
+ * <p>
+ * Every connected component of the pruned matching graph is resolved as a
+ * whole: If it contains at most one spot per model, and the parents of its
+ * spots were merged into the same spot, it becomes a single spot in the
+ * output, with the shape of the spot from the first model. Otherwise every
+ * spot of the component is copied to the output and tagged as conflict.
+ * Links, tags and labels are then transferred from all models, like in
+ * {@link MergeModels}.
+ */
+public class MergeMultipleModels
+{
+	/**
+	 * Number of following models that every model is matched against.
+	 * Matching against more than one model bridges spots that are missing
+	 * in a single model.
+	 */
+	public static final int NUM_PARTNERS = 2;
+
+	public static void merge( final List< Model > models, final OutputDataSet output,
+			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold,
+			final int numThreads )
+	{
+		final int minTimepoint = 0;
+		final int maxTimepoint = models.stream().mapToInt( TreeUtils::getMaxTimepoint ).max().orElse( 0 );
+		merge( models, output, minTimepoint, maxTimepoint, distCutoff, mahalanobisDistCutoff, ratioThreshold, numThreads );
+	}
+
+	/**
+	 * Merge {@code models} into {@code output}.
+	 *
+	 * @param models
+	 *            the models to merge. The spots of the models are tagged with
+	 *            source tags "A", "B", "C", ... in this order.
+	 * @param numThreads
+	 *            number of threads used for the interpolation of missing
+	 *            spots and for the search of match candidates. The result
+	 *            does not depend on the number of threads.
+	 */
+	public static void merge( final List< Model > models, final OutputDataSet output,
+			final int minTimepoint, final int maxTimepoint,
+			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold,
+			final int numThreads )
+	{
+		merge( models, output, minTimepoint, maxTimepoint, new MergeSettings( distCutoff, mahalanobisDistCutoff, ratioThreshold ).numThreads( numThreads ) );
+	}
+
+	/**
+	 * Merge {@code models} into {@code output}, with the cutoffs, number of
+	 * threads and covariance interpolation given by {@code settings}. The
+	 * window size, candidate cache and storage of the match candidates of
+	 * the settings are ignored.
+	 * <p>
+	 * The phases of the merge are reported to the
+	 * {@link MergeSettings#getProgress() progress} of the settings. It
+	 * records the time and the number of processed spots (or candidates) of
+	 * every phase, and is checked for cancellation between phases, for every
+	 * link of the interpolation, and for every timepoint of the candidate
+	 * search and the resolution of components.
+	 *
+	 * @param models
+	 *            the models to merge. The spots of the models are tagged with
+	 *            source tags "A", "B", "C", ... in this order.
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress was canceled. The output model is
+	 *             incomplete in this case.
+	 */
+	public static void merge( final List< Model > models, final OutputDataSet output,
+			final int minTimepoint, final int maxTimepoint,
+			final MergeSettings settings )
+	{
+		final int numThreads = settings.getNumThreads();
+		final MergeProgress progress = settings.getProgress();
+
+		new ModelImporter( output.getModel() ){{ startImport(); }};
+
+		progress.startPhase( MergeProgress.INTERPOLATION );
+		final int numModels = models.size();
+		final List< ModelGraph > graphs = new ArrayList<>( numModels );
+		for ( final Model model : models )
+		{
+			InterpolateMissingSpots.interpolate( model, numThreads, settings.getCovarianceInterpolation(), progress );
+			graphs.add( model.getGraph() );
+			progress.addCount( model.getGraph().vertices().size() );
+		}
+
+		/*
+		 * ========================================
+		 *           build matching graph
+		 * ========================================
+		 */
+
+		// NB: Without SpotCovarianceCaches, the candidate search builds them
+		// per timepoint, like in MergeModels, instead of holding the
+		// covariances of all spots of all models at once.
+		progress.startPhase( MergeProgress.CANDIDATE_SEARCH );
+		final MatchCandidates candidates = new MatchCandidates( settings.getDistCutoff(), settings.getMahalanobisDistCutoff(), settings.getRatioThreshold(), numThreads, progress );
+		final MatchingGraph matching = MatchingGraph.newWithAllSpots( graphs );
+		for ( int i = 0; i < numModels; i++ )
+			for ( int j = i + 1; j <= Math.min( i + NUM_PARTNERS, numModels - 1 ); j++ )
+				candidates.buildMatchingGraph( matching, models.get( i ), models.get( j ), null, null, minTimepoint, maxTimepoint );
+		progress.addCount( matching.edges().size() );
+
+		progress.startPhase( MergeProgress.PRUNING );
+		candidates.pruneMatchingGraphInPlace( matching );
+		progress.addCount( matching.edges().size() );
+
+		final IntSupplier colors = Glasbey.getGlasbeyLightColorSupplier();
+		final Tag[] sourceTags = new Tag[ numModels ];
+		final Tag[] singletonTags = new Tag[ numModels ];
+		for ( int i = 0; i < numModels; i++ )
+		{
+			final int color = colors.getAsInt();
+			sourceTags[ i ] = output.addSourceTag( sourceName( i ), color );
+			singletonTags[ i ] = output.addConflictTag( "Singleton " + sourceName( i ), color );
+		}
+		final Tag tagMatch = output.addConflictTag( "Match", 0xffccffcc );
+		final Tag tagConflict = output.addConflictTag( "Conflict", 0xffff0000 );
+		final Tag tagTagConflict = output.addTagConflictTag( "Tag Conflict", 0xffff0000 );
+		final Tag tagLabelConflict = output.addLabelConflictTag( "Label Conflict", 0xffff0000 );
+
+		final ModelGraph graph = output.getModel().getGraph();
+		final ObjTags< Spot > vertexTags = output.getModel().getTagSetModel().getVertexTags();
+
+		/*
+		 * ========================================
+		 *           resolve components
+		 * ========================================
+		 */
+
+/*
+		for every timepoint t (ascending!):
+			for every model m, for every spot s of m in t:
+				if s is already mapped:
+					continue
+				collect connected component C of s in the matching graph
+				if C contains at most one spot per model AND
+						the parents of all spots in C are mapped to the same spot p':
+					add s' with shape of the first spot in C
+					add mapping: c --> s' for all c in C
+					tag s' with source tags of C, and "Match" or "Singleton"
+				else:
+					for every c in C:
+						add c' with shape of c
+						add mapping: c --> c'
+						tag c' with source tag of c, and "Conflict"
+*/
+		final List< RefRefMap< Spot, Spot > > mapToDest = new ArrayList<>( numModels );
+		final Spot[] spotRefs = new Spot[ numModels ];
+		final Spot[] parentRefs = new Spot[ numModels ];
+		final Link[] linkRefs = new Link[ numModels ];
+		for ( int i = 0; i < numModels; i++ )
+		{
+			mapToDest.add( RefMaps.createRefRefMap( graphs.get( i ).vertices(), graph.vertices() ) );
+			spotRefs[ i ] = graphs.get( i ).vertexRef();
+			parentRefs[ i ] = graphs.get( i ).vertexRef();
+			linkRefs[ i ] = graphs.get( i ).edgeRef();
+		}
+		final Spot vref = graph.vertexRef();
+		final Spot pref = graph.vertexRef();
+		final MatchingVertex mref = matching.vertexRef();
+		final RefList< MatchingVertex > component = RefCollections.createRefList( matching.vertices() );
+		final UndirectedDepthFirstIterator< MatchingVertex, MatchingEdge > miter = new UndirectedDepthFirstIterator<>( matching );
+		final boolean[] inComponent = new boolean[ numModels ];
+		final double[] pos = new double[ 3 ];
+		final double[][] cov = new double[ 3 ][ 3 ];
+
+		progress.startPhase( MergeProgress.RESOLVE_COMPONENTS );
+		progress.addCount( matching.vertices().size() );
+		final int lastTimepoint = Math.max( maxTimepoint, models.stream().mapToInt( TreeUtils::getMaxTimepoint ).max().orElse( 0 ) );
+		for ( int timepoint = 0; timepoint <= lastTimepoint; timepoint++ )
+		{
+			progress.checkCanceled();
+			progress.showProgress( timepoint, lastTimepoint + 1 );
+			for ( int i = 0; i < numModels; i++ )
+			{
+				final SpatialIndex< Spot > index = models.get( i ).getSpatioTemporalIndex().getSpatialIndex( timepoint );
+				for ( final Spot spot : index )
+				{
+					if ( mapToDest.get( i ).containsKey( spot ) )
+						continue;
+
+					component.clear();
+					miter.reset( matching.getVertex( spot, mref ) );
+					while ( miter.hasNext() )
+						component.add( miter.next() );
+
+					boolean consensus = true;
+					Arrays.fill( inComponent, false );
+					Spot parentDest = null;
+					int first = numModels;
+					for ( final MatchingVertex mv : component )
+					{
+						final int graphId = mv.graphId();
+						if ( inComponent[ graphId ] )
+						{
+							consensus = false;
+							break;
+						}
+						inComponent[ graphId ] = true;
+						first = Math.min( first, graphId );
+
+						final Spot s = mv.getSpot( spotRefs[ graphId ] );
+						if ( !s.incomingEdges().isEmpty() )
+						{
+							final Spot parent = s.incomingEdges().get( 0, linkRefs[ graphId ] ).getSource( parentRefs[ graphId ] );
+							final Spot dest = mapToDest.get( graphId ).get( parent, vref );
+							if ( dest != null )
+							{
+								if ( parentDest == null )
+									parentDest = graph.vertices().getRefPool().getObject( dest.getInternalPoolIndex(), pref );
+								else if ( !parentDest.equals( dest ) )
+								{
+									consensus = false;
+									break;
+								}
+							}
+						}
+					}
+
+					if ( consensus )
+					{
+						final Spot firstSpot = getSpot( component, first, spotRefs[ first ] );
+						firstSpot.localize( pos );
+						firstSpot.getCovariance( cov );
+						final Spot destSpot = graph.addVertex( vref ).init( timepoint, pos, cov );
+						for ( final MatchingVertex mv : component )
+						{
+							final int graphId = mv.graphId();
+							vertexTags.set( destSpot, sourceTags[ graphId ] );
+							mapToDest.get( graphId ).put( mv.getSpot( spotRefs[ graphId ] ), destSpot );
+						}
+						vertexTags.set( destSpot, component.size() == 1 ? singletonTags[ first ] : tagMatch );
+					}
+					else
+					{
+						for ( final MatchingVertex mv : component )
+						{
+							final int graphId = mv.graphId();
+							final Spot s = mv.getSpot( spotRefs[ graphId ] );
+							s.localize( pos );
+							s.getCovariance( cov );
+							final Spot destSpot = graph.addVertex( vref ).init( s.getTimepoint(), pos, cov );
+							vertexTags.set( destSpot, sourceTags[ graphId ] );
+							vertexTags.set( destSpot, tagConflict );
+							mapToDest.get( graphId ).put( s, destSpot );
+						}
+					}
+				}
+			}
+		}
+
+/*
+		for every model m, for every edge (s1,s2) in m
+			get s1', s2' from mapping
+			add edge (s1',s2') if not exists
+*/
+		progress.startPhase( MergeProgress.COPY_LINKS );
+		final List< RefRefMap< Link, Link > > mapToDestLinks = new ArrayList<>( numModels );
+		final Link eref = graph.edgeRef();
+		for ( int i = 0; i < numModels; i++ )
+		{
+			final RefRefMap< Spot, Spot > map = mapToDest.get( i );
+			final RefRefMap< Link, Link > linkMap = RefMaps.createRefRefMap( graphs.get( i ).edges(), graph.edges() );
+			for ( final Link link : graphs.get( i ).edges() )
+			{
+				final Spot source = map.get( link.getSource( spotRefs[ i ] ), vref );
+				final Spot target = map.get( link.getTarget( parentRefs[ i ] ), pref );
+				Link destLink = graph.getEdge( source, target, eref );
+				if ( destLink == null )
+					destLink = graph.addEdge( source, target, eref );
+				linkMap.put( link, destLink );
+			}
+			mapToDestLinks.add( linkMap );
+			progress.addCount( graphs.get( i ).edges().size() );
+		}
+
+		/*
+		 * ========================================
+		 *           transfer tags
+		 * ========================================
+		 */
+
+/*
+		for every model m, for every spot s in m:
+			get s'
+			for every tagset in m:
+				get tag t of (s, tagset)
+				if t != null:
+					set copy ((m)) of t for s'
+					get t" as merge of t
+					if s' has a different tag x" in the merged tagset:
+						mark tag conflict for s'
+					else:
+						set t" for s'
+		analogous for links...
+*/
+		progress.startPhase( MergeProgress.COPY_TAGS );
+		final TagSetModel< Spot, Link > tsm = output.getModel().getTagSetModel();
+		final TagSetStructure tss = output.getTagSetStructure();
+		final List< TagSetStructureMaps > tssToCopy = new ArrayList<>( numModels );
+		final List< TagSetStructureMaps > tssToDest = new ArrayList<>( numModels );
+		for ( int i = 0; i < numModels; i++ )
+			tssToCopy.add( MergeTags.addTagSetStructureCopy( tss, models.get( i ).getTagSetModel().getTagSetStructure(), "((" + sourceName( i ) + ")) " ) );
+		for ( int i = 0; i < numModels; i++ )
+			tssToDest.add( MergeTags.mergeTagSetStructure( tss, models.get( i ).getTagSetModel().getTagSetStructure() ) );
+		output.updateTagSetModel();
+
+		for ( int i = 0; i < numModels; i++ )
+		{
+			final TagSetModel< Spot, Link > tsmSource = models.get( i ).getTagSetModel();
+			final TagSetStructure tssSource = tsmSource.getTagSetStructure();
+			MergeTags.transferTags( tsmSource.getVertexTags(), tssSource, mapToDest.get( i ), tsm.getVertexTags(), tssToCopy.get( i ), tssToDest.get( i ), tagTagConflict );
+			MergeTags.transferTags( tsmSource.getEdgeTags(), tssSource, mapToDestLinks.get( i ), tsm.getEdgeTags(), tssToCopy.get( i ), tssToDest.get( i ), tagTagConflict );
+			progress.addCount( graphs.get( i ).vertices().size() );
+		}
+
+		/*
+		 * ========================================
+		 *           transfer labels
+		 * ========================================
+		 */
+
+		progress.startPhase( MergeProgress.MERGE_LABELS );
+		for ( int i = 0; i < numModels; i++ )
+		{
+			final RefRefMap< Spot, Spot > map = mapToDest.get( i );
+			progress.addCount( graphs.get( i ).vertices().size() );
+			for ( final Spot spot : graphs.get( i ).vertices() )
+			{
+				if ( !MergingUtil.hasLabel( spot ) )
+					continue;
+				final Spot destSpot = map.get( spot, vref );
+				final String label = spot.getLabel();
+				if ( MergingUtil.hasLabel( destSpot ) )
+				{
+					if ( !destSpot.getLabel().equals( label ) )
+					{
+						destSpot.setLabel( destSpot.getLabel() + " @@@ " + label );
+						tsm.getVertexTags().set( destSpot, tagLabelConflict );
+					}
+				}
+				else
+					destSpot.setLabel( label );
+			}
+		}
+
+		new ModelImporter( output.getModel() ){{ finishImport(); }};
+		progress.finish();
+	}
+
+	/**
+	 * Returns the spot of the vertex in {@code component} that belongs to
+	 * model {@code graphId}.
+	 */
+	private static Spot getSpot( final RefList< MatchingVertex > component, final int graphId, final Spot ref )
+	{
+		for ( final MatchingVertex mv : component )
+			if ( mv.graphId() == graphId )
+				return mv.getSpot( ref );
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Name of the i-th model: "A", "B", ..., "Z", "AA", "AB", ...
+	 */
+	static String sourceName( final int i )
+	{
+		return i < 26
+				? String.valueOf( ( char ) ( 'A' + i ) )
+				: sourceName( i / 26 - 1 ) + sourceName( i % 26 );
+	}
+}
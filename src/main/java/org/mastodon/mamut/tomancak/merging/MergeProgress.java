@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import org.scijava.Cancelable;
+import org.scijava.app.StatusService;
+
+/**
+ * Progress reporting, cooperative cancellation and phase timing for the
+ * merge operations.
+ * <p>
+ * A merge is divided into named phases (e.g. "interpolation", "candidate
+ * search", ...), see {@link #startPhase(String)}. For every phase, the wall
+ * clock time and a count of processed items (usually spots) are recorded.
+ * Starting a phase that was already started before (e.g. in the next window
+ * of {@link StreamingMergeModels}) continues it, so time and counts
+ * accumulate. The phases are reported to the {@link StatusService} (if any)
+ * and are available as a machine-readable JSON summary, see
+ * {@link #getSummary()}.
+ * <p>
+ * The merge checks {@link #checkCanceled()} between phases and per timepoint,
+ * and stops with a {@link CancellationException} after {@link #cancel(String)}
+ * was called, e.g., from another thread.
+ */
+public class MergeProgress implements Cancelable
+{
+	public static final String INTERPOLATION = "interpolation";
+
+	public static final String CANDIDATE_SEARCH = "candidate search";
+
+	public static final String PRUNING = "pruning";
+
+	public static final String COPY_SPOTS_A = "spot copy A";
+
+	public static final String PLACE_SPOTS_B = "spot placement B";
+
+	public static final String RESOLVE_COMPONENTS = "component resolution";
+
+	public static final String COPY_LINKS = "link copy";
+
+	public static final String COPY_TAGS = "tag copy";
+
+	public static final String MERGE_LABELS = "label merge";
+
+	private final StatusService statusService;
+
+	private final Map< String, Phase > phases = new LinkedHashMap<>();
+
+	private Phase current;
+
+	private volatile String cancelReason;
+
+	public MergeProgress()
+	{
+		this( null );
+	}
+
+	/**
+	 * @param statusService
+	 *            the status service to report phases and progress to, may be
+	 *            {@code null}.
+	 */
+	public MergeProgress( final StatusService statusService )
+	{
+		this.statusService = statusService;
+	}
+
+	/**
+	 * Ends the current phase and starts (or continues) the phase with the
+	 * given name.
+	 *
+	 * @throws CancellationException
+	 *             if the merge was canceled.
+	 */
+	public void startPhase( final String name )
+	{
+		checkCanceled();
+		stopCurrentPhase();
+		current = phases.computeIfAbsent( name, Phase::new );
+		current.startNanos = System.nanoTime();
+		if ( statusService != null )
+			statusService.showStatus( "Merging: " + name );
+	}
+
+	/**
+	 * Adds {@code count} processed items to the current phase.
+	 */
+	public void addCount( final long count )
+	{
+		if ( current != null )
+			current.count += count;
+	}
+
+	/**
+	 * Reports progress within the current phase, e.g., timepoints processed.
+	 */
+	public void showProgress( final int done, final int total )
+	{
+		if ( statusService != null )
+			statusService.showProgress( done, total );
+	}
+
+	/**
+	 * @throws CancellationException
+	 *             if the merge was canceled.
+	 */
+	public void checkCanceled()
+	{
+		final String reason = cancelReason;
+		if ( reason != null )
+			throw new CancellationException( reason );
+	}
+
+	/**
+	 * Ends the current phase.
+	 */
+	public void finish()
+	{
+		stopCurrentPhase();
+		if ( statusService != null )
+		{
+			statusService.showProgress( 1, 1 );
+			statusService.showStatus( String.format( Locale.ROOT, "Merging finished in %.1f s.", getTotalMillis() / 1000 ) );
+		}
+	}
+
+	private void stopCurrentPhase()
+	{
+		if ( current != null )
+		{
+			current.nanos += System.nanoTime() - current.startNanos;
+			current = null;
+		}
+	}
+
+	/**
+	 * Returns the total time of all phases in milliseconds.
+	 */
+	public double getTotalMillis()
+	{
+		return phases.values().stream().mapToLong( p -> p.nanos ).sum() / 1e6;
+	}
+
+	/**
+	 * Returns the wall clock time of the phase in milliseconds, or 0 if the
+	 * phase was never started.
+	 */
+	public double getMillis( final String phase )
+	{
+		final Phase p = phases.get( phase );
+		return p == null ? 0 : p.nanos / 1e6;
+	}
+
+	/**
+	 * Returns the count of processed items of the phase, or 0 if the phase
+	 * was never started.
+	 */
+	public long getCount( final String phase )
+	{
+		final Phase p = phases.get( phase );
+		return p == null ? 0 : p.count;
+	}
+
+	/**
+	 * Returns a JSON summary of the phases, in the order they were first
+	 * started. For example
+	 *
+	 * <pre>
+	 * {"phases":[{"name":"interpolation","count":1200,"millis":35.2},...],"totalMillis":512.7,"canceled":false}
+	 * </pre>
+	 */
+	public String getSummary()
+	{
+		final StringBuilder sb = new StringBuilder( "{\"phases\":[" );
+		boolean first = true;
+		for ( final Phase p : phases.values() )
+		{
+			if ( !first )
+				sb.append( ',' );
+			first = false;
+			sb.append( String.format( Locale.ROOT, "{\"name\":\"%s\",\"count\":%d,\"millis\":%.3f}",
+					p.name.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ), p.count, p.nanos / 1e6 ) );
+		}
+		sb.append( String.format( Locale.ROOT, "],\"totalMillis\":%.3f,\"canceled\":%b}", getTotalMillis(), isCanceled() ) );
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the {@link #getSummary() summary} to {@code file}.
+	 */
+	public void writeSummary( final File file ) throws IOException
+	{
+		try (final Writer writer = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			writer.write( getSummary() );
+			writer.write( System.lineSeparator() );
+		}
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason == null ? "Canceled." : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	private static class Phase
+	{
+		private final String name;
+
+		private long count;
+
+		private long nanos;
+
+		private long startNanos;
+
+		Phase( final String name )
+		{
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.io.ProjectCreator;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots.CovarianceInterpolation;
+import org.scijava.Context;
+import org.scijava.ItemVisibility;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+/**
+ * Headless command that merges two Mastodon projects from disk and saves
+ * the result as a new project. Unlike {@link org.mastodon.mamut.tomancak.MergeTwoProjects}
+ * it doesn't need a UI, so it can be used from scripts, e.g.
+ *
+ * <pre>
+ * #@ CommandService command
+ * command.run( MergeProjectsCommand.class, true,
+ *         "projectA", new File( "a.mastodon" ),
+ *         "projectB", new File( "b.mastodon" ),
+ *         "output", new File( "merged.mastodon" ) ).get();
+ * </pre>
+ *
+ * or from the command line with {@link #main(String[])}, e.g. for batch
+ * runs on a cluster.
+ */
+@Plugin( type = Command.class, headless = true, label = "Merge Two Projects (Headless)" )
+public class MergeProjectsCommand implements Command
+{
+	@Parameter( visibility = ItemVisibility.MESSAGE, required = false, persist = false )
+	private String documentation = "<html>\n"
+			+ "<body width=15cm align=left>\n"
+			+ "<h1>Merge Two Projects</h1>\n"
+			+ "<p>Merges two Mastodon projects and saves the result as a new project, "
+			+ "that uses the image data of project A.</p>\n"
+			+ "</body>\n"
+			+ "</html>\n";
+
+	@Parameter( label = "Project A", style = FileWidget.OPEN_STYLE )
+	private File projectA;
+
+	@Parameter( label = "Project B", style = FileWidget.OPEN_STYLE )
+	private File projectB;
+
+	@Parameter( label = "Save merged project to", style = FileWidget.SAVE_STYLE )
+	private File output;
+
+	@Parameter( label = "Absolute distance cutoff" )
+	private double distCutoff = 1000;
+
+	@Parameter( label = "Mahalanobis distance cutoff" )
+	private double mahalanobisDistCutoff = 1;
+
+	@Parameter( label = "Ratio threshold" )
+	private double ratioThreshold = 2;
+
+	@Parameter( label = "Number of threads (0 = all processors)", min = "0" )
+	private int numThreads = 0;
+
+	@Parameter( label = "Timepoints per window (0 = all)", min = "0" )
+	private int windowSize = 0;
+
+	@Parameter( label = "Shape of interpolated spots" )
+	private CovarianceInterpolation covarianceInterpolation = CovarianceInterpolation.LOG_EUCLIDEAN;
+
+	@Parameter( label = "Cache match candidates" )
+	private boolean cacheCandidates = false;
+
+	@Parameter( label = "Keep match candidates on disk" )
+	private boolean memoryMapped = false;
+
+	@Parameter( label = "Write summary (JSON) to", style = FileWidget.SAVE_STYLE, required = false )
+	private File summary;
+
+	@Parameter
+	private Context context;
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			final CandidateCache cache = cacheCandidates ? new CandidateCache( CandidateCache.defaultDirectory(), context.service( LogService.class ) ) : null;
+			final MergeProgress progress = new MergeProgress( context.service( StatusService.class ) );
+			final MergeSettings settings = new MergeSettings( distCutoff, mahalanobisDistCutoff, ratioThreshold )
+					.numThreads( numThreads )
+					.windowSize( windowSize )
+					.candidateCache( cache )
+					.covarianceInterpolation( covarianceInterpolation )
+					.memoryMapped( memoryMapped )
+					.progress( progress );
+			mergeProjects( context, projectA, projectB, output, settings );
+			if ( summary != null )
+				progress.writeSummary( summary );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Merging " + projectA + " and " + projectB + " failed.", e );
+		}
+	}
+
+	/**
+	 * Merges the projects {@code projectA} and {@code projectB}, see
+	 * {@link MergeDatasets#merge(Dataset, Dataset, OutputDataSet, MergeSettings)},
+	 * and saves the result to {@code output}. The merged project uses the
+	 * image data of project A.
+	 *
+	 * @param settings
+	 *            the parameters of the merge. A number of threads of
+	 *            {@code 0} uses all available processors.
+	 * @throws CancellationException
+	 *             if the progress of the {@code settings} was canceled.
+	 */
+	public static void mergeProjects( final Context context,
+			final File projectA, final File projectB, final File output,
+			final MergeSettings settings ) throws Exception
+	{
+		if ( settings.getNumThreads() <= 0 )
+			settings.numThreads( Runtime.getRuntime().availableProcessors() );
+		final Dataset dsA = new Dataset( projectA.getAbsolutePath() );
+		final Dataset dsB = new Dataset( projectB.getAbsolutePath() );
+		final File datasetXmlFile = dsA.project().getDatasetXmlFile();
+		final ProjectModel projectMerged = ProjectCreator.createProjectFromBdvFile( datasetXmlFile, context );
+		final OutputDataSet outputDataSet = new OutputDataSet( projectMerged.getModel() );
+		MergeDatasets.merge( dsA, dsB, outputDataSet, settings );
+		outputDataSet.setDatasetXmlFile( datasetXmlFile );
+		outputDataSet.saveProject( context, projectMerged.getSharedBdvData(), output );
+	}
+
+	/**
+	 * Command line entry point:
+	 *
+	 * <pre>
+	 * MergeProjectsCommand projectA projectB output [distCutoff mahalanobisDistCutoff ratioThreshold [numThreads [windowSize [covarianceInterpolation]]]]
+	 * </pre>
+	 *
+	 * where {@code covarianceInterpolation} is {@code LOG_EUCLIDEAN} (the
+	 * default) or {@code RADIUS_RATIO}.
+	 *
+	 * Prints a JSON summary of the merge phases to stdout, and exits with
+	 * status 1 if the merge fails.
+	 */
+	public static void main( final String... args )
+	{
+		if ( args.length < 3 )
+		{
+			System.err.println( "Usage: MergeProjectsCommand projectA projectB output "
+					+ "[distCutoff mahalanobisDistCutoff ratioThreshold [numThreads [windowSize [covarianceInterpolation]]]]" );
+			System.exit( 2 );
+		}
+		System.setProperty( "java.awt.headless", "true" );
+		final double distCutoff = args.length > 3 ? Double.parseDouble( args[ 3 ] ) : 1000;
+		final double mahalanobisDistCutoff = args.length > 4 ? Double.parseDouble( args[ 4 ] ) : 1;
+		final double ratioThreshold = args.length > 5 ? Double.parseDouble( args[ 5 ] ) : 2;
+		final int numThreads = args.length > 6 ? Integer.parseInt( args[ 6 ] ) : 0;
+		final int windowSize = args.length > 7 ? Integer.parseInt( args[ 7 ] ) : 0;
+		final CovarianceInterpolation covarianceInterpolation = args.length > 8 ? CovarianceInterpolation.valueOf( args[ 8 ] ) : CovarianceInterpolation.LOG_EUCLIDEAN;
+
+		int status = 0;
+		try (final Context context = new Context())
+		{
+			final MergeSettings settings = new MergeSettings( distCutoff, mahalanobisDistCutoff, ratioThreshold )
+					.numThreads( numThreads )
+					.windowSize( windowSize )
+					.covarianceInterpolation( covarianceInterpolation );
+			mergeProjects( context, new File( args[ 0 ] ), new File( args[ 1 ] ), new File( args[ 2 ] ), settings );
+			System.out.println( settings.getProgress().getSummary() );
+		}
+		catch ( final Exception e )
+		{
+			e.printStackTrace();
+			status = 1;
+		}
+		System.exit( status );
+	}
+}
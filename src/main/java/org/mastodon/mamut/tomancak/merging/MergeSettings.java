@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots.CovarianceInterpolation;
+
+/**
+ * Parameters of a merge, see
+ * {@link MergeModels#merge(org.mastodon.mamut.model.Model, org.mastodon.mamut.model.Model, MergeDatasets.OutputDataSet, int, int, MergeSettings)}
+ * and
+ * {@link MergeDatasets#merge(Dataset, Dataset, MergeDatasets.OutputDataSet, MergeSettings)}.
+ * <p>
+ * The cutoffs are required, all other parameters have defaults and can be
+ * changed with the chained setters, e.g.
+ *
+ * <pre>
+ * new MergeSettings( 1000, 1, 2 ).numThreads( 8 ).windowSize( 100 )
+ * </pre>
+ */
+public class MergeSettings
+{
+	private final double distCutoff;
+
+	private final double mahalanobisDistCutoff;
+
+	private final double ratioThreshold;
+
+	private int numThreads = 1;
+
+	private int windowSize = 0;
+
+	private CandidateCache candidateCache = null;
+
+	private CovarianceInterpolation covarianceInterpolation = CovarianceInterpolation.LOG_EUCLIDEAN;
+
+	private boolean memoryMapped = false;
+
+	private MergeProgress progress = null;
+
+	/**
+	 * @param distCutoff
+	 *            absolute distance cutoff of match candidates.
+	 * @param mahalanobisDistCutoff
+	 *            Mahalanobis distance cutoff of match candidates.
+	 * @param ratioThreshold
+	 *            the ratio of the distances to the second best and the best
+	 *            candidate that a match needs to have.
+	 */
+	public MergeSettings( final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold )
+	{
+		this.distCutoff = distCutoff;
+		this.mahalanobisDistCutoff = mahalanobisDistCutoff;
+		this.ratioThreshold = ratioThreshold;
+	}
+
+	/**
+	 * Number of threads used for the interpolation of missing spots, for the
+	 * search of match candidates, and for deciding the placement of the
+	 * spots of B. The result does not depend on the number of threads.
+	 * Default is 1.
+	 */
+	public MergeSettings numThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+		return this;
+	}
+
+	/**
+	 * If positive, the time axis is processed in windows of this number of
+	 * timepoints to bound the memory consumption, see
+	 * {@link StreamingMergeModels}. If zero or negative (the default), all
+	 * timepoints are processed at once, see {@link MergeModels}.
+	 */
+	public MergeSettings windowSize( final int windowSize )
+	{
+		this.windowSize = windowSize;
+		return this;
+	}
+
+	/**
+	 * If not {@code null}, match candidates are reused from, and stored to,
+	 * this cache. The result does not depend on whether the cache is used.
+	 * The cache is only used if all timepoints are processed at once. Default
+	 * is {@code null}.
+	 */
+	public MergeSettings candidateCache( final CandidateCache candidateCache )
+	{
+		this.candidateCache = candidateCache;
+		return this;
+	}
+
+	/**
+	 * How to interpolate the shape of spots that are inserted into gaps of
+	 * the input tracks. Default is
+	 * {@link CovarianceInterpolation#LOG_EUCLIDEAN}. It blends the shapes
+	 * and orientations of both neighboring spots, while
+	 * {@link CovarianceInterpolation#RADIUS_RATIO} keeps the orientation of
+	 * the first one. Inserted spots of rotating or elongated cells therefore
+	 * match the other model better, and cause fewer spurious conflicts.
+	 */
+	public MergeSettings covarianceInterpolation( final CovarianceInterpolation covarianceInterpolation )
+	{
+		this.covarianceInterpolation = covarianceInterpolation;
+		return this;
+	}
+
+	/**
+	 * If {@code true}, the graph of match candidates is stored in temporary
+	 * memory-mapped files instead of the heap, see
+	 * {@link MatchingGraph#newMemoryMapped(java.io.File, org.mastodon.mamut.model.Model...)}.
+	 * This only applies if all timepoints are processed at once, the windows
+	 * of a streaming merge are small anyway. Default is {@code false}.
+	 */
+	public MergeSettings memoryMapped( final boolean memoryMapped )
+	{
+		this.memoryMapped = memoryMapped;
+		return this;
+	}
+
+	/**
+	 * Receives the phases of the merge, and can be used to cancel it. If
+	 * {@code null} (the default), a new {@link MergeProgress} is used.
+	 */
+	public MergeSettings progress( final MergeProgress progress )
+	{
+		this.progress = progress;
+		return this;
+	}
+
+	public double getDistCutoff()
+	{
+		return distCutoff;
+	}
+
+	public double getMahalanobisDistCutoff()
+	{
+		return mahalanobisDistCutoff;
+	}
+
+	public double getRatioThreshold()
+	{
+		return ratioThreshold;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	public CandidateCache getCandidateCache()
+	{
+		return candidateCache;
+	}
+
+	public CovarianceInterpolation getCovarianceInterpolation()
+	{
+		return covarianceInterpolation;
+	}
+
+	public boolean isMemoryMapped()
+	{
+		return memoryMapped;
+	}
+
+	/**
+	 * Returns the {@link MergeProgress} of the merge. If none was set, a new
+	 * one is created and kept, such that it can be queried after the merge.
+	 */
+	public MergeProgress getProgress()
+	{
+		if ( progress == null )
+			progress = new MergeProgress();
+		return progress;
+	}
+}
@@ -29,8 +29,13 @@
 package org.mastodon.mamut.tomancak.merging;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.BiFunction;
 
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.ObjTags;
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.model.tag.TagSetStructure.Tag;
 import org.mastodon.model.tag.TagSetStructure.TagSet;
@@ -105,6 +110,154 @@ public class MergeTags
 		return maps;
 	}
 
+	/**
+	 * Transfers the tags of all objects of a source model to the
+	 * corresponding objects of the destination model. For every source tag
+	 * {@code t}, the destination objects get the copied tag
+	 * {@code copyMaps.tagMap.get( t )} and the merged tag
+	 * {@code mergeMaps.tagMap.get( t )}.
+	 * <p>
+	 * The tags are transferred tag by tag: the objects are taken from
+	 * {@link ObjTagMap#getTaggedWith(Object)}, and the destination tags are
+	 * looked up once per tag set in dense arrays, indexed by the position of
+	 * the source tag in its tag set. Thus, untagged objects are not visited
+	 * at all, and there are no per-object lookups in the
+	 * {@link TagSetStructureMaps}.
+	 *
+	 * @param sourceTags
+	 *            the tags of the source objects.
+	 * @param sourceTagSetStructure
+	 *            the tag set structure of the source model.
+	 * @param sourceToDest
+	 *            maps source objects to destination objects. Every tagged
+	 *            source object must be mapped.
+	 * @param destTags
+	 *            the tags of the destination objects.
+	 * @param copyMaps
+	 *            maps source tags to copied tags, see
+	 *            {@link #addTagSetStructureCopy(TagSetStructure, TagSetStructure, String)}.
+	 * @param mergeMaps
+	 *            maps source tags to merged tags, see
+	 *            {@link #mergeTagSetStructure(TagSetStructure, TagSetStructure)}.
+	 * @param conflictTag
+	 *            if {@code null}, the merged tag is always set. Otherwise,
+	 *            the merged tag is only set if the destination object has no
+	 *            tag in the merged tag set yet, and {@code conflictTag} is set
+	 *            if it has a different tag.
+	 */
+	public static < O, D > void transferTags(
+			final ObjTags< O > sourceTags,
+			final TagSetStructure sourceTagSetStructure,
+			final RefRefMap< O, D > sourceToDest,
+			final ObjTags< D > destTags,
+			final TagSetStructureMaps copyMaps,
+			final TagSetStructureMaps mergeMaps,
+			final Tag conflictTag )
+	{
+		final D ref = sourceToDest.createValueRef();
+		transferTags( sourceTags, sourceTagSetStructure, sourceToDest::get, ref, destTags, copyMaps, mergeMaps, conflictTag );
+		sourceToDest.releaseValueRef( ref );
+	}
+
+	/**
+	 * Same as
+	 * {@link #transferTags(ObjTags, TagSetStructure, RefRefMap, ObjTags, TagSetStructureMaps, TagSetStructureMaps, Tag)},
+	 * but with a {@link PoolIndexMap} from source to destination objects.
+	 */
+	public static < O, D > void transferTags(
+			final ObjTags< O > sourceTags,
+			final TagSetStructure sourceTagSetStructure,
+			final PoolIndexMap< O, D > sourceToDest,
+			final ObjTags< D > destTags,
+			final TagSetStructureMaps copyMaps,
+			final TagSetStructureMaps mergeMaps,
+			final Tag conflictTag )
+	{
+		final D ref = sourceToDest.createValueRef();
+		transferTags( sourceTags, sourceTagSetStructure, sourceToDest::get, ref, destTags, copyMaps, mergeMaps, conflictTag );
+		sourceToDest.releaseValueRef( ref );
+	}
+
+	private static < O, D > void transferTags(
+			final ObjTags< O > sourceTags,
+			final TagSetStructure sourceTagSetStructure,
+			final BiFunction< O, D, D > sourceToDest,
+			final D ref,
+			final ObjTags< D > destTags,
+			final TagSetStructureMaps copyMaps,
+			final TagSetStructureMaps mergeMaps,
+			final Tag conflictTag )
+	{
+		for ( final TagSet tagSet : sourceTagSetStructure.getTagSets() )
+		{
+			final List< Tag > tags = tagSet.getTags();
+			final Tag[] copiedTags = new Tag[ tags.size() ];
+			final Tag[] mergedTags = new Tag[ tags.size() ];
+			for ( int i = 0; i < tags.size(); i++ )
+			{
+				copiedTags[ i ] = copyMaps.tagMap.get( tags.get( i ) );
+				mergedTags[ i ] = mergeMaps.tagMap.get( tags.get( i ) );
+			}
+			final ObjTagMap< O, Tag > sourceTagMap = sourceTags.tags( tagSet );
+			final ObjTagMap< D, Tag > mergedTagMap = destTags.tags( mergeMaps.tagSetMap.get( tagSet ) );
+
+			for ( int i = 0; i < tags.size(); i++ )
+			{
+				final Tag copiedTag = copiedTags[ i ];
+				final Tag mergedTag = mergedTags[ i ];
+				for ( final O obj : sourceTagMap.getTaggedWith( tags.get( i ) ) )
+					setTags( sourceToDest.apply( obj, ref ), destTags, copiedTag, mergedTag, mergedTagMap, conflictTag );
+			}
+		}
+	}
+
+	/**
+	 * Same as
+	 * {@link #transferTags(ObjTags, TagSetStructure, PoolIndexMap, ObjTags, TagSetStructureMaps, TagSetStructureMaps, Tag)},
+	 * but for a single source object {@code obj}, that is mapped to
+	 * {@code dest}. Used when only part of the source objects is mapped at a
+	 * time, see {@link StreamingMergeModels}.
+	 */
+	static < O, D > void transferTags(
+			final O obj,
+			final D dest,
+			final ObjTags< O > sourceTags,
+			final TagSetStructure sourceTagSetStructure,
+			final ObjTags< D > destTags,
+			final TagSetStructureMaps copyMaps,
+			final TagSetStructureMaps mergeMaps,
+			final Tag conflictTag )
+	{
+		for ( final TagSet tagSet : sourceTagSetStructure.getTagSets() )
+		{
+			final Tag tag = sourceTags.tags( tagSet ).get( obj );
+			if ( tag != null )
+				setTags( dest, destTags, copyMaps.tagMap.get( tag ), mergeMaps.tagMap.get( tag ),
+						destTags.tags( mergeMaps.tagSetMap.get( tagSet ) ), conflictTag );
+		}
+	}
+
+	private static < D > void setTags(
+			final D dest,
+			final ObjTags< D > destTags,
+			final Tag copiedTag,
+			final Tag mergedTag,
+			final ObjTagMap< D, Tag > mergedTagMap,
+			final Tag conflictTag )
+	{
+		destTags.set( dest, copiedTag );
+		if ( conflictTag == null )
+		{
+			destTags.set( dest, mergedTag );
+			return;
+		}
+		final Tag destTag = mergedTagMap.get( dest );
+		if ( destTag == null )
+			destTags.set( dest, mergedTag );
+		else if ( !destTag.equals( mergedTag ) )
+			destTags.set( dest, conflictTag );
+	}
+
 	private static Tag getTag( final TagSet tagSet, final String tagName )
 	{
 		return tagSet.getTags().stream()
@@ -47,6 +47,8 @@ import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.InputMap;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
@@ -55,6 +57,7 @@ import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.WindowConstants;
 
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots.CovarianceInterpolation;
 import org.mastodon.ui.util.ExtensionFileFilter;
 import org.mastodon.ui.util.FileChooser;
 
@@ -70,6 +73,18 @@ public class MergingDialog extends JDialog
 
 	private final JTextField ratioThresholdTextField;
 
+	private final JTextField numThreadsTextField;
+
+	private final JTextField windowSizeTextField;
+
+	private final JComboBox< CovarianceInterpolation > covarianceInterpolationComboBox;
+
+	private final JCheckBox cacheCandidatesCheckBox;
+
+	private final JCheckBox memoryMappedCheckBox;
+
+	private final JTextField summaryPathTextField;
+
 	private Runnable onMerge;
 
 	public MergingDialog( final Frame owner )
@@ -134,6 +149,54 @@ public class MergingDialog extends JDialog
 		c.gridx = 1;
 		content.add( ratioThresholdTextField, c );
 
+		++c.gridy;
+		c.gridx = 0;
+		content.add( new JLabel( "Number of threads: " ), c );
+		numThreadsTextField = new JTextField( String.valueOf( Runtime.getRuntime().availableProcessors() ) );
+		c.gridx = 1;
+		content.add( numThreadsTextField, c );
+
+		++c.gridy;
+		c.gridx = 0;
+		content.add( new JLabel( "Timepoints per window (0 = all): " ), c );
+		windowSizeTextField = new JTextField( "0" );
+		windowSizeTextField.setToolTipText( "Merge the projects in windows of this many timepoints. This limits the memory needed for very large projects." );
+		c.gridx = 1;
+		content.add( windowSizeTextField, c );
+
+		++c.gridy;
+		c.gridx = 0;
+		content.add( new JLabel( "Shape of interpolated spots: " ), c );
+		covarianceInterpolationComboBox = new JComboBox<>( CovarianceInterpolation.values() );
+		covarianceInterpolationComboBox.setSelectedItem( CovarianceInterpolation.LOG_EUCLIDEAN );
+		covarianceInterpolationComboBox.setToolTipText( "How to interpolate the covariance of spots that are inserted into gaps of the tracks before merging." );
+		c.gridx = 1;
+		content.add( covarianceInterpolationComboBox, c );
+
+		++c.gridy;
+		c.gridx = 0;
+		content.add( new JLabel( "Cache match candidates: " ), c );
+		cacheCandidatesCheckBox = new JCheckBox( "", false );
+		cacheCandidatesCheckBox.setToolTipText( "Store the match candidates, such that merging the same projects again with smaller cutoffs is faster." );
+		c.gridx = 1;
+		content.add( cacheCandidatesCheckBox, c );
+
+		++c.gridy;
+		c.gridx = 0;
+		content.add( new JLabel( "Keep match candidates on disk: " ), c );
+		memoryMappedCheckBox = new JCheckBox( "", false );
+		memoryMappedCheckBox.setToolTipText( "Store the match candidates in temporary files instead of the Java heap. Use this if the heap is too small for the merge. Not used if merging in windows." );
+		c.gridx = 1;
+		content.add( memoryMappedCheckBox, c );
+
+		++c.gridy;
+		c.gridx = 0;
+		content.add( new JLabel( "Write summary (JSON) to: " ), c );
+		summaryPathTextField = new JTextField( "" );
+		summaryPathTextField.setToolTipText( "Optional file for the time and counts of the phases of the merge." );
+		c.gridx = 1;
+		content.add( summaryPathTextField, c );
+
 		class Browse implements ActionListener
 		{
 			private final JTextField path;
@@ -239,6 +302,40 @@ public class MergingDialog extends JDialog
 		return Double.parseDouble( ratioThresholdTextField.getText() );
 	}
 
+	public int getNumThreads() throws NumberFormatException
+	{
+		return Integer.parseInt( numThreadsTextField.getText() );
+	}
+
+	public int getWindowSize() throws NumberFormatException
+	{
+		return Integer.parseInt( windowSizeTextField.getText() );
+	}
+
+	public CovarianceInterpolation getCovarianceInterpolation()
+	{
+		return ( CovarianceInterpolation ) covarianceInterpolationComboBox.getSelectedItem();
+	}
+
+	public boolean isCacheCandidates()
+	{
+		return cacheCandidatesCheckBox.isSelected();
+	}
+
+	public boolean isMemoryMapped()
+	{
+		return memoryMappedCheckBox.isSelected();
+	}
+
+	/**
+	 * Returns the path of the file for the summary of the merge, or an
+	 * empty string if no summary should be written.
+	 */
+	public String getSummaryPath()
+	{
+		return summaryPathTextField.getText().trim();
+	}
+
 	private void merge()
 	{
 		if ( onMerge != null )
@@ -0,0 +1,398 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.algorithm.traversal.UndirectedDepthFirstIterator;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeModels.MatchingGraphUtils;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.spatial.SpatialIndex;
+
+/**
+ * Places the spots of model B in the output model, one timepoint at a time,
+ * as described in {@link MergeModels}. Used by {@link MergeModels} and
+ * {@link StreamingMergeModels}.
+ * <p>
+ * The spots of A must be in {@code mapAtoDest} for the timepoint that is
+ * placed, and the spots of A and B must be in {@code mapAtoDest} and
+ * {@code mapBtoDest} for the previous timepoint.
+ * <p>
+ * The placement of the spots of one timepoint is decided concurrently, using
+ * one {@link PlacementDecider} per thread. The output model is then modified
+ * on the calling thread, in the order of the spatial index. Therefore, the
+ * result does not depend on the number of threads.
+ */
+class PlaceSpotsB implements AutoCloseable
+{
+	private final MatchingGraph matching;
+
+	private final Model mB;
+
+	private final ModelGraph graphA;
+
+	private final ModelGraph graph;
+
+	private final PoolIndexMap< Spot, Spot > mapAtoDest;
+
+	private final PoolIndexMap< Spot, Spot > mapBtoDest;
+
+	private final ObjTags< Spot > vertexTags;
+
+	private final Tag tagB;
+
+	private final Tag tagSingletonB;
+
+	private final Tag tagMatchAB;
+
+	private final Tag tagConflict;
+
+	private final PlacementDecider[] deciders;
+
+	private final ForkJoinPool pool;
+
+	private final UndirectedDepthFirstIterator< MatchingVertex, MatchingEdge > miter;
+
+	private final RefList< Spot > spotsB;
+
+	private final RefList< MatchingVertex > mvsB;
+
+	private final Spot bref;
+
+	private final Spot dref;
+
+	private final Spot sref;
+
+	private final Spot vref;
+
+	private final MatchingVertex mref;
+
+	private final double[] pos = new double[ 3 ];
+
+	private final double[][] cov = new double[ 3 ][ 3 ];
+
+	/**
+	 * @param matching
+	 *            the pruned matching graph, that contains the candidates of
+	 *            all timepoints that are placed.
+	 * @param numThreads
+	 *            number of threads used for deciding the placement.
+	 */
+	PlaceSpotsB(
+			final MatchingGraph matching,
+			final Model mA,
+			final Model mB,
+			final ModelGraph graph,
+			final PoolIndexMap< Spot, Spot > mapAtoDest,
+			final PoolIndexMap< Spot, Spot > mapBtoDest,
+			final ObjTags< Spot > vertexTags,
+			final Tag tagB,
+			final Tag tagSingletonB,
+			final Tag tagMatchAB,
+			final Tag tagConflict,
+			final int numThreads )
+	{
+		this.matching = matching;
+		this.mB = mB;
+		this.graphA = mA.getGraph();
+		this.graph = graph;
+		this.mapAtoDest = mapAtoDest;
+		this.mapBtoDest = mapBtoDest;
+		this.vertexTags = vertexTags;
+		this.tagB = tagB;
+		this.tagSingletonB = tagSingletonB;
+		this.tagMatchAB = tagMatchAB;
+		this.tagConflict = tagConflict;
+
+		final ModelGraph graphB = mB.getGraph();
+		final int numDeciders = Math.max( 1, numThreads );
+		deciders = new PlacementDecider[ numDeciders ];
+		for ( int i = 0; i < numDeciders; i++ )
+			deciders[ i ] = new PlacementDecider( matching, graphA, graphB, graph, mapAtoDest, mapBtoDest );
+		pool = numDeciders > 1 ? new ForkJoinPool( numDeciders ) : null;
+		miter = new UndirectedDepthFirstIterator<>( matching );
+		spotsB = RefCollections.createRefList( graphB.vertices() );
+		mvsB = RefCollections.createRefList( matching.vertices() );
+		bref = graphB.vertexRef();
+		dref = graph.vertexRef();
+		sref = graph.vertexRef();
+		vref = graph.vertexRef();
+		mref = matching.vertexRef();
+	}
+
+	/**
+	 * Place the spots of B at {@code timepoint} in the output model, set the
+	 * source and conflict tags, and add them to {@code mapBtoDest}.
+	 */
+	void placeSpots( final int timepoint )
+	{
+		// NB: The spatial index is created lazily and matching vertices
+		// are created on demand, therefore both are fetched on this thread.
+		final SpatialIndex< Spot > indexB = mB.getSpatioTemporalIndex().getSpatialIndex( timepoint );
+		spotsB.clear();
+		mvsB.clear();
+		for ( final Spot spotB : indexB )
+		{
+			spotsB.add( spotB );
+			mvsB.add( matching.getVertex( spotB, mref ) );
+		}
+		final int numSpots = spotsB.size();
+		final int[] decisions = new int[ numSpots ];
+		final int[] destIds = new int[ numSpots ];
+		decide( numSpots, decisions, destIds );
+
+		// Mutations of the output graph are applied in the order of
+		// the spatial index, independent of the number of threads.
+		for ( int i = 0; i < numSpots; i++ )
+		{
+			final Spot spotB = spotsB.get( i, bref );
+			switch ( decisions[ i ] )
+			{
+			case PlacementDecider.UNMATCHED:
+			{
+				final Spot destSpot = addSpot( spotB );
+				vertexTags.set( destSpot, tagB );
+				vertexTags.set( destSpot, tagSingletonB );
+				mapBtoDest.put( spotB, destSpot );
+				break;
+			}
+			case PlacementDecider.PARENT_CONFLICT:
+			{
+				final Spot destSpotA = graph.getGraphIdBimap().getVertex( destIds[ i ], dref );
+				final Spot destSpotB = addSpot( spotB );
+				vertexTags.set( destSpotB, tagB );
+				mapBtoDest.put( spotB, destSpotB );
+				vertexTags.set( destSpotB, tagConflict );
+				vertexTags.set( destSpotA, tagConflict );
+				break;
+			}
+			case PlacementDecider.MATCHED:
+			{
+				final Spot destSpotA = graph.getGraphIdBimap().getVertex( destIds[ i ], dref );
+				vertexTags.set( destSpotA, tagB );
+				vertexTags.set( destSpotA, tagMatchAB );
+				mapBtoDest.put( spotB, destSpotA );
+				break;
+			}
+			default: // AMBIGUOUS
+			{
+				final Spot destSpot = addSpot( spotB );
+				vertexTags.set( destSpot, tagB );
+				mapBtoDest.put( spotB, destSpot );
+
+				miter.reset( mvsB.get( i, mref ) );
+				while ( miter.hasNext() )
+				{
+					final MatchingVertex mv = miter.next();
+					final Spot sourceSpot = mv.getSpot();
+					final Spot spot;
+					if ( sourceSpot.getModelGraph() == graphA )
+						spot = mapAtoDest.get( sourceSpot, sref );
+					else
+						spot = mapBtoDest.get( sourceSpot, sref );
+					if ( spot != null )
+						vertexTags.set( spot, tagConflict );
+				}
+				break;
+			}
+			}
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		if ( pool != null )
+			pool.shutdown();
+	}
+
+	private Spot addSpot( final Spot spot )
+	{
+		spot.localize( pos );
+		spot.getCovariance( cov );
+		return graph.addVertex( vref ).init( spot.getTimepoint(), pos, cov );
+	}
+
+	/**
+	 * Decide the placement of all spots in {@code spotsB} (which belong to
+	 * the same timepoint). The spots are split into one contiguous range per
+	 * decider, and the ranges are processed in parallel on {@code pool}. If
+	 * there is no {@code pool}, the first decider processes all spots on the
+	 * calling thread.
+	 */
+	private void decide( final int numSpots, final int[] decisions, final int[] destIds )
+	{
+		if ( pool == null || numSpots < 2 )
+		{
+			deciders[ 0 ].decide( spotsB, mvsB, 0, numSpots, decisions, destIds );
+			return;
+		}
+
+		final int numChunks = Math.min( deciders.length, numSpots );
+		try
+		{
+			pool.submit( () -> IntStream.range( 0, numChunks ).parallel().forEach( c -> {
+				final int from = ( int ) ( ( long ) numSpots * c / numChunks );
+				final int to = ( int ) ( ( long ) numSpots * ( c + 1 ) / numChunks );
+				deciders[ c ].decide( spotsB, mvsB, from, to, decisions, destIds );
+			} ) ).get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Decides whether a spot of B is a singleton, perfectly matched to a spot
+	 * of A (possibly with conflicting parents), or ambiguously matched.
+	 * <p>
+	 * Only reads from the models, the matching graph, and the mappings to the
+	 * output model. Because the parents of the spots of the current timepoint
+	 * are mapped in previous timepoints, the decisions for all spots of one
+	 * timepoint can be made concurrently, using one {@code PlacementDecider}
+	 * (which holds its own refs) per thread.
+	 */
+	static class PlacementDecider
+	{
+		static final int UNMATCHED = 0;
+
+		static final int MATCHED = 1;
+
+		static final int PARENT_CONFLICT = 2;
+
+		static final int AMBIGUOUS = 3;
+
+		private final MatchingGraphUtils utils;
+
+		private final PoolIndexMap< Spot, Spot > mapAtoDest;
+
+		private final PoolIndexMap< Spot, Spot > mapBtoDest;
+
+		private final Spot bref;
+
+		private final Spot aref;
+
+		private final Spot parentBRef;
+
+		private final Spot parentARef;
+
+		private final Spot destRef1;
+
+		private final Spot destRef2;
+
+		private final Link linkBRef;
+
+		private final Link linkARef;
+
+		private final MatchingVertex mvBRef;
+
+		private final MatchingVertex mvARef;
+
+		private final MatchingEdge meRef;
+
+		PlacementDecider(
+				final MatchingGraph matching,
+				final ModelGraph graphA,
+				final ModelGraph graphB,
+				final ModelGraph graph,
+				final PoolIndexMap< Spot, Spot > mapAtoDest,
+				final PoolIndexMap< Spot, Spot > mapBtoDest )
+		{
+			this.utils = new MatchingGraphUtils( matching );
+			this.mapAtoDest = mapAtoDest;
+			this.mapBtoDest = mapBtoDest;
+			bref = graphB.vertexRef();
+			aref = graphA.vertexRef();
+			parentBRef = graphB.vertexRef();
+			parentARef = graphA.vertexRef();
+			destRef1 = graph.vertexRef();
+			destRef2 = graph.vertexRef();
+			linkBRef = graphB.edgeRef();
+			linkARef = graphA.edgeRef();
+			mvBRef = matching.vertexRef();
+			mvARef = matching.vertexRef();
+			meRef = matching.edgeRef();
+		}
+
+		void decide(
+				final RefList< Spot > spotsB,
+				final RefList< MatchingVertex > mvsB,
+				final int from,
+				final int to,
+				final int[] decisions,
+				final int[] destIds )
+		{
+			for ( int i = from; i < to; i++ )
+			{
+				final Spot spotB = spotsB.get( i, bref );
+				final MatchingVertex mvB = mvsB.get( i, mvBRef );
+				if ( utils.isUnmatched( mvB ) )
+				{
+					decisions[ i ] = UNMATCHED;
+				}
+				else if ( utils.isPerfectlyMatched( mvB ) )
+				{
+					final MatchingVertex mvA = mvB.outgoingEdges().get( 0, meRef ).getTarget( mvARef );
+					final Spot spotA = mvA.getSpot( aref );
+					final Spot destSpotA = mapAtoDest.get( spotA, destRef1 );
+					destIds[ i ] = destSpotA.getInternalPoolIndex();
+					decisions[ i ] = MATCHED;
+					if ( !( spotB.incomingEdges().isEmpty() || spotA.incomingEdges().isEmpty() ) )
+					{
+						final Spot spotC = spotB.incomingEdges().get( 0, linkBRef ).getSource( parentBRef );
+						final Spot spotD = spotA.incomingEdges().get( 0, linkARef ).getSource( parentARef );
+						final Spot destSpotC = mapBtoDest.get( spotC, destRef1 );
+						final Spot destSpotD = mapAtoDest.get( spotD, destRef2 );
+						if ( !destSpotC.equals( destSpotD ) )
+							decisions[ i ] = PARENT_CONFLICT;
+					}
+				}
+				else
+				{
+					decisions[ i ] = AMBIGUOUS;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.Arrays;
+
+import org.mastodon.RefPool;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Maps objects of one pool (e.g. the spots of a source graph) to objects of
+ * another pool (e.g. the spots of a destination graph), by their internal
+ * pool indices.
+ * <p>
+ * A {@link #dense(RefPool, RefPool, int) dense} map stores the value index in
+ * an {@code int[]} that is indexed by the key index. This is the most compact
+ * representation if (almost) all objects of the key pool are mapped, e.g.
+ * when a whole graph is copied. A {@link #sparse(RefPool, RefPool) sparse}
+ * map stores the indices in a {@link TIntIntHashMap}, and should be used if
+ * only a small part of the key pool is mapped. An
+ * {@link #automatic(RefPool, RefPool, int) automatic} map starts dense, and
+ * falls back to a hash map if less than a quarter of the grown array would
+ * be occupied, see {@link #MIN_DENSE_OCCUPANCY}.
+ * <p>
+ * Compared to a {@code RefRefMap}, there is no per-entry object overhead,
+ * and lookups in the dense map are plain array accesses. Concurrent
+ * {@link #get(Object, Object)} calls are safe as long as the map is not
+ * modified.
+ *
+ * @param <K>
+ *            the key type.
+ * @param <V>
+ *            the value type.
+ */
+public class PoolIndexMap< K, V >
+{
+	private static final int NO_ENTRY = -1;
+
+	/**
+	 * An automatic map switches to a hash map if the array would hold more
+	 * than this many slots per entry. A {@link TIntIntHashMap} with load
+	 * factor 0.5 takes about 18 bytes per entry, an {@code int[]} 4 bytes per
+	 * slot.
+	 */
+	static final int MIN_DENSE_OCCUPANCY = 4;
+
+	private final RefPool< K > keyPool;
+
+	private final RefPool< V > valuePool;
+
+	private final boolean automatic;
+
+	private TIntIntMap sparseMap;
+
+	private int[] denseMap;
+
+	private int size;
+
+	/**
+	 * Create a map that stores the value indices in an array, indexed by the
+	 * key indices. The array grows as needed.
+	 *
+	 * @param keyPool
+	 *            the pool of the keys.
+	 * @param valuePool
+	 *            the pool of the values.
+	 * @param initialCapacity
+	 *            expected maximum internal pool index of the keys plus one,
+	 *            e.g. the number of vertices of the source graph.
+	 */
+	public static < K, V > PoolIndexMap< K, V > dense( final RefPool< K > keyPool, final RefPool< V > valuePool, final int initialCapacity )
+	{
+		return new PoolIndexMap<>( keyPool, valuePool, false, false, initialCapacity );
+	}
+
+	/**
+	 * Create a map that stores the value indices in an array, like
+	 * {@link #dense(RefPool, RefPool, int)}, as long as the mapped key
+	 * indices are dense. If the array would have to grow to more than
+	 * {@link #MIN_DENSE_OCCUPANCY} slots per entry, the map switches to a
+	 * hash map, like {@link #sparse(RefPool, RefPool)}. Use this if it is not
+	 * known in advance which part of the key pool is mapped.
+	 *
+	 * @param keyPool
+	 *            the pool of the keys.
+	 * @param valuePool
+	 *            the pool of the values.
+	 * @param initialCapacity
+	 *            initial length of the array.
+	 */
+	public static < K, V > PoolIndexMap< K, V > automatic( final RefPool< K > keyPool, final RefPool< V > valuePool, final int initialCapacity )
+	{
+		return new PoolIndexMap<>( keyPool, valuePool, false, true, initialCapacity );
+	}
+
+	/**
+	 * Create a map that stores the indices in a hash map.
+	 *
+	 * @param keyPool
+	 *            the pool of the keys.
+	 * @param valuePool
+	 *            the pool of the values.
+	 */
+	public static < K, V > PoolIndexMap< K, V > sparse( final RefPool< K > keyPool, final RefPool< V > valuePool )
+	{
+		return new PoolIndexMap<>( keyPool, valuePool, true, false, 10 );
+	}
+
+	private PoolIndexMap( final RefPool< K > keyPool, final RefPool< V > valuePool, final boolean sparse, final boolean automatic, final int initialCapacity )
+	{
+		this.keyPool = keyPool;
+		this.valuePool = valuePool;
+		this.automatic = automatic;
+		if ( sparse )
+		{
+			sparseMap = new TIntIntHashMap( initialCapacity, 0.5f, NO_ENTRY, NO_ENTRY );
+			denseMap = null;
+		}
+		else
+		{
+			sparseMap = null;
+			denseMap = new int[ Math.max( 1, initialCapacity ) ];
+			Arrays.fill( denseMap, NO_ENTRY );
+		}
+		size = 0;
+	}
+
+	public void put( final K key, final V value )
+	{
+		final int keyIndex = keyPool.getId( key );
+		final int valueIndex = valuePool.getId( value );
+		if ( sparseMap != null )
+		{
+			if ( sparseMap.put( keyIndex, valueIndex ) == NO_ENTRY )
+				++size;
+			return;
+		}
+		if ( keyIndex >= denseMap.length )
+		{
+			final int oldLength = denseMap.length;
+			final int newLength = Math.max( keyIndex + 1, oldLength + ( oldLength >> 1 ) );
+			if ( automatic && ( long ) ( size + 1 ) * MIN_DENSE_OCCUPANCY < newLength )
+			{
+				switchToSparse();
+				put( key, value );
+				return;
+			}
+			denseMap = Arrays.copyOf( denseMap, newLength );
+			Arrays.fill( denseMap, oldLength, newLength, NO_ENTRY );
+		}
+		if ( denseMap[ keyIndex ] == NO_ENTRY )
+			++size;
+		denseMap[ keyIndex ] = valueIndex;
+	}
+
+	/**
+	 * Moves the entries of the array into a hash map.
+	 */
+	private void switchToSparse()
+	{
+		final TIntIntMap map = new TIntIntHashMap( Math.max( 10, 2 * size ), 0.5f, NO_ENTRY, NO_ENTRY );
+		for ( int i = 0; i < denseMap.length; i++ )
+			if ( denseMap[ i ] != NO_ENTRY )
+				map.put( i, denseMap[ i ] );
+		sparseMap = map;
+		denseMap = null;
+	}
+
+	/**
+	 * Whether the indices are stored in a hash map.
+	 */
+	boolean isSparse()
+	{
+		return sparseMap != null;
+	}
+
+	/**
+	 * Remove the mapping of {@code key}, if present.
+	 */
+	public void remove( final K key )
+	{
+		final int keyIndex = keyPool.getId( key );
+		if ( sparseMap != null )
+		{
+			if ( sparseMap.remove( keyIndex ) != NO_ENTRY )
+				--size;
+			return;
+		}
+		if ( keyIndex < denseMap.length && denseMap[ keyIndex ] != NO_ENTRY )
+		{
+			denseMap[ keyIndex ] = NO_ENTRY;
+			--size;
+		}
+	}
+
+	/**
+	 * Get the value mapped to {@code key}.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param ref
+	 *            a value ref that is used to return the value.
+	 * @return the value, or {@code null} if {@code key} is not mapped.
+	 */
+	public V get( final K key, final V ref )
+	{
+		final int valueIndex = getIndex( keyPool.getId( key ) );
+		return valueIndex == NO_ENTRY ? null : valuePool.getObject( valueIndex, ref );
+	}
+
+	/**
+	 * Get the value mapped to {@code key}. Allocates a new value ref, prefer
+	 * {@link #get(Object, Object)} in loops.
+	 */
+	public V get( final K key )
+	{
+		return get( key, valuePool.createRef() );
+	}
+
+	public boolean containsKey( final K key )
+	{
+		return getIndex( keyPool.getId( key ) ) != NO_ENTRY;
+	}
+
+	private int getIndex( final int keyIndex )
+	{
+		if ( sparseMap != null )
+			return sparseMap.get( keyIndex );
+		return keyIndex < denseMap.length ? denseMap[ keyIndex ] : NO_ENTRY;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public V createValueRef()
+	{
+		return valuePool.createRef();
+	}
+
+	public void releaseValueRef( final V ref )
+	{
+		valuePool.releaseRef( ref );
+	}
+}
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.concurrent.locks.Lock;
+
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Stores position, covariance, inverse covariance and determinant of the
+ * covariance of all spots of a {@link ModelGraph} in primitive arrays that
+ * are indexed by {@link Spot#getInternalPoolIndex()}.
+ * <p>
+ * Alternatively, only a subset of the spots can be cached (e.g. the spots of
+ * a window of timepoints). Then the arrays are compact and indexed by
+ * {@link #slot(int)}, which maps internal pool indices to array indices.
+ * <p>
+ * The symmetric 3x3 matrices are stored as their 6 unique entries in the
+ * order {@code xx, xy, xz, yy, yz, zz}. This allows to compute mahalanobis
+ * and Hellinger distances without re-reading the spots and without
+ * inverting covariance matrices in inner loops.
+ * <p>
+ * The cache is not updated when the graph changes. It is read-only after
+ * construction and can be shared between threads.
+ */
+public class SpotCovarianceCache
+{
+	private final ModelGraph graph;
+
+	private final TIntIntMap slots;
+
+	private final double[] positions;
+
+	private final double[] covariances;
+
+	private final double[] precisions;
+
+	private final double[] determinants;
+
+	/**
+	 * Cache all spots of the {@code graph}.
+	 */
+	public SpotCovarianceCache( final ModelGraph graph )
+	{
+		this( graph, graph.vertices(), false, true );
+	}
+
+	/**
+	 * Cache only the given {@code spots}. Memory consumption is proportional
+	 * to the number of given spots.
+	 */
+	public SpotCovarianceCache( final ModelGraph graph, final Iterable< Spot > spots )
+	{
+		this( graph, spots, true, true );
+	}
+
+	/**
+	 * Same as {@link #SpotCovarianceCache(ModelGraph, Iterable)}, but does
+	 * not lock the graph. The read lock of the graph must be held by another
+	 * thread, that waits for this thread to finish (e.g. the thread that
+	 * submitted the parallel tasks). Acquiring the read lock in this thread
+	 * would deadlock, if a writer is queued in between.
+	 */
+	static SpotCovarianceCache createWithoutLocking( final ModelGraph graph, final Iterable< Spot > spots )
+	{
+		return new SpotCovarianceCache( graph, spots, true, false );
+	}
+
+	private SpotCovarianceCache( final ModelGraph graph, final Iterable< Spot > spots, final boolean compact, final boolean lockGraph )
+	{
+		this.graph = graph;
+		final Lock lock = graph.getLock().readLock();
+		if ( lockGraph )
+			lock.lock();
+		try
+		{
+			int size = 0;
+			if ( compact )
+			{
+				slots = new TIntIntHashMap();
+				for ( final Spot spot : spots )
+					slots.put( spot.getInternalPoolIndex(), size++ );
+			}
+			else
+			{
+				slots = null;
+				for ( final Spot spot : spots )
+					size = Math.max( size, spot.getInternalPoolIndex() + 1 );
+			}
+
+			positions = new double[ 3 * size ];
+			covariances = new double[ 6 * size ];
+			precisions = new double[ 6 * size ];
+			determinants = new double[ size ];
+
+			final double[] pos = new double[ 3 ];
+			final double[][] cov = new double[ 3 ][ 3 ];
+			final double[][] P = new double[ 3 ][ 3 ];
+			for ( final Spot spot : spots )
+			{
+				final int index = slot( spot.getInternalPoolIndex() );
+				spot.localize( pos );
+				spot.getCovariance( cov );
+				LinAlgHelpers.invertSymmetric3x3( cov, P );
+				System.arraycopy( pos, 0, positions, 3 * index, 3 );
+				setSymmetric3x3( cov, covariances, 6 * index );
+				setSymmetric3x3( P, precisions, 6 * index );
+				determinants[ index ] = SpotMath.detSymmetric3x3(
+						cov[ 0 ][ 0 ], cov[ 0 ][ 1 ], cov[ 0 ][ 2 ],
+						cov[ 1 ][ 1 ], cov[ 1 ][ 2 ], cov[ 2 ][ 2 ] );
+			}
+		}
+		finally
+		{
+			if ( lockGraph )
+				lock.unlock();
+		}
+	}
+
+	private static void setSymmetric3x3( final double[][] matrix, final double[] array, final int offset )
+	{
+		array[ offset ] = matrix[ 0 ][ 0 ];
+		array[ offset + 1 ] = matrix[ 0 ][ 1 ];
+		array[ offset + 2 ] = matrix[ 0 ][ 2 ];
+		array[ offset + 3 ] = matrix[ 1 ][ 1 ];
+		array[ offset + 4 ] = matrix[ 1 ][ 2 ];
+		array[ offset + 5 ] = matrix[ 2 ][ 2 ];
+	}
+
+	public ModelGraph getGraph()
+	{
+		return graph;
+	}
+
+	/**
+	 * Returns the index, at which the spot with the given internal pool index
+	 * is stored in the arrays of this cache. This is the internal pool index
+	 * itself, unless only a subset of the spots is cached.
+	 */
+	public int slot( final int internalPoolIndex )
+	{
+		return slots == null ? internalPoolIndex : slots.get( internalPoolIndex );
+	}
+
+	/**
+	 * Returns the squared mahalanobis distance of the center of spot
+	 * {@code j} in {@code other} to the ellipsoid of spot {@code i} in this
+	 * cache. Pure arithmetic, no allocation (besides the {@link #slot(int)}
+	 * lookup, if only a subset of the spots is cached).
+	 *
+	 * @param internalPoolIndexI
+	 *            internal pool index of the spot, whose ellipsoid is used.
+	 * @param other
+	 *            the cache that contains spot {@code j}. May be {@code this}.
+	 * @param internalPoolIndexJ
+	 *            internal pool index of the spot, whose center is used.
+	 * @return the squared mahalanobis distance.
+	 */
+	public double mahalanobisDistSqu( final int internalPoolIndexI, final SpotCovarianceCache other, final int internalPoolIndexJ )
+	{
+		final int i = slot( internalPoolIndexI );
+		final int j = other.slot( internalPoolIndexJ );
+		final double[] p = other.positions;
+		final double dx = p[ 3 * j ] - positions[ 3 * i ];
+		final double dy = p[ 3 * j + 1 ] - positions[ 3 * i + 1 ];
+		final double dz = p[ 3 * j + 2 ] - positions[ 3 * i + 2 ];
+		return SpotMath.multSymmetric3x3bAb( precisions, 6 * i, dx, dy, dz );
+	}
+
+	/**
+	 * Spot positions, 3 entries per spot, indexed by {@link #slot(int)}. Must
+	 * not be modified.
+	 */
+	public double[] getPositions()
+	{
+		return positions;
+	}
+
+	/**
+	 * Unique entries of the spot covariance matrices, 6 entries per spot,
+	 * indexed by {@link #slot(int)}. Must not be modified.
+	 */
+	public double[] getCovariances()
+	{
+		return covariances;
+	}
+
+	/**
+	 * Unique entries of the inverse spot covariance matrices, 6 entries per
+	 * spot, indexed by {@link #slot(int)}. Must not be modified.
+	 */
+	public double[] getPrecisions()
+	{
+		return precisions;
+	}
+
+	/**
+	 * Determinants of the spot covariance matrices, 1 entry per spot, indexed
+	 * by {@link #slot(int)}. Must not be modified.
+	 */
+	public double[] getDeterminants()
+	{
+		return determinants;
+	}
+}
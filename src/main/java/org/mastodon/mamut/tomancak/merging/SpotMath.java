@@ -94,4 +94,24 @@ public class SpotMath
 		final double z = b[ 2 ];
 		return A[ 0 ][ 0 ] * x * x + A[ 1 ][ 1 ] * y * y + A[ 2 ][ 2 ] * z * z + 2 * ( A[ 0 ][ 1 ] * x * y + A[ 0 ][ 2 ] * x * z + A[ 1 ][ 2 ] * y * z );
 	}
+
+	/**
+	 * Computes {@code b^T * A * b} for a symmetric 3x3 matrix {@code A}, given
+	 * by its 6 unique entries {@code xx, xy, xz, yy, yz, zz}, starting at
+	 * {@code offset} in {@code A}. Pure arithmetic, no allocation.
+	 *
+	 * @see SpotCovarianceCache
+	 */
+	public static double multSymmetric3x3bAb( final double[] A, final int offset, final double x, final double y, final double z )
+	{
+		return A[ offset ] * x * x + A[ offset + 3 ] * y * y + A[ offset + 5 ] * z * z + 2 * ( A[ offset + 1 ] * x * y + A[ offset + 2 ] * x * z + A[ offset + 4 ] * y * z );
+	}
+
+	/**
+	 * Determinant of the symmetric 3x3 matrix with the given unique entries.
+	 */
+	public static double detSymmetric3x3( final double xx, final double xy, final double xz, final double yy, final double yz, final double zz )
+	{
+		return xx * ( yy * zz - yz * yz ) + xy * ( xz * yz - xy * zz ) + xz * ( xy * yz - xz * yy );
+	}
 }
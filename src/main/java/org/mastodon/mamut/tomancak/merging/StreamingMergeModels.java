@@ -0,0 +1,416 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import org.mastodon.mamut.io.importer.ModelImporter;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets.OutputDataSet;
+import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots;
+import org.mastodon.mamut.tomancak.spots.InterpolateMissingSpots.CovarianceInterpolation;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.util.TreeUtils;
+
+/**
+ * Same merging algorithm as {@link MergeModels}, but the time axis is
+ * processed in windows of a fixed number of timepoints.
+ * <p>
+ * For every window, the match candidates are computed and pruned, and the
+ * spots, links, tags and labels of the window are written to the output
+ * model. The spots of B are placed by the same {@link PlaceSpotsB} as in
+ * {@link MergeModels}. Afterwards the matching graph, the covariance caches
+ * and the spot mappings of the window are released. Only the mapping of the
+ * last timepoint of a window is kept, because links to the next window
+ * reference it. Therefore, the memory needed in addition to the input and
+ * output models is proportional to the window size, rather than to the size
+ * of the models. The result is the same as the result of
+ * {@link MergeModels}, up to the order of spots and links in the output
+ * model.
+ * <p>
+ * Missing spots are interpolated before merging (see
+ * {@link InterpolateMissingSpots}). Hence all links connect spots of
+ * adjacent timepoints, which is required by the windowing.
+ */
+public class StreamingMergeModels
+{
+	public static void merge( final Model mA, final Model mB, final OutputDataSet output,
+			final int windowSize,
+			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold,
+			final int numThreads )
+	{
+		merge( mA, mB, output, new MergeSettings( distCutoff, mahalanobisDistCutoff, ratioThreshold ).numThreads( numThreads ).windowSize( windowSize ) );
+	}
+
+	/**
+	 * Merge {@code mA} and {@code mB} into {@code output} in windows of
+	 * {@link MergeSettings#windowSize(int)} timepoints. If the window size
+	 * is zero or negative, all timepoints are processed in a single window.
+	 * The candidate cache and storage of the match candidates of the
+	 * {@code settings} are ignored.
+	 * <p>
+	 * The phases of the merge are reported to the
+	 * {@link MergeSettings#getProgress() progress} of the settings. The time
+	 * and counts of the phases accumulate over all windows. Cancellation is
+	 * checked for every timepoint.
+	 *
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress was canceled. The output model is
+	 *             incomplete in this case.
+	 */
+	public static void merge( final Model mA, final Model mB, final OutputDataSet output, final MergeSettings settings )
+	{
+		final int numThreads = settings.getNumThreads();
+		final CovarianceInterpolation covarianceInterpolation = settings.getCovarianceInterpolation();
+		final MergeProgress progress = settings.getProgress();
+		final int windowSize = settings.getWindowSize();
+
+		new ModelImporter( output.getModel() ){{ startImport(); }};
+
+		progress.startPhase( MergeProgress.INTERPOLATION );
+		InterpolateMissingSpots.interpolate( mA, numThreads, covarianceInterpolation, progress );
+		InterpolateMissingSpots.interpolate( mB, numThreads, covarianceInterpolation, progress );
+		progress.addCount( mA.getGraph().vertices().size() + mB.getGraph().vertices().size() );
+
+		final StreamingMergeModels merge = new StreamingMergeModels( mA, mB, output, settings.getDistCutoff(), settings.getMahalanobisDistCutoff(), settings.getRatioThreshold(), numThreads, progress );
+		// NB: Start at timepoint 0, like MergeModels.
+		final int minTimepoint = 0;
+		final int maxTimepoint = Math.max( TreeUtils.getMaxTimepoint( mA ), TreeUtils.getMaxTimepoint( mB ) );
+		final int step = windowSize > 0 ? windowSize : Math.max( 1, maxTimepoint - minTimepoint + 1 );
+		for ( int start = minTimepoint; start <= maxTimepoint; start += step )
+		{
+			progress.showProgress( start - minTimepoint, maxTimepoint - minTimepoint + 1 );
+			merge.mergeWindow( start, Math.min( start + step - 1, maxTimepoint ) );
+		}
+
+		new ModelImporter( output.getModel() ){{ finishImport(); }};
+		progress.finish();
+	}
+
+	private final Model mA;
+
+	private final Model mB;
+
+	private final ModelGraph graphA;
+
+	private final ModelGraph graphB;
+
+	private final ModelGraph graph;
+
+	private final MatchCandidates candidates;
+
+	private final int numThreads;
+
+	private final MergeProgress progress;
+
+	private final Tag tagA;
+
+	private final Tag tagB;
+
+	private final Tag tagSingletonA;
+
+	private final Tag tagSingletonB;
+
+	private final Tag tagMatchAB;
+
+	private final Tag tagConflict;
+
+	private final Tag tagTagConflict;
+
+	private final Tag tagLabelConflict;
+
+	private final ObjTags< Spot > vertexTags;
+
+	private final ObjTags< Link > edgeTags;
+
+	private final TagSetModel< Spot, Link > tsmA;
+
+	private final TagSetModel< Spot, Link > tsmB;
+
+	private final TagSetStructure tssA;
+
+	private final TagSetStructure tssB;
+
+	private final TagSetStructureMaps tssAtoCopy;
+
+	private final TagSetStructureMaps tssBtoCopy;
+
+	private final TagSetStructureMaps tssAtoDest;
+
+	private final TagSetStructureMaps tssBtoDest;
+
+	/**
+	 * Mapping of the spots of A in the current window, and at the timepoint
+	 * before the current window, to the output model.
+	 */
+	private final PoolIndexMap< Spot, Spot > mapAtoDest;
+
+	/**
+	 * Mapping of the spots of B in the current window, and at the timepoint
+	 * before the current window, to the output model.
+	 */
+	private final PoolIndexMap< Spot, Spot > mapBtoDest;
+
+	private final double[] pos = new double[ 3 ];
+
+	private final double[][] cov = new double[ 3 ][ 3 ];
+
+	private StreamingMergeModels( final Model mA, final Model mB, final OutputDataSet output,
+			final double distCutoff, final double mahalanobisDistCutoff, final double ratioThreshold,
+			final int numThreads, final MergeProgress progress )
+	{
+		this.mA = mA;
+		this.mB = mB;
+		this.numThreads = numThreads;
+		this.progress = progress;
+		graphA = mA.getGraph();
+		graphB = mB.getGraph();
+		graph = output.getModel().getGraph();
+		candidates = new MatchCandidates( distCutoff, mahalanobisDistCutoff, ratioThreshold, numThreads, progress );
+
+		tagA = output.addSourceTag( "A", 0xffffff00 );
+		tagB = output.addSourceTag( "B", 0xffff00ff );
+		tagSingletonA = output.addConflictTag( "Singleton A", 0xffffffcc );
+		tagSingletonB = output.addConflictTag( "Singleton B", 0xffffccff );
+		tagMatchAB = output.addConflictTag( "MatchAB", 0xffccffcc );
+		tagConflict = output.addConflictTag( "Conflict", 0xffff0000 );
+		tagTagConflict = output.addTagConflictTag( "Tag Conflict", 0xffff0000 );
+		tagLabelConflict = output.addLabelConflictTag( "Label Conflict", 0xffff0000 );
+
+		tsmA = mA.getTagSetModel();
+		tsmB = mB.getTagSetModel();
+		tssA = tsmA.getTagSetStructure();
+		tssB = tsmB.getTagSetStructure();
+		final TagSetStructure tss = output.getTagSetStructure();
+		tssAtoCopy = MergeTags.addTagSetStructureCopy( tss, tssA, "((A)) " );
+		tssBtoCopy = MergeTags.addTagSetStructureCopy( tss, tssB, "((B)) " );
+		tssAtoDest = MergeTags.mergeTagSetStructure( tss, tssA );
+		tssBtoDest = MergeTags.mergeTagSetStructure( tss, tssB );
+		output.updateTagSetModel();
+		vertexTags = output.getModel().getTagSetModel().getVertexTags();
+		edgeTags = output.getModel().getTagSetModel().getEdgeTags();
+
+		mapAtoDest = PoolIndexMap.sparse( graphA.vertices().getRefPool(), graph.vertices().getRefPool() );
+		mapBtoDest = PoolIndexMap.sparse( graphB.vertices().getRefPool(), graph.vertices().getRefPool() );
+	}
+
+	private void mergeWindow( final int minTimepoint, final int maxTimepoint )
+	{
+		final SpatialIndex< Spot > windowA = mA.getSpatioTemporalIndex().getSpatialIndex( minTimepoint, maxTimepoint );
+		final SpatialIndex< Spot > windowB = mB.getSpatioTemporalIndex().getSpatialIndex( minTimepoint, maxTimepoint );
+		final SpotCovarianceCache cacheA = new SpotCovarianceCache( graphA, windowA );
+		final SpotCovarianceCache cacheB = new SpotCovarianceCache( graphB, windowB );
+		progress.startPhase( MergeProgress.CANDIDATE_SEARCH );
+		final MatchingGraph unpruned = candidates.buildSparseMatchingGraph( mA, mB, cacheA, cacheB, minTimepoint, maxTimepoint );
+		progress.addCount( unpruned.edges().size() );
+		progress.startPhase( MergeProgress.PRUNING );
+		final MatchingGraph matching = candidates.pruneMatchingGraphInPlace( unpruned );
+		progress.addCount( matching.edges().size() );
+
+		progress.startPhase( MergeProgress.COPY_SPOTS_A );
+		progress.addCount( windowA.size() );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+		{
+			progress.checkCanceled();
+			copySpotsA( timepoint );
+		}
+		progress.startPhase( MergeProgress.COPY_LINKS );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+		{
+			progress.checkCanceled();
+			copyLinks( mA, mapAtoDest, tsmA, tssA, tssAtoCopy, tssAtoDest, null, timepoint );
+		}
+		progress.startPhase( MergeProgress.PLACE_SPOTS_B );
+		progress.addCount( windowB.size() );
+		try ( final PlaceSpotsB placeSpotsB = new PlaceSpotsB( matching, mA, mB, graph, mapAtoDest, mapBtoDest,
+				vertexTags, tagB, tagSingletonB, tagMatchAB, tagConflict, numThreads ) )
+		{
+			for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+			{
+				progress.checkCanceled();
+				placeSpotsB.placeSpots( timepoint );
+				transferTagsB( timepoint );
+			}
+		}
+		progress.startPhase( MergeProgress.COPY_LINKS );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+		{
+			progress.checkCanceled();
+			copyLinks( mB, mapBtoDest, tsmB, tssB, tssBtoCopy, tssBtoDest, tagTagConflict, timepoint );
+		}
+		progress.startPhase( MergeProgress.MERGE_LABELS );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+		{
+			progress.checkCanceled();
+			transferLabelsB( timepoint );
+		}
+
+		// release the state of this window, only keep the last timepoint
+		for ( int timepoint = Math.max( 0, minTimepoint - 1 ); timepoint < maxTimepoint; timepoint++ )
+		{
+			removeTimepoint( mA, mapAtoDest, timepoint );
+			removeTimepoint( mB, mapBtoDest, timepoint );
+		}
+	}
+
+	/*
+	 * for every spot a in A at timepoint:
+	 *   add a' with shape and a tags
+	 *   copy label
+	 *   add mapping MA: a --> a'
+	 */
+	private void copySpotsA( final int timepoint )
+	{
+		final Spot vref = graph.vertexRef();
+		for ( final Spot spotA : mA.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+		{
+			spotA.localize( pos );
+			spotA.getCovariance( cov );
+			final Spot destSpot = graph.addVertex( vref ).init( timepoint, pos, cov );
+			vertexTags.set( destSpot, tagA );
+			vertexTags.set( destSpot, tagSingletonA );
+			mapAtoDest.put( spotA, destSpot );
+			MergeTags.transferTags( spotA, destSpot, tsmA.getVertexTags(), tssA, vertexTags, tssAtoCopy, tssAtoDest, null );
+			if ( MergingUtil.hasLabel( spotA ) )
+				destSpot.setLabel( spotA.getLabel() );
+		}
+		graph.releaseRef( vref );
+	}
+
+	/*
+	 * for every spot b in B at timepoint:
+	 *   get b' from mapping MB
+	 *   add b tags, checking for conflicts
+	 */
+	private void transferTagsB( final int timepoint )
+	{
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spotB : mB.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+		{
+			final Spot destSpot = mapBtoDest.get( spotB, ref );
+			MergeTags.transferTags( spotB, destSpot, tsmB.getVertexTags(), tssB, vertexTags, tssBtoCopy, tssBtoDest, tagTagConflict );
+		}
+		graph.releaseRef( ref );
+	}
+
+	/*
+	 * for every edge (s1,s2) in the model, that ends at timepoint:
+	 *   get s1', s2' from mapping
+	 *   add edge (s1',s2') if not exists
+	 *   add tags, checking for conflicts if conflictTag != null
+	 */
+	private void copyLinks( final Model model, final PoolIndexMap< Spot, Spot > mapToDest,
+			final TagSetModel< Spot, Link > sourceTagSetModel, final TagSetStructure sourceTagSetStructure,
+			final TagSetStructureMaps copyMaps, final TagSetStructureMaps mergeMaps, final Tag conflictTag,
+			final int timepoint )
+	{
+		final ModelGraph sourceGraph = model.getGraph();
+		final Spot vref = sourceGraph.vertexRef();
+		final Spot sref = graph.vertexRef();
+		final Spot tref = graph.vertexRef();
+		final Link lref = graph.edgeRef();
+		for ( final Spot spot : model.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+		{
+			for ( final Link link : spot.edges() )
+			{
+				if ( !isLastSpotOfLink( link, spot, vref ) )
+					continue;
+				final Spot source = lookup( mapToDest, link.getSource( vref ), sref );
+				final Spot target = lookup( mapToDest, link.getTarget( vref ), tref );
+				Link destLink = graph.getEdge( source, target, lref );
+				if ( destLink == null )
+					destLink = graph.addEdge( source, target, lref );
+				MergeTags.transferTags( link, destLink, sourceTagSetModel.getEdgeTags(), sourceTagSetStructure, edgeTags, copyMaps, mergeMaps, conflictTag );
+			}
+		}
+		graph.releaseRef( lref );
+		graph.releaseRef( tref );
+		graph.releaseRef( sref );
+		sourceGraph.releaseRef( vref );
+	}
+
+	private void transferLabelsB( final int timepoint )
+	{
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spotB : mB.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+		{
+			if ( MergingUtil.hasLabel( spotB ) )
+			{
+				final Spot destSpot = mapBtoDest.get( spotB, ref );
+				final String lB = spotB.getLabel();
+				if ( MergingUtil.hasLabel( destSpot ) )
+				{
+					final String lA = destSpot.getLabel();
+					if ( !lA.equals( lB ) )
+					{
+						destSpot.setLabel( lA + " @@@ " + lB );
+						vertexTags.set( destSpot, tagLabelConflict );
+					}
+				}
+				else
+				{
+					destSpot.setLabel( lB );
+				}
+			}
+		}
+		graph.releaseRef( ref );
+	}
+
+	/**
+	 * A link is handled when the spot with the later timepoint is processed.
+	 * Links within one timepoint are handled when their target is processed.
+	 */
+	private static boolean isLastSpotOfLink( final Link link, final Spot spot, final Spot ref )
+	{
+		final Spot target = link.getTarget( ref );
+		if ( target.equals( spot ) )
+			return link.getSource( ref ).getTimepoint() <= spot.getTimepoint();
+		return target.getTimepoint() < spot.getTimepoint();
+	}
+
+	private static Spot lookup( final PoolIndexMap< Spot, Spot > map, final Spot spot, final Spot ref )
+	{
+		final Spot dest = map.get( spot, ref );
+		if ( dest == null )
+			throw new IllegalStateException( "Streaming merge requires links between adjacent timepoints, but " + spot + " is not in the current window." );
+		return dest;
+	}
+
+	private static void removeTimepoint( final Model model, final PoolIndexMap< Spot, Spot > map, final int timepoint )
+	{
+		for ( final Spot spot : model.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+			map.remove( spot );
+	}
+}
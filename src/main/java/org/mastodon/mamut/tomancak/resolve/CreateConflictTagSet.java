@@ -29,29 +29,33 @@
 package org.mastodon.mamut.tomancak.resolve;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.mastodon.RefPool;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefIntMap;
 import org.mastodon.collection.RefList;
-import org.mastodon.collection.RefObjectMap;
 import org.mastodon.collection.RefSet;
 import org.mastodon.collection.ref.RefArrayList;
 import org.mastodon.collection.ref.RefIntHashMap;
-import org.mastodon.collection.ref.RefObjectHashMap;
-import org.mastodon.collection.ref.RefSetImp;
 import org.mastodon.kdtree.IncrementalNearestNeighborSearch;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.model.branch.BranchSpot;
 import org.mastodon.mamut.model.branch.ModelBranchGraph;
+import org.mastodon.mamut.tomancak.merging.SpotCovarianceCache;
 import org.mastodon.mamut.tomancak.util.Glasbey;
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.spatial.SpatialIndex;
@@ -59,6 +63,7 @@ import org.mastodon.util.TagSetUtils;
 import org.mastodon.util.TreeUtils;
 import org.scijava.app.StatusService;
 
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -70,6 +75,12 @@ import gnu.trove.set.hash.TIntHashSet;
  */
 public class CreateConflictTagSet
 {
+	/**
+	 * Default for the maximum number of nearest neighbors that are checked
+	 * for conflicts with a spot.
+	 */
+	public static final int DEFAULT_MAX_NEIGHBORS = 10;
+
 	private CreateConflictTagSet()
 	{
 		// prevent instantiation of utility class.
@@ -90,6 +101,34 @@ public class CreateConflictTagSet
 	 */
 	public static TagSetStructure.TagSet run( final Model model, final String tagSetName, final double threshold,
 			final StatusService statusService )
+	{
+		return run( model, tagSetName, threshold, statusService, 1, DEFAULT_MAX_NEIGHBORS );
+	}
+
+	/**
+	 * Same as {@link #run(Model, String, double, StatusService)}, but the
+	 * conflicts of different timepoints are searched concurrently with the
+	 * given number of threads. The result does not depend on the number of
+	 * threads.
+	 */
+	public static TagSetStructure.TagSet run( final Model model, final String tagSetName, final double threshold,
+			final StatusService statusService, final int numThreads )
+	{
+		return run( model, tagSetName, threshold, statusService, numThreads, DEFAULT_MAX_NEIGHBORS );
+	}
+
+	/**
+	 * Same as {@link #run(Model, String, double, StatusService, int)}, but
+	 * with a configurable number of nearest neighbors that are checked for
+	 * conflicts with each spot. Neighbors that are too far away to be in
+	 * conflict are skipped anyway, so a large value only costs time in very
+	 * dense regions.
+	 *
+	 * @param maxNeighbors the maximum number of nearest neighbors that are
+	 *                     checked for conflicts with each spot.
+	 */
+	public static TagSetStructure.TagSet run( final Model model, final String tagSetName, final double threshold,
+			final StatusService statusService, final int numThreads, final int maxNeighbors )
 	{
 		final ModelGraph graph = model.getGraph();
 		TagSetStructure.TagSet tagSet;
@@ -97,7 +136,7 @@ public class CreateConflictTagSet
 		lock.lock();
 		try
 		{
-			tagSet = createTagSet( model, tagSetName, threshold, statusService );
+			tagSet = createTagSet( model, tagSetName, threshold, statusService, numThreads, maxNeighbors );
 			model.setUndoPoint();
 		}
 		finally
@@ -109,30 +148,83 @@ public class CreateConflictTagSet
 	}
 
 	private static TagSetStructure.TagSet createTagSet( final Model model, final String tagSetName, final double threshold,
-			final StatusService statusService )
+			final StatusService statusService, final int numThreads, final int maxNeighbors )
 	{
 		final RefIntMap< Spot > branchIds = getBranchIdMap( model );
-		final Map< TIntSet, RefList< Spot > > conflictGroups = computeConflictGroups( model, branchIds, threshold, statusService );
+		final ConflictCriterion criterion = new ConflictCriterion( new SpotCovarianceCache( model.getGraph() ), threshold, maxNeighbors );
+		final Map< TIntSet, RefList< Spot > > conflictGroups = computeConflictGroups( model, criterion, branchIds, statusService, numThreads );
 		return addTagSet( model, tagSetName, conflictGroups, branchIds );
 	}
 
-	private static Map< TIntSet, RefList< Spot > > computeConflictGroups( final Model model, final RefIntMap< Spot > branchIds,
-			final double threshold, final StatusService statusService )
+	private static Map< TIntSet, RefList< Spot > > computeConflictGroups( final Model model, final ConflictCriterion criterion,
+			final RefIntMap< Spot > branchIds, final StatusService statusService, final int numThreads )
 	{
 		final int maxTimepoint = TreeUtils.getMaxTimepoint( model );
 		final int minTimepoint = TreeUtils.getMinTimepoint( model );
 		final Map< TIntSet, RefList< Spot > > conflictGroups = new HashMap<>();
+		if ( numThreads > 1 )
+		{
+			for ( final List< Set< Spot > > conflicts : findConflictsParallel( model, criterion, minTimepoint, maxTimepoint, statusService, numThreads ) )
+				for ( final Set< Spot > conflict : conflicts )
+					addConflict( model, conflict, branchIds, conflictGroups );
+			return conflictGroups;
+		}
 		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
 		{
 			if ( statusService != null )
 				statusService.showProgress( timepoint, maxTimepoint );
 			final SpatialIndex< Spot > frame = model.getSpatioTemporalIndex().getSpatialIndex( timepoint );
-			for ( final Set< Spot > conflict : findConflictsForFrame( model.getGraph(), frame, threshold ) )
+			for ( final Set< Spot > conflict : findConflictsForFrame( model.getGraph(), criterion, frame ) )
 				addConflict( model, conflict, branchIds, conflictGroups );
 		}
 		return conflictGroups;
 	}
 
+	/**
+	 * Runs {@link #findConflictsForFrame} for all timepoints concurrently on a
+	 * {@link ForkJoinPool} with {@code numThreads} threads. Returns the
+	 * conflicts ordered by timepoint, such that merging them yields the same
+	 * result as the sequential version.
+	 * <p>
+	 * The workers don't acquire the graph lock themselves. They rely on the
+	 * lock that is held by the calling thread, which waits for them to finish.
+	 */
+	private static List< List< Set< Spot > > > findConflictsParallel( final Model model, final ConflictCriterion criterion,
+			final int minTimepoint, final int maxTimepoint, final StatusService statusService, final int numThreads )
+	{
+		final int numTimepoints = Math.max( 0, maxTimepoint - minTimepoint + 1 );
+		// NB: Spatial indices are created lazily, therefore they are fetched on this thread.
+		final List< SpatialIndex< Spot > > frames = new ArrayList<>( numTimepoints );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+			frames.add( model.getSpatioTemporalIndex().getSpatialIndex( timepoint ) );
+
+		final List< List< Set< Spot > > > conflicts = new ArrayList<>( Collections.nCopies( numTimepoints, null ) );
+		final AtomicInteger finished = new AtomicInteger();
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		try
+		{
+			pool.submit( () -> IntStream.range( 0, numTimepoints ).parallel().forEach( i -> {
+				conflicts.set( i, findConflictsForFrame( model.getGraph(), criterion, frames.get( i ) ) );
+				if ( statusService != null )
+					statusService.showProgress( finished.incrementAndGet(), numTimepoints );
+			} ) ).get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return conflicts;
+	}
+
 	private static void addConflict( final Model model, final Set< Spot > conflict, final RefIntMap< Spot > branchIds, final Map< TIntSet, RefList< Spot > > conflictGroups )
 	{
 		final TIntSet conflictBranchIds = mapToBranchIds( conflict, branchIds );
@@ -213,68 +305,189 @@ public class CreateConflictTagSet
 	/**
 	 * For the given frame, return a list of sets of spots that are in conflict.
 	 * Two spots are in conflict if their Hellinger distance is less than the threshold.
+	 * The sets are the connected components of the conflict graph.
 	 */
-	private static List< Set< Spot > > findConflictsForFrame( final ModelGraph graph, final SpatialIndex< Spot > frame, final double threshold )
+	static List< Set< Spot > > findConflictsForFrame( final ModelGraph graph, final ConflictCriterion criterion,
+			final SpatialIndex< Spot > frame )
 	{
-		// This method returns the connected components of the conflict graph.
-		// Reimplementing this method with a proper connected components algorithm would be a good idea.
+		double maxEigenvalueBound = 0;
+		for ( final Spot spot : frame )
+			maxEigenvalueBound = Math.max( maxEigenvalueBound, criterion.eigenvalueBound( spot.getInternalPoolIndex() ) );
 		final IncrementalNearestNeighborSearch< Spot > nearestNeighbors = frame.getIncrementalNearestNeighborSearch();
-		final RefObjectMap< Spot, Set< Spot > > conflicts = new RefObjectHashMap<>( graph.vertices().getRefPool() );
+		final CandidatePairs candidates = new CandidatePairs( criterion.cache );
 		for ( final Spot spot : frame )
+			findCandidatesForSpot( criterion, spot, nearestNeighbors, maxEigenvalueBound, candidates );
+		final IntUnionFind components = candidates.unionConflicts( criterion.threshold );
+		final RefPool< Spot > pool = graph.vertices().getRefPool();
+		final Spot ref = graph.vertexRef();
+		final List< Set< Spot > > conflicts = new ArrayList<>();
+		for ( final TIntArrayList component : components.getSets() )
 		{
-			final RefSet< Spot > group = findConflictsForSpot( graph, spot, nearestNeighbors, threshold );
-			if ( group != null && !group.isEmpty() )
-			{
-				group.add( spot );
-				mergeGroups( group, conflicts );
-			}
+			final RefSet< Spot > group = RefCollections.createRefSet( graph.vertices(), component.size() );
+			for ( int i = 0; i < component.size(); i++ )
+				group.add( pool.getObject( component.getQuick( i ), ref ) );
+			conflicts.add( group );
 		}
-		return new ArrayList<>( conflicts.values() );
+		graph.releaseRef( ref );
+		return conflicts;
 	}
 
 	/**
-	 * Return a set of spots that the given spot is in conflict with.
-	 * Two spots are in conflict if their Hellinger distance is less than the threshold.
+	 * Find the spots that the given spot might be in conflict with, and add
+	 * them as pairs to {@code candidates}.
 	 * <p>
-	 * For efficiency, we only check the 10 nearest neighbors.
+	 * The nearest neighbors are visited in order of increasing distance.
+	 * The search stops after {@link ConflictCriterion#maxNeighbors} neighbors,
+	 * or as soon as the distance is too large for a conflict with any spot
+	 * of the frame, see {@link ConflictCriterion#minDistanceSquForNoConflict}.
+	 * Only the remaining neighbors that are close enough to be in conflict
+	 * with the given spot are added as candidates.
 	 */
-	private static RefSet< Spot > findConflictsForSpot( final ModelGraph graph, final Spot spot, final IncrementalNearestNeighborSearch< Spot > nearestNeighbors, final double threshold )
+	private static void findCandidatesForSpot( final ConflictCriterion criterion, final Spot spot,
+			final IncrementalNearestNeighborSearch< Spot > nearestNeighbors, final double maxEigenvalueBound,
+			final CandidatePairs candidates )
 	{
-		// NB: Having a fixed number of neighbors to check is a bad idea.
-		//    This is a quick hack to make the method run in reasonable time.
-		//    It would be better to derive a distance threshold from the Hellinger
-		//    distance equation, Hellinger distance threshold and the spot radius.
-		RefSet< Spot > group = null;
+		final int spotIndex = spot.getInternalPoolIndex();
+		final double spotEigenvalueBound = criterion.eigenvalueBound( spotIndex );
+		final double searchRadiusSqu = criterion.minDistanceSquForNoConflict( spotEigenvalueBound, maxEigenvalueBound );
 		nearestNeighbors.search( spot );
 		int i = 0;
-		while ( nearestNeighbors.hasNext() && i < 10 )
+		while ( nearestNeighbors.hasNext() && i < criterion.maxNeighbors )
 		{
 			i++;
 			final Spot neighbor = nearestNeighbors.next();
 			if ( spot.equals( neighbor ) )
 				continue;
-			final boolean conflict = HellingerDistance.hellingerDistance( spot, neighbor ) < threshold;
-			if ( conflict )
-			{
-				if ( null == group )
-					group = new RefSetImp<>( graph.vertices().getRefPool() );
-				group.add( neighbor );
-			}
+			final double distanceSqu = nearestNeighbors.getSquareDistance();
+			if ( distanceSqu >= searchRadiusSqu )
+				break;
+			final int neighborIndex = neighbor.getInternalPoolIndex();
+			if ( distanceSqu >= criterion.minDistanceSquForNoConflict( spotEigenvalueBound, criterion.eigenvalueBound( neighborIndex ) ) )
+				continue;
+			candidates.add( spotIndex, neighborIndex );
+		}
+	}
+
+	/**
+	 * Pairs of spots that might be in conflict. Their Hellinger distances are
+	 * computed in one go by a {@link HellingerDistanceBatch}.
+	 */
+	private static class CandidatePairs
+	{
+		private final SpotCovarianceCache cache;
+
+		private final HellingerDistanceBatch batch = new HellingerDistanceBatch();
+
+		private final TIntArrayList indicesA = new TIntArrayList();
+
+		private final TIntArrayList indicesB = new TIntArrayList();
+
+		private CandidatePairs( final SpotCovarianceCache cache )
+		{
+			this.cache = cache;
+		}
+
+		private void add( final int internalPoolIndexA, final int internalPoolIndexB )
+		{
+			batch.add( cache, internalPoolIndexA, cache, internalPoolIndexB );
+			indicesA.add( internalPoolIndexA );
+			indicesB.add( internalPoolIndexB );
+		}
+
+		/**
+		 * Joins all pairs whose Hellinger distance is less than the threshold.
+		 */
+		private IntUnionFind unionConflicts( final double threshold )
+		{
+			final double[] distances = batch.compute();
+			final IntUnionFind components = new IntUnionFind();
+			for ( int i = 0; i < batch.size(); i++ )
+				if ( distances[ i ] < threshold )
+					components.union( indicesA.getQuick( i ), indicesB.getQuick( i ) );
+			return components;
 		}
-		return group;
 	}
 
-	private static void mergeGroups( final RefSet< Spot > group, final RefObjectMap< Spot, Set< Spot > > conflicts )
+	/**
+	 * Parameters of the conflict search. Provides an analytic lower bound of
+	 * the Hellinger distance, that is used to skip spots that are too far
+	 * apart to be in conflict.
+	 * <p>
+	 * The Bhattacharyya coefficient of two Gaussians is
+	 * {@code BC = f * exp( -1/8 * d^T S^-1 d )}, where {@code S} is the mean
+	 * of the two covariance matrices, {@code d} is the difference of the
+	 * means, and the factor {@code f} depends only on the determinants and
+	 * is never larger than 1. With {@code l1, l2} upper bounds of the
+	 * largest eigenvalues of the two covariance matrices it follows that
+	 * {@code BC <= exp( -|d|^2 / ( 4 * ( l1 + l2 ) ) )}. The Hellinger
+	 * distance {@code sqrt( 1 - BC )} can therefore only be less than the
+	 * threshold {@code t} if
+	 * {@code |d|^2 < -4 * ln( 1 - t^2 ) * ( l1 + l2 )}.
+	 */
+	static class ConflictCriterion
 	{
-		final RefSet< Spot > combined = RefCollections.createRefSet( group );
-		combined.addAll( group );
-		for ( final Spot a : group )
+		private final SpotCovarianceCache cache;
+
+		private final double threshold;
+
+		private final int maxNeighbors;
+
+		/**
+		 * {@code -4 * ln( 1 - threshold^2 )}, infinite for thresholds
+		 * greater than or equal to 1.
+		 */
+		private final double distanceFactor;
+
+		/**
+		 * Upper bounds of the largest eigenvalue of each spot's covariance
+		 * matrix, indexed by {@link SpotCovarianceCache#slot(int)}.
+		 */
+		private final double[] eigenvalueBounds;
+
+		ConflictCriterion( final SpotCovarianceCache cache, final double threshold, final int maxNeighbors )
+		{
+			this.cache = cache;
+			this.threshold = threshold;
+			this.maxNeighbors = maxNeighbors;
+			this.distanceFactor = threshold >= 1 ? Double.POSITIVE_INFINITY : -4 * Math.log( 1 - threshold * threshold );
+			this.eigenvalueBounds = gershgorinBounds( cache.getCovariances() );
+		}
+
+		private double eigenvalueBound( final int internalPoolIndex )
+		{
+			return eigenvalueBounds[ cache.slot( internalPoolIndex ) ];
+		}
+
+		/**
+		 * Returns the squared distance, above which two spots with the given
+		 * eigenvalue bounds can't be in conflict.
+		 */
+		private double minDistanceSquForNoConflict( final double eigenvalueBoundA, final double eigenvalueBoundB )
 		{
-			final Set< Spot > c = conflicts.get( a );
-			if ( c != null )
-				combined.addAll( c );
+			return distanceFactor * ( eigenvalueBoundA + eigenvalueBoundB );
+		}
+
+		/**
+		 * Upper bounds of the largest eigenvalues of the symmetric 3x3
+		 * matrices stored in {@code covariances}, computed with the
+		 * Gershgorin circle theorem.
+		 */
+		private static double[] gershgorinBounds( final double[] covariances )
+		{
+			final int n = covariances.length / 6;
+			final double[] bounds = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				final int o = 6 * i;
+				final double xx = covariances[ o ];
+				final double xy = Math.abs( covariances[ o + 1 ] );
+				final double xz = Math.abs( covariances[ o + 2 ] );
+				final double yy = covariances[ o + 3 ];
+				final double yz = Math.abs( covariances[ o + 4 ] );
+				final double zz = covariances[ o + 5 ];
+				bounds[ i ] = Math.max( xx + xy + xz, Math.max( yy + xy + yz, zz + xz + yz ) );
+			}
+			return bounds;
 		}
-		for ( final Spot a : combined )
-			conflicts.put( a, combined );
 	}
 }
@@ -28,6 +28,8 @@
  */
 package org.mastodon.mamut.tomancak.resolve;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.util.List;
 
 import org.mastodon.mamut.ProjectModel;
@@ -99,6 +101,12 @@ public class CreateConflictTagSetCommand extends DefaultCancelable implements Co
 	@Parameter( label = "Custom Threshold:", min = "0.0", max = "1.0", stepSize = "0.05" )
 	private double customThreshold = 0.4;
 
+	@Parameter( label = "Neighbors to check per spot:", min = "1", description = "Maximum number of nearest neighbors that are checked for conflicts with each spot. Neighbors that are too far away to be in conflict are skipped anyway." )
+	private int maxNeighbors = CreateConflictTagSet.DEFAULT_MAX_NEIGHBORS;
+
+	@Parameter( label = "Update conflicts while editing:", description = "Keep the tag set up to date while spots are added, moved or removed, as long as the \"Locate Tags\" window is open." )
+	private boolean live = false;
+
 	public static void run( final ProjectModel projectModel )
 	{
 		final CommandService cmd = projectModel.getContext().service( CommandService.class );
@@ -111,8 +119,22 @@ public class CreateConflictTagSetCommand extends DefaultCancelable implements Co
 		final double threshold = getThreshold();
 		final String tagSetName = String.format( "Conflicting Spots (threshold=%1.2f)", threshold );
 		removeTagSetIfExists( projectModel.getModel(), tagSetName );
+		if ( live )
+		{
+			final LiveConflictTagSet liveTagSet = LiveConflictTagSet.start( projectModel.getModel(), tagSetName, threshold, maxNeighbors );
+			final LocateTagsFrame frame = LocateTagsFrame.run( projectModel, liveTagSet.getTagSet() );
+			frame.addWindowListener( new WindowAdapter()
+			{
+				@Override
+				public void windowClosed( final WindowEvent e )
+				{
+					liveTagSet.close();
+				}
+			} );
+			return;
+		}
 		final TagSetStructure.TagSet tagSet = CreateConflictTagSet.run( projectModel.getModel(), tagSetName, threshold,
-				projectModel.getContext().service( StatusService.class ) );
+				projectModel.getContext().service( StatusService.class ), Runtime.getRuntime().availableProcessors(), maxNeighbors );
 		LocateTagsFrame.run( projectModel, tagSet );
 	}
 
@@ -31,6 +31,8 @@ package org.mastodon.mamut.tomancak.resolve;
 import net.imglib2.util.LinAlgHelpers;
 
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.SpotCovarianceCache;
+import org.mastodon.mamut.tomancak.merging.SpotMath;
 
 /**
  * Compute the Hellinger distance.
@@ -58,6 +60,57 @@ public class HellingerDistance
 		return hellingerDistance( a.positionAsDoubleArray(), covariance( a ), b.positionAsDoubleArray(), covariance( b ) );
 	}
 
+	/**
+	 * Same as {@link #hellingerDistance(Spot, Spot)}, but reads the spot
+	 * shapes from {@link SpotCovarianceCache}s. Pure arithmetic, no
+	 * allocation.
+	 *
+	 * @param cacheA
+	 *            cache that contains the first spot.
+	 * @param internalPoolIndexA
+	 *            internal pool index of the first spot.
+	 * @param cacheB
+	 *            cache that contains the second spot. May be the same as
+	 *            {@code cacheA}.
+	 * @param internalPoolIndexB
+	 *            internal pool index of the second spot.
+	 */
+	public static double hellingerDistance( final SpotCovarianceCache cacheA, final int internalPoolIndexA, final SpotCovarianceCache cacheB, final int internalPoolIndexB )
+	{
+		final int a = cacheA.slot( internalPoolIndexA );
+		final int b = cacheB.slot( internalPoolIndexB );
+		final double[] covA = cacheA.getCovariances();
+		final double[] covB = cacheB.getCovariances();
+		final int ca = 6 * a;
+		final int cb = 6 * b;
+		final double xx = 0.5 * ( covA[ ca ] + covB[ cb ] );
+		final double xy = 0.5 * ( covA[ ca + 1 ] + covB[ cb + 1 ] );
+		final double xz = 0.5 * ( covA[ ca + 2 ] + covB[ cb + 2 ] );
+		final double yy = 0.5 * ( covA[ ca + 3 ] + covB[ cb + 3 ] );
+		final double yz = 0.5 * ( covA[ ca + 4 ] + covB[ cb + 4 ] );
+		final double zz = 0.5 * ( covA[ ca + 5 ] + covB[ cb + 5 ] );
+		final double detAverage = SpotMath.detSymmetric3x3( xx, xy, xz, yy, yz, zz );
+
+		final double[] posA = cacheA.getPositions();
+		final double[] posB = cacheB.getPositions();
+		final double dx = posA[ 3 * a ] - posB[ 3 * b ];
+		final double dy = posA[ 3 * a + 1 ] - posB[ 3 * b + 1 ];
+		final double dz = posA[ 3 * a + 2 ] - posB[ 3 * b + 2 ];
+
+		// diff^T * adjugate(averageCov) * diff / det(averageCov) = diff^T * inverse(averageCov) * diff
+		final double m = ( ( yy * zz - yz * yz ) * dx * dx
+				+ ( xx * zz - xz * xz ) * dy * dy
+				+ ( xx * yy - xy * xy ) * dz * dz
+				+ 2 * ( ( xz * yz - xy * zz ) * dx * dy
+						+ ( xy * yz - xz * yy ) * dx * dz
+						+ ( xy * xz - xx * yz ) * dy * dz ) ) / detAverage;
+
+		final double detA = cacheA.getDeterminants()[ a ];
+		final double detB = cacheB.getDeterminants()[ b ];
+		final double bc = Math.sqrt( Math.sqrt( detA * detB ) / detAverage ) * Math.exp( -0.125 * m );
+		return Math.sqrt( 1 - bc );
+	}
+
 	public static double hellingerDistance( final double[] mean1, final double[][] cov1, final double[] mean2, final double[][] cov2 )
 	{
 		return Math.sqrt( 1 - bhattacharyyaCoefficient( mean1, cov1, mean2, cov2 ) );
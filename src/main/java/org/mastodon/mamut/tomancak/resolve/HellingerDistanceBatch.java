@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.resolve;
+
+import java.util.Arrays;
+
+import org.mastodon.mamut.tomancak.merging.SpotCovarianceCache;
+
+/**
+ * Computes the {@link HellingerDistance Hellinger distance} for many pairs
+ * of spots at once.
+ * <p>
+ * The pairs are collected with {@link #add}, which copies the positions and
+ * covariances of both spots into struct-of-arrays buffers: one
+ * {@code double[]} per coordinate and per unique covariance entry. Then
+ * {@link #compute()} evaluates all pairs without allocation. The kernel
+ * {@link #hellingerDistances} consists of simple loops over these arrays
+ * that the JIT compiler can auto-vectorize. Only {@link Math#exp} is
+ * evaluated in a separate, scalar loop.
+ */
+public class HellingerDistanceBatch
+{
+
+	/**
+	 * Number of columns per spot: x, y, z, xx, xy, xz, yy, yz, zz.
+	 */
+	public static final int NUM_COLUMNS = 9;
+
+	private final double[][] columnsA = new double[ NUM_COLUMNS ][];
+
+	private final double[][] columnsB = new double[ NUM_COLUMNS ][];
+
+	private double[] exponents;
+
+	private double[] distances;
+
+	private int size = 0;
+
+	public HellingerDistanceBatch()
+	{
+		this( 64 );
+	}
+
+	public HellingerDistanceBatch( final int initialCapacity )
+	{
+		final int capacity = Math.max( 1, initialCapacity );
+		for ( int c = 0; c < NUM_COLUMNS; c++ )
+		{
+			columnsA[ c ] = new double[ capacity ];
+			columnsB[ c ] = new double[ capacity ];
+		}
+		exponents = new double[ capacity ];
+		distances = new double[ capacity ];
+	}
+
+	/**
+	 * Removes all pairs.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * @return the number of pairs.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Adds a pair of spots, that are read from {@link SpotCovarianceCache}s.
+	 *
+	 * @param cacheA
+	 *            cache that contains the first spot.
+	 * @param internalPoolIndexA
+	 *            internal pool index of the first spot.
+	 * @param cacheB
+	 *            cache that contains the second spot. May be the same as
+	 *            {@code cacheA}.
+	 * @param internalPoolIndexB
+	 *            internal pool index of the second spot.
+	 */
+	public void add( final SpotCovarianceCache cacheA, final int internalPoolIndexA, final SpotCovarianceCache cacheB, final int internalPoolIndexB )
+	{
+		ensureCapacity( size + 1 );
+		copy( cacheA, cacheA.slot( internalPoolIndexA ), columnsA, size );
+		copy( cacheB, cacheB.slot( internalPoolIndexB ), columnsB, size );
+		size++;
+	}
+
+	/**
+	 * Computes the Hellinger distances of all pairs.
+	 *
+	 * @return an array that contains the distance of the i-th pair at
+	 *         index i, for i &lt; {@link #size()}. The array is reused by
+	 *         subsequent calls.
+	 */
+	public double[] compute()
+	{
+		hellingerDistances( columnsA, columnsB, size, exponents, distances );
+		return distances;
+	}
+
+	/**
+	 * Computes the Hellinger distances for {@code count} pairs of spots,
+	 * given in struct-of-arrays layout. Doesn't allocate.
+	 *
+	 * @param columnsA
+	 *            {@link #NUM_COLUMNS} arrays with the x, y, z coordinates and
+	 *            the covariance entries xx, xy, xz, yy, yz, zz of the first
+	 *            spot of each pair.
+	 * @param columnsB
+	 *            same for the second spot of each pair.
+	 * @param count
+	 *            number of pairs.
+	 * @param exponents
+	 *            temporary array, at least of size {@code count}.
+	 * @param distances
+	 *            output array, at least of size {@code count}.
+	 */
+	public static void hellingerDistances( final double[][] columnsA, final double[][] columnsB, final int count,
+			final double[] exponents, final double[] distances )
+	{
+		final double[] ax = columnsA[ 0 ], ay = columnsA[ 1 ], az = columnsA[ 2 ];
+		final double[] axx = columnsA[ 3 ], axy = columnsA[ 4 ], axz = columnsA[ 5 ];
+		final double[] ayy = columnsA[ 6 ], ayz = columnsA[ 7 ], azz = columnsA[ 8 ];
+		final double[] bx = columnsB[ 0 ], by = columnsB[ 1 ], bz = columnsB[ 2 ];
+		final double[] bxx = columnsB[ 3 ], bxy = columnsB[ 4 ], bxz = columnsB[ 5 ];
+		final double[] byy = columnsB[ 6 ], byz = columnsB[ 7 ], bzz = columnsB[ 8 ];
+
+		// Loop 1: only +, -, *, / and sqrt, which the JIT can vectorize.
+		// Writes the determinant factor of the Bhattacharyya coefficient to
+		// "distances" and the argument of exp() to "exponents".
+		for ( int i = 0; i < count; i++ )
+		{
+			final double xx = 0.5 * ( axx[ i ] + bxx[ i ] );
+			final double xy = 0.5 * ( axy[ i ] + bxy[ i ] );
+			final double xz = 0.5 * ( axz[ i ] + bxz[ i ] );
+			final double yy = 0.5 * ( ayy[ i ] + byy[ i ] );
+			final double yz = 0.5 * ( ayz[ i ] + byz[ i ] );
+			final double zz = 0.5 * ( azz[ i ] + bzz[ i ] );
+			final double c00 = yy * zz - yz * yz;
+			final double c11 = xx * zz - xz * xz;
+			final double c22 = xx * yy - xy * xy;
+			final double c01 = xz * yz - xy * zz;
+			final double c02 = xy * yz - xz * yy;
+			final double c12 = xy * xz - xx * yz;
+			final double detAverage = xx * c00 + xy * c01 + xz * c02;
+			final double detA = axx[ i ] * ( ayy[ i ] * azz[ i ] - ayz[ i ] * ayz[ i ] )
+					+ axy[ i ] * ( axz[ i ] * ayz[ i ] - axy[ i ] * azz[ i ] )
+					+ axz[ i ] * ( axy[ i ] * ayz[ i ] - axz[ i ] * ayy[ i ] );
+			final double detB = bxx[ i ] * ( byy[ i ] * bzz[ i ] - byz[ i ] * byz[ i ] )
+					+ bxy[ i ] * ( bxz[ i ] * byz[ i ] - bxy[ i ] * bzz[ i ] )
+					+ bxz[ i ] * ( bxy[ i ] * byz[ i ] - bxz[ i ] * byy[ i ] );
+			final double dx = ax[ i ] - bx[ i ];
+			final double dy = ay[ i ] - by[ i ];
+			final double dz = az[ i ] - bz[ i ];
+			// diff^T * adjugate(averageCov) * diff / det(averageCov) = diff^T * inverse(averageCov) * diff
+			final double m = ( c00 * dx * dx + c11 * dy * dy + c22 * dz * dz
+					+ 2 * ( c01 * dx * dy + c02 * dx * dz + c12 * dy * dz ) ) / detAverage;
+			exponents[ i ] = -0.125 * m;
+			distances[ i ] = Math.sqrt( Math.sqrt( detA * detB ) / detAverage );
+		}
+
+		// Loop 2: exp() is not vectorized.
+		for ( int i = 0; i < count; i++ )
+		{
+			final double bc = distances[ i ] * Math.exp( exponents[ i ] );
+			distances[ i ] = Math.sqrt( Math.max( 0, 1 - bc ) );
+		}
+	}
+
+	private static void copy( final SpotCovarianceCache cache, final int slot, final double[][] columns, final int i )
+	{
+		final double[] positions = cache.getPositions();
+		final double[] covariances = cache.getCovariances();
+		for ( int d = 0; d < 3; d++ )
+			columns[ d ][ i ] = positions[ 3 * slot + d ];
+		for ( int k = 0; k < 6; k++ )
+			columns[ 3 + k ][ i ] = covariances[ 6 * slot + k ];
+	}
+
+	private void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= distances.length )
+			return;
+		final int newCapacity = Math.max( capacity, 2 * distances.length );
+		for ( int c = 0; c < NUM_COLUMNS; c++ )
+		{
+			columnsA[ c ] = Arrays.copyOf( columnsA[ c ], newCapacity );
+			columnsB[ c ] = Arrays.copyOf( columnsB[ c ], newCapacity );
+		}
+		exponents = Arrays.copyOf( exponents, newCapacity );
+		distances = Arrays.copyOf( distances, newCapacity );
+	}
+}
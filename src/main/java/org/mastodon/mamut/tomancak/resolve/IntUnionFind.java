@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.resolve;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Union-find (disjoint set) data structure over int keys, for example
+ * the internal pool indices of spots. Keys are added implicitly by
+ * {@link #union(int, int)}. Uses union by size and path compression.
+ */
+class IntUnionFind
+{
+
+	private static final int NO_ENTRY = -1;
+
+	/**
+	 * Maps a key to its parent. Keys without entry are roots.
+	 */
+	private final TIntIntHashMap parents = new TIntIntHashMap( 10, 0.5f, NO_ENTRY, NO_ENTRY );
+
+	/**
+	 * Maps a root to the size of its set.
+	 */
+	private final TIntIntHashMap sizes = new TIntIntHashMap( 10, 0.5f, NO_ENTRY, 0 );
+
+	/**
+	 * All keys, in the order in which they were first added.
+	 */
+	private final TIntArrayList keys = new TIntArrayList();
+
+	/**
+	 * Returns the representative of the set that contains the given key.
+	 */
+	public int find( final int key )
+	{
+		int root = key;
+		int parent;
+		while ( ( parent = parents.get( root ) ) != NO_ENTRY )
+			root = parent;
+		int current = key;
+		while ( current != root )
+		{
+			final int next = parents.get( current );
+			parents.put( current, root );
+			current = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Merges the sets that contain the two given keys.
+	 */
+	public void union( final int a, final int b )
+	{
+		final int rootA = find( add( a ) );
+		final int rootB = find( add( b ) );
+		if ( rootA == rootB )
+			return;
+		final int sizeA = sizes.get( rootA );
+		final int sizeB = sizes.get( rootB );
+		final int root = sizeA >= sizeB ? rootA : rootB;
+		final int child = sizeA >= sizeB ? rootB : rootA;
+		parents.put( child, root );
+		sizes.remove( child );
+		sizes.put( root, sizeA + sizeB );
+	}
+
+	/**
+	 * Returns the sets as arrays of keys. The sets are ordered by the first
+	 * occurrence of any of their keys, the keys within a set are in the
+	 * order in which they were added.
+	 */
+	public TIntArrayList[] getSets()
+	{
+		final TIntObjectHashMap< TIntArrayList > sets = new TIntObjectHashMap<>();
+		final TIntArrayList[] result = new TIntArrayList[ sizes.size() ];
+		int n = 0;
+		for ( int i = 0; i < keys.size(); i++ )
+		{
+			final int key = keys.getQuick( i );
+			final int root = find( key );
+			TIntArrayList set = sets.get( root );
+			if ( set == null )
+			{
+				set = new TIntArrayList( sizes.get( root ) );
+				sets.put( root, set );
+				result[ n++ ] = set;
+			}
+			set.add( key );
+		}
+		return result;
+	}
+
+	private int add( final int key )
+	{
+		if ( !parents.containsKey( key ) && !sizes.containsKey( key ) )
+		{
+			sizes.put( key, 1 );
+			keys.add( key );
+		}
+		return key;
+	}
+}
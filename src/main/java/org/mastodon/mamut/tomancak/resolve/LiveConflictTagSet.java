@@ -0,0 +1,425 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.resolve;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.mastodon.collection.RefMaps;
+import org.mastodon.collection.RefObjectMap;
+import org.mastodon.graph.GraphChangeListener;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.SpotCovarianceCache;
+import org.mastodon.mamut.tomancak.resolve.CreateConflictTagSet.ConflictCriterion;
+import org.mastodon.mamut.tomancak.util.Glasbey;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.spatial.VertexPositionListener;
+import org.mastodon.util.TagSetUtils;
+import org.mastodon.util.TreeUtils;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * A conflict tag set that is kept up to date while the graph is edited.
+ * <p>
+ * The timepoints of spots that are added, removed or moved are recorded.
+ * When the graph change is completed ({@link GraphChangeListener}), only the
+ * conflicts of these timepoints are re-evaluated and re-tagged. Conflicts are
+ * detected exactly as by {@link CreateConflictTagSet}.
+ * <p>
+ * The re-evaluation runs on a background thread, which takes the write lock
+ * of the graph itself, such that the thread that notifies the graph change
+ * is neither blocked nor required to hold a lock. The updater doesn't set
+ * undo points: its tag changes become part of the pending undo step, which
+ * is completed by the next edit of the user. Hence, a single undo reverts an
+ * edit of the user, instead of only the automatic tags. Only tags that
+ * actually change are written, such that an undo, which restores spots and
+ * tags together, does not trigger new edits that would clear the redo
+ * stack.
+ * <p>
+ * The spots of a conflict are tagged with "Conflict (a)", "Conflict (b)", ...
+ * The letter is given by the order of the branches that the spots belong
+ * to. More tags are added to the tag set when a conflict has more spots than
+ * there are tags. Unlike the tags of {@link CreateConflictTagSet}, these tags don't
+ * depend on the conflicts of other timepoints, which is what makes the
+ * incremental update possible.
+ * <p>
+ * NB: Only added, removed and moved spots are detected. Mastodon does not
+ * emit a graph event if only the covariance of a spot changes. Such changes
+ * are picked up with the next update of the same timepoint, or by
+ * {@link #refresh()}.
+ */
+public class LiveConflictTagSet implements GraphListener< Spot, Link >, VertexPositionListener< Spot >, GraphChangeListener
+{
+
+	/** The initial number of tags, see {@link #addTags(int)}. */
+	private static final int NUMBER_OF_TAGS = 8;
+
+	private final Model model;
+
+	private final ModelGraph graph;
+
+	private volatile TagSetStructure.TagSet tagSet;
+
+	private final double threshold;
+
+	private final int maxNeighbors;
+
+	private final TIntSet dirtyTimepoints = new TIntHashSet();
+
+	private final ExecutorService updater = Executors.newSingleThreadExecutor( runnable -> {
+		final Thread thread = new Thread( runnable, "live conflict tag set" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private LiveConflictTagSet( final Model model, final TagSetStructure.TagSet tagSet, final double threshold, final int maxNeighbors )
+	{
+		this.model = model;
+		this.graph = model.getGraph();
+		this.tagSet = tagSet;
+		this.threshold = threshold;
+		this.maxNeighbors = maxNeighbors;
+	}
+
+	/**
+	 * Adds a new conflict tag set to the model, tags all conflicts and starts
+	 * listening to changes of the graph. Call {@link #close()} to stop
+	 * updating the tag set.
+	 *
+	 * @param threshold    the Hellinger distance threshold, see
+	 *                     {@link CreateConflictTagSet#run}.
+	 * @param maxNeighbors the maximum number of nearest neighbors that are
+	 *                     checked for conflicts with each spot.
+	 */
+	public static LiveConflictTagSet start( final Model model, final String tagSetName, final double threshold, final int maxNeighbors )
+	{
+		final ModelGraph graph = model.getGraph();
+		final LiveConflictTagSet live;
+		final ReentrantReadWriteLock.WriteLock lock = graph.getLock().writeLock();
+		lock.lock();
+		try
+		{
+			live = new LiveConflictTagSet( model, createTags( model, tagSetName ), threshold, maxNeighbors );
+			graph.addGraphListener( live );
+			graph.addVertexPositionListener( live );
+			graph.addGraphChangeListener( live );
+			live.markAllTimepoints();
+			live.updateDirtyTimepoints();
+			model.setUndoPoint();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		graph.notifyGraphChanged();
+		return live;
+	}
+
+	public TagSetStructure.TagSet getTagSet()
+	{
+		return tagSet;
+	}
+
+	/**
+	 * Re-evaluates the conflicts of all timepoints in the background.
+	 */
+	public void refresh()
+	{
+		synchronized ( dirtyTimepoints )
+		{
+			markAllTimepoints();
+		}
+		graphChanged();
+	}
+
+	/**
+	 * Stops updating the tag set. The tags remain in the model.
+	 */
+	public void close()
+	{
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( this );
+		graph.removeGraphChangeListener( this );
+		updater.shutdown();
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		synchronized ( dirtyTimepoints )
+		{
+			markAllTimepoints();
+		}
+	}
+
+	@Override
+	public void vertexAdded( final Spot spot )
+	{
+		markTimepoint( spot );
+	}
+
+	@Override
+	public void vertexRemoved( final Spot spot )
+	{
+		markTimepoint( spot );
+	}
+
+	@Override
+	public void vertexPositionChanged( final Spot spot )
+	{
+		markTimepoint( spot );
+	}
+
+	@Override
+	public void edgeAdded( final Link link )
+	{
+		// ignore, links don't influence conflicts
+	}
+
+	@Override
+	public void edgeRemoved( final Link link )
+	{
+		// ignore, links don't influence conflicts
+	}
+
+	@Override
+	public void graphChanged()
+	{
+		synchronized ( dirtyTimepoints )
+		{
+			if ( dirtyTimepoints.isEmpty() )
+				return;
+		}
+		// NB: The notifying thread may hold the read lock, therefore the
+		// write lock is only taken on the updater thread.
+		if ( !updater.isShutdown() )
+			updater.execute( this::update );
+	}
+
+	/**
+	 * Waits until the updates that were triggered so far are completed.
+	 */
+	void awaitUpdates() throws InterruptedException, ExecutionException
+	{
+		updater.submit( () -> {} ).get();
+	}
+
+	private void update()
+	{
+		synchronized ( dirtyTimepoints )
+		{
+			if ( dirtyTimepoints.isEmpty() )
+				return;
+		}
+		final boolean changed;
+		final ReentrantReadWriteLock.WriteLock lock = graph.getLock().writeLock();
+		lock.lock();
+		try
+		{
+			// NB: No undo point, see class documentation.
+			changed = updateDirtyTimepoints();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		if ( changed )
+			graph.notifyGraphChanged();
+	}
+
+	private void markTimepoint( final Spot spot )
+	{
+		synchronized ( dirtyTimepoints )
+		{
+			dirtyTimepoints.add( spot.getTimepoint() );
+		}
+	}
+
+	private void markAllTimepoints()
+	{
+		if ( graph.vertices().isEmpty() )
+			return;
+		final int minTimepoint = TreeUtils.getMinTimepoint( model );
+		final int maxTimepoint = TreeUtils.getMaxTimepoint( model );
+		for ( int timepoint = minTimepoint; timepoint <= maxTimepoint; timepoint++ )
+			dirtyTimepoints.add( timepoint );
+	}
+
+	/**
+	 * @return {@code true} if any tag was changed.
+	 */
+	private boolean updateDirtyTimepoints()
+	{
+		final int[] timepoints;
+		synchronized ( dirtyTimepoints )
+		{
+			timepoints = dirtyTimepoints.toArray();
+			dirtyTimepoints.clear();
+		}
+		boolean changed = false;
+		for ( final int timepoint : timepoints )
+			changed |= updateTimepoint( timepoint );
+		return changed;
+	}
+
+	/**
+	 * Finds the conflicts of the given timepoint, and updates the conflict
+	 * tags of the spots of this timepoint. Spots, whose tag is already
+	 * correct, are not touched.
+	 *
+	 * @return {@code true} if any tag was changed.
+	 */
+	private boolean updateTimepoint( final int timepoint )
+	{
+		final SpatialIndex< Spot > frame = model.getSpatioTemporalIndex().getSpatialIndex( timepoint );
+		final RefObjectMap< Spot, TagSetStructure.Tag > newTags = RefMaps.createRefObjectMap( graph.vertices() );
+		final ConflictCriterion criterion = new ConflictCriterion( new SpotCovarianceCache( graph, frame ), threshold, maxNeighbors );
+		for ( final Set< Spot > conflict : CreateConflictTagSet.findConflictsForFrame( graph, criterion, frame ) )
+			assignTags( conflict, newTags );
+
+		final ObjTagMap< Spot, TagSetStructure.Tag > spotTags = model.getTagSetModel().getVertexTags().tags( tagSet );
+		final ObjTagMap< Link, TagSetStructure.Tag > linkTags = model.getTagSetModel().getEdgeTags().tags( tagSet );
+		boolean changed = false;
+		for ( final Spot spot : frame )
+		{
+			final TagSetStructure.Tag tag = newTags.get( spot );
+			if ( Objects.equals( spotTags.get( spot ), tag ) )
+				continue;
+			changed = true;
+			if ( tag != null )
+			{
+				TagSetUtils.tagSpotAndIncomingEdges( model, spot, tagSet, tag );
+				continue;
+			}
+			spotTags.remove( spot );
+			for ( final Link link : spot.incomingEdges() )
+				linkTags.remove( link );
+		}
+		return changed;
+	}
+
+	/**
+	 * Assigns tags to the spots of a conflict. The spot that belongs to the
+	 * branch with the smallest first spot gets "Conflict (a)", the next one
+	 * "Conflict (b)" and so on.
+	 */
+	private void assignTags( final Set< Spot > conflict, final RefObjectMap< Spot, TagSetStructure.Tag > newTags )
+	{
+		final TIntArrayList branchStarts = new TIntArrayList( conflict.size() );
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spot : conflict )
+			branchStarts.add( getBranchStart( spot, ref ).getInternalPoolIndex() );
+		final TIntArrayList sorted = new TIntArrayList( branchStarts );
+		sorted.sort();
+		if ( conflict.size() > tagSet.getTags().size() )
+			addTags( conflict.size() );
+		final List< TagSetStructure.Tag > tags = tagSet.getTags();
+		int i = 0;
+		for ( final Spot spot : conflict )
+		{
+			final int letter = sorted.binarySearch( branchStarts.get( i++ ) );
+			newTags.put( spot, tags.get( letter ) );
+		}
+		graph.releaseRef( ref );
+	}
+
+	/**
+	 * Returns the first spot of the branch that the given spot belongs to.
+	 */
+	private Spot getBranchStart( final Spot spot, final Spot ref )
+	{
+		final Link edgeRef = graph.edgeRef();
+		final Spot parentRef = graph.vertexRef();
+		ref.refTo( spot );
+		while ( ref.incomingEdges().size() == 1 )
+		{
+			final Spot parent = ref.incomingEdges().get( 0, edgeRef ).getSource( parentRef );
+			if ( parent.outgoingEdges().size() != 1 )
+				break;
+			ref.refTo( parent );
+		}
+		graph.releaseRef( parentRef );
+		graph.releaseRef( edgeRef );
+		return ref;
+	}
+
+	/**
+	 * Adds tags to the tag set, until it contains the given number of tags.
+	 * Must be called while the graph is write-locked.
+	 */
+	private void addTags( final int numberOfTags )
+	{
+		final TagSetStructure tss = new TagSetStructure();
+		tss.set( model.getTagSetModel().getTagSetStructure() );
+		final int index = tss.getTagSets().indexOf( tagSet );
+		if ( index < 0 )
+			throw new IllegalStateException( "The tag set \"" + tagSet.getName() + "\" was removed from the model." );
+		final TagSetStructure.TagSet extended = tss.getTagSets().get( index );
+		final IntSupplier colorSupplier = Glasbey.getGlasbeyLightColorSupplier();
+		for ( int i = 0; i < numberOfTags; i++ )
+		{
+			final int color = colorSupplier.getAsInt();
+			if ( i >= extended.getTags().size() )
+				extended.createTag( getTagLabel( i ), color );
+		}
+		model.getTagSetModel().setTagSetStructure( tss );
+		tagSet = extended;
+	}
+
+	private static TagSetStructure.TagSet createTags( final Model model, final String tagSetName )
+	{
+		final List< Pair< String, Integer > > tagsAndColors = new ArrayList<>();
+		final IntSupplier colorSupplier = Glasbey.getGlasbeyLightColorSupplier();
+		for ( int i = 0; i < NUMBER_OF_TAGS; i++ )
+			tagsAndColors.add( Pair.of( getTagLabel( i ), colorSupplier.getAsInt() ) );
+		return TagSetUtils.addNewTagSetToModel( model, tagSetName, tagsAndColors );
+	}
+
+	private static String getTagLabel( final int index )
+	{
+		return "Conflict (" + CreateConflictTagSet.getLetters( index ) + ")";
+	}
+}
@@ -63,12 +63,9 @@ import org.mastodon.app.ui.GroupLocksPanel;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefObjectMap;
-import org.mastodon.collection.RefSet;
 import org.mastodon.collection.ref.RefObjectHashMap;
 import org.mastodon.graph.GraphChangeListener;
 import org.mastodon.graph.GraphListener;
-import org.mastodon.graph.algorithm.RootFinder;
-import org.mastodon.graph.algorithm.traversal.DepthFirstIterator;
 import org.mastodon.graph.ref.IncomingEdges;
 import org.mastodon.grouping.GroupHandle;
 import org.mastodon.mamut.CloseListener;
@@ -128,13 +125,14 @@ public class LocateTagsFrame extends JFrame
 		run( projectModel, null );
 	}
 
-	public static void run( final ProjectModel projectModel, final TagSetStructure.TagSet tagSet )
+	public static LocateTagsFrame run( final ProjectModel projectModel, final TagSetStructure.TagSet tagSet )
 	{
 		final LocateTagsFrame locateTagsFrame = new LocateTagsFrame( projectModel );
 		locateTagsFrame.pack();
 		locateTagsFrame.setVisible( true );
 		if ( tagSet != null )
 			locateTagsFrame.setTagSet( tagSet );
+		return locateTagsFrame;
 	}
 
 	private void setTagSet( final TagSetStructure.TagSet tagSet )
@@ -253,30 +251,41 @@ public class LocateTagsFrame extends JFrame
 		tableModel.fireChange();
 	}
 
+	/**
+	 * Returns a row for every spot that is tagged with a tag of the given tag
+	 * set, but whose parent doesn't have the same tag. Only the tagged spots
+	 * are visited, not the entire graph.
+	 */
 	private static List< Row > getRows( final Model model, final TagSetStructure.TagSet tagSet )
 	{
 		final ModelGraph graph = model.getGraph();
-		final RefSet< Spot > roots = RootFinder.getRoots( graph );
-		final DepthFirstIterator< Spot, Link > depthFirstIterator = new DepthFirstIterator<>( graph );
 		final ObjTagMap< Spot, TagSetStructure.Tag > spotToTag = model.getTagSetModel().getVertexTags().tags( tagSet );
 		final Spot ref = graph.vertexRef();
+		final Spot rootRef = graph.vertexRef();
 		final List< Row > rows = new ArrayList<>();
-		for ( final Spot root : roots )
+		for ( final TagSetStructure.Tag tag : tagSet.getTags() )
 		{
-			depthFirstIterator.reset( root );
-			while ( depthFirstIterator.hasNext() )
+			for ( final Spot spot : spotToTag.getTaggedWith( tag ) )
 			{
-				final Spot spot = depthFirstIterator.next();
-				final TagSetStructure.Tag tag = spotToTag.get( spot );
 				if ( !entryPoint( spotToTag, spot, tag, ref ) )
 					continue;
-				rows.add( new Row( graph, tag, spot, root.getLabel() ) );
+				rows.add( new Row( graph, tag, spot, getRoot( spot, rootRef ).getLabel() ) );
 			}
 		}
+		graph.releaseRef( ref );
+		graph.releaseRef( rootRef );
 		rows.sort( Row.defaultComparator() );
 		return rows;
 	}
 
+	private static Spot getRoot( final Spot spot, final Spot ref )
+	{
+		ref.refTo( spot );
+		while ( !ref.incomingEdges().isEmpty() )
+			ref.incomingEdges().iterator().next().getSource( ref );
+		return ref;
+	}
+
 	private void updateSpotToRows( final List< Row > rows )
 	{
 		spotToRow.clear();
@@ -0,0 +1,210 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.sort_tree;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.mastodon.RefPool;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Stores the cell division direction, see
+ * {@link SortTreeUtils#directionOfCellDivision(ModelGraph, Spot)}, of all
+ * dividing spots of a {@link ModelGraph}.
+ * <p>
+ * The directions are computed for all dividing spots at once, in parallel,
+ * when they are first requested. They are stored in a {@code double[]} with
+ * three entries per spot, indexed by {@link Spot#getInternalPoolIndex()}.
+ * A lookup is therefore much cheaper than calling
+ * {@link SortTreeUtils#directionOfCellDivision(ModelGraph, Spot)}, which is
+ * useful if the directions are needed repeatedly, or by multiple consumers.
+ * <p>
+ * An index that was created with {@link #start(ModelGraph)} listens to the
+ * graph, and is invalidated whenever spots or links are added, removed or
+ * moved. The directions are then recomputed with the next lookup. Call
+ * {@link #close()} to stop listening. An index created with the constructor
+ * doesn't listen to the graph, it must only be used while the graph is not
+ * modified, or be {@link #invalidate() invalidated} explicitly.
+ */
+public class DivisionDirectionIndex implements GraphListener< Spot, Link >, VertexPositionListener< Spot >
+{
+	private final ModelGraph graph;
+
+	/**
+	 * The division directions, three entries per spot, zero for spots that
+	 * don't divide. {@code null} if the index is invalid.
+	 */
+	private volatile double[] directions = null;
+
+	public DivisionDirectionIndex( ModelGraph graph )
+	{
+		this.graph = graph;
+	}
+
+	/**
+	 * Creates a {@link DivisionDirectionIndex} that is invalidated whenever
+	 * the graph changes. Call {@link #close()} to stop listening to the
+	 * graph.
+	 */
+	public static DivisionDirectionIndex start( ModelGraph graph )
+	{
+		DivisionDirectionIndex index = new DivisionDirectionIndex( graph );
+		graph.addGraphListener( index );
+		graph.addVertexPositionListener( index );
+		return index;
+	}
+
+	/**
+	 * Stops listening to changes of the graph.
+	 */
+	public void close()
+	{
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( this );
+	}
+
+	/**
+	 * Returns the cell division direction of the given spot. Same as
+	 * {@link SortTreeUtils#directionOfCellDivision(ModelGraph, Spot)}.
+	 */
+	public double[] get( Spot spot )
+	{
+		return get( spot, new double[ 3 ] );
+	}
+
+	/**
+	 * Writes the cell division direction of the given spot into
+	 * {@code direction}, and returns it. A zero vector is returned if the
+	 * spot doesn't divide.
+	 */
+	public double[] get( Spot spot, double[] direction )
+	{
+		double[] directions = getDirections();
+		int offset = 3 * spot.getInternalPoolIndex();
+		if ( offset < directions.length )
+			System.arraycopy( directions, offset, direction, 0, 3 );
+		else
+			Arrays.fill( direction, 0 );
+		return direction;
+	}
+
+	/**
+	 * Discards the computed directions. They are recomputed with the next
+	 * lookup.
+	 */
+	public void invalidate()
+	{
+		directions = null;
+	}
+
+	private double[] getDirections()
+	{
+		double[] d = directions;
+		if ( d != null )
+			return d;
+		synchronized ( this )
+		{
+			if ( directions == null )
+				directions = computeDirections( graph );
+			return directions;
+		}
+	}
+
+	private static double[] computeDirections( ModelGraph graph )
+	{
+		TIntArrayList dividingSpots = new TIntArrayList();
+		int size = 0;
+		for ( Spot spot : graph.vertices() )
+		{
+			int index = spot.getInternalPoolIndex();
+			size = Math.max( size, index + 1 );
+			if ( spot.outgoingEdges().size() == 2 )
+				dividingSpots.add( index );
+		}
+		double[] directions = new double[ 3 * size ];
+		RefPool< Spot > pool = graph.vertices().getRefPool();
+		IntStream.range( 0, dividingSpots.size() ).parallel().forEach( i -> {
+			Spot ref = graph.vertexRef();
+			try
+			{
+				int index = dividingSpots.get( i );
+				double[] direction = SortTreeUtils.directionOfCellDivision( graph, pool.getObject( index, ref ) );
+				System.arraycopy( direction, 0, directions, 3 * index, 3 );
+			}
+			finally
+			{
+				graph.releaseRef( ref );
+			}
+		} );
+		return directions;
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		invalidate();
+	}
+
+	@Override
+	public void vertexAdded( Spot vertex )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void vertexRemoved( Spot vertex )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void edgeAdded( Link edge )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void edgeRemoved( Link edge )
+	{
+		invalidate();
+	}
+
+	@Override
+	public void vertexPositionChanged( Spot vertex )
+	{
+		invalidate();
+	}
+}
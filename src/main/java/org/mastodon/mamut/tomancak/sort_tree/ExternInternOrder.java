@@ -45,11 +45,25 @@ public class ExternInternOrder implements Predicate<Spot>
 {
 	private final ModelGraph graph;
 
+	private final DivisionDirectionIndex divisionDirections;
+
 	private final List<double[]> centerPositions;
 
 	public ExternInternOrder( ModelGraph graph, Collection<Spot> centerLandmarks )
+	{
+		this( graph, null, centerLandmarks );
+	}
+
+	/**
+	 * @param divisionDirections
+	 *            used to look up the cell division directions, can be shared
+	 *            with other consumers. If {@code null}, the directions are
+	 *            computed for each tested spot.
+	 */
+	public ExternInternOrder( ModelGraph graph, DivisionDirectionIndex divisionDirections, Collection<Spot> centerLandmarks )
 	{
 		this.graph = graph;
+		this.divisionDirections = divisionDirections;
 		int numberOfTimePoints = SortTreeUtils.getNumberOfTimePoints( graph );
 		this.centerPositions = SortTreeUtils.calculateAndInterpolateAveragePosition(
 				numberOfTimePoints, centerLandmarks );
@@ -60,7 +74,9 @@ public class ExternInternOrder implements Predicate<Spot>
 	{
 		if(spot.outgoingEdges().size() != 2)
 			return true;
-		double[] divisionDirection = SortTreeUtils.directionOfCellDivision( graph, spot );
+		double[] divisionDirection = divisionDirections == null
+				? SortTreeUtils.directionOfCellDivision( graph, spot )
+				: divisionDirections.get( spot );
 		double[] centerPosition = centerPositions.get( spot.getTimepoint() );
 		double[] centerDirection = SortTreeUtils.subtract( spot.positionAsDoubleArray(), centerPosition );
 		return LinAlgHelpers.dot( divisionDirection, centerDirection ) < 0;
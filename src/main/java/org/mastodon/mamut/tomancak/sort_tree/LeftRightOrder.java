@@ -42,11 +42,25 @@ public class LeftRightOrder implements Predicate<Spot>
 
 	private final ModelGraph graph;
 
+	private final DivisionDirectionIndex divisionDirections;
+
 	private final List<double[]> directions;
 
 	public LeftRightOrder( ModelGraph graph, Collection<Spot> leftAnchors, Collection<Spot> rightAnchors )
+	{
+		this( graph, null, leftAnchors, rightAnchors );
+	}
+
+	/**
+	 * @param divisionDirections
+	 *            used to look up the cell division directions, can be shared
+	 *            with other consumers. If {@code null}, the directions are
+	 *            computed for each tested spot.
+	 */
+	public LeftRightOrder( ModelGraph graph, DivisionDirectionIndex divisionDirections, Collection<Spot> leftAnchors, Collection<Spot> rightAnchors )
 	{
 		this.graph = graph;
+		this.divisionDirections = divisionDirections;
 		int numberOfTimePoints = SortTreeUtils.getNumberOfTimePoints( graph );
 		List<double[]> left = SortTreeUtils.calculateAndInterpolateAveragePosition( numberOfTimePoints, leftAnchors );
 		List<double[]> right = SortTreeUtils.calculateAndInterpolateAveragePosition( numberOfTimePoints, rightAnchors );
@@ -58,7 +72,9 @@ public class LeftRightOrder implements Predicate<Spot>
 	{
 		if (spot.outgoingEdges().size() != 2)
 			return true;
-		double[] divisionDirection = SortTreeUtils.directionOfCellDivision( graph, spot );
+		double[] divisionDirection = divisionDirections == null
+				? SortTreeUtils.directionOfCellDivision( graph, spot )
+				: divisionDirections.get( spot );
 		double[] sortingDirection = directions.get( spot.getTimepoint() );
 		return LinAlgHelpers.dot( sortingDirection, divisionDirection ) >= 0;
 	}
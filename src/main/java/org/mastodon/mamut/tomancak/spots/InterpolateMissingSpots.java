@@ -28,15 +28,20 @@
  */
 package org.mastodon.mamut.tomancak.spots;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
 
-import org.mastodon.collection.RefCollections;
-import org.mastodon.collection.RefList;
+import org.mastodon.RefPool;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
+import org.scijava.Cancelable;
 
+import gnu.trove.list.array.TIntArrayList;
 import net.imglib2.util.LinAlgHelpers;
 
 /**
@@ -70,97 +75,301 @@ import net.imglib2.util.LinAlgHelpers;
  */
 public class InterpolateMissingSpots
 {
-	public static void interpolate( final Model model )
+	/**
+	 * How the covariance matrices of the interpolated spots are computed.
+	 */
+	public enum CovarianceInterpolation
 	{
-		new InterpolateMissingSpots( model ).interpolate();
-	}
+		/**
+		 * The covariance of the first spot, scaled such that the radius is
+		 * linearly interpolated between the radii of the two spots. The
+		 * orientation and shape of the ellipsoid is that of the first spot.
+		 */
+		RADIUS_RATIO,
 
-	private final Model model;
-	private final ModelGraph graph;
-
-	private final Spot vref1;
-	private final Spot vref2;
-	private final Spot vref3;
+		/**
+		 * Log-Euclidean interpolation:
+		 * {@code exp( ( 1 - r ) * log( cov0 ) + r * log( cov1 ) )}. The
+		 * ellipsoid smoothly rotates and deforms from the shape of the
+		 * first spot to the shape of the second spot.
+		 */
+		LOG_EUCLIDEAN
+	}
 
-	private final Link eref1;
+	public static void interpolate( final Model model )
+	{
+		interpolate( model, CovarianceInterpolation.RADIUS_RATIO );
+	}
 
-	private double[] pos0 = new double[ 3 ];
-	private double[] pos1 = new double[ 3 ];
-	private double[] pos = new double[ 3 ];
+	public static void interpolate( final Model model, final CovarianceInterpolation covarianceInterpolation )
+	{
+		interpolate( model, 1, covarianceInterpolation );
+	}
 
-	private double[][] cov0 = new double[ 3 ][ 3 ];
-	private double[][] cov = new double[ 3 ][ 3 ];
+	/**
+	 * Same as {@link #interpolate(Model)}, but the positions and covariances
+	 * of the missing spots are computed concurrently, with the given number
+	 * of threads. The interpolation works in two phases:
+	 * <ol>
+	 * <li>The positions and covariances of all missing spots are computed
+	 * into primitive buffers.</li>
+	 * <li>The links with gaps are replaced by the interpolated spots and
+	 * links in one pass over the buffers.</li>
+	 * </ol>
+	 * Only the first phase is parallel. The second phase adds the spots and
+	 * links one by one, with the graph listeners active, such that tags and
+	 * features of the removed links are cleared, and the insertion is
+	 * recorded by the undo history.
+	 */
+	public static void interpolate( final Model model, final int numThreads )
+	{
+		interpolate( model, numThreads, CovarianceInterpolation.RADIUS_RATIO );
+	}
 
-	private InterpolateMissingSpots( final Model model )
+	/**
+	 * Same as {@link #interpolate(Model, int)}, with the given method for
+	 * the interpolation of the covariance matrices.
+	 */
+	public static void interpolate( final Model model, final int numThreads, final CovarianceInterpolation covarianceInterpolation )
 	{
-		this.model = model;
-		this.graph = model.getGraph();
-		vref1 = graph.vertexRef();
-		vref2 = graph.vertexRef();
-		vref3 = graph.vertexRef();
-		eref1 = graph.edgeRef();
+		interpolate( model, numThreads, covarianceInterpolation, null );
 	}
 
-	private void interpolate()
+	/**
+	 * Same as {@link #interpolate(Model, int, CovarianceInterpolation)}, but
+	 * stops with a {@link CancellationException} if {@code cancelable} is
+	 * canceled while the interpolated spots are computed. The model is not
+	 * modified in this case.
+	 *
+	 * @param cancelable
+	 *            checked for every link with a gap, may be {@code null}.
+	 */
+	public static void interpolate( final Model model, final int numThreads, final CovarianceInterpolation covarianceInterpolation, final Cancelable cancelable )
 	{
+		final ModelGraph graph = model.getGraph();
 		final ReentrantReadWriteLock lock = graph.getLock();
 		lock.writeLock().lock();
 		try
 		{
-			final RefList< Link > edgesToInterpolate = RefCollections.createRefList( graph.edges() );
+			final InterpolationBuffers buffers = new InterpolationBuffers( graph, covarianceInterpolation );
+			if ( buffers.numEdges() == 0 )
+				return;
+			buffers.compute( numThreads, cancelable );
+			// NB: Listeners must not be paused here. The tag maps and
+			// features need the edgeRemoved events, otherwise the new links,
+			// which reuse the pool slots of the removed links, would inherit
+			// their tags and feature values.
+			buffers.insert();
+			model.setUndoPoint();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		graph.notifyGraphChanged();
+	}
+
+	private InterpolateMissingSpots()
+	{
+		// prevent from instantiation
+	}
+
+	/**
+	 * Computes the interpolated spots of all links with a gap into primitive
+	 * buffers, and inserts them into the graph.
+	 */
+	private static class InterpolationBuffers
+	{
+		private final ModelGraph graph;
+
+		/**
+		 * Pool indices of the source and target spot of each link with gap.
+		 */
+		private final TIntArrayList sourceIds = new TIntArrayList();
+
+		private final TIntArrayList targetIds = new TIntArrayList();
+
+		/**
+		 * {@code offsets[ i ]} is the index of the first interpolated spot of
+		 * link i in the buffers below, {@code offsets[ numEdges ]} is the
+		 * total number of interpolated spots.
+		 */
+		private final int[] offsets;
+
+		/**
+		 * 3 entries per interpolated spot.
+		 */
+		private final double[] positions;
+
+		/**
+		 * 9 entries per interpolated spot, row major.
+		 */
+		private final double[] covariances;
+
+		private final CovarianceInterpolation covarianceInterpolation;
+
+		private InterpolationBuffers( final ModelGraph graph, final CovarianceInterpolation covarianceInterpolation )
+		{
+			this.graph = graph;
+			this.covarianceInterpolation = covarianceInterpolation;
+			final Spot ref1 = graph.vertexRef();
+			final Spot ref2 = graph.vertexRef();
 			for ( final Link edge : graph.edges() )
 			{
-				final Spot from = edge.getSource( vref1 );
-				final Spot to = edge.getTarget( vref2 );
+				final Spot from = edge.getSource( ref1 );
+				final Spot to = edge.getTarget( ref2 );
 				if ( to.getTimepoint() - from.getTimepoint() > 1 )
-					edgesToInterpolate.add( edge );
+				{
+					sourceIds.add( from.getInternalPoolIndex() );
+					targetIds.add( to.getInternalPoolIndex() );
+				}
 			}
-
-			if ( !edgesToInterpolate.isEmpty() )
+			offsets = new int[ sourceIds.size() + 1 ];
+			for ( int i = 0; i < sourceIds.size(); i++ )
 			{
-				edgesToInterpolate.forEach( this::interpolateEdge );
-				model.setUndoPoint();
-				graph.notifyGraphChanged();
+				final int steps = graph.vertices().getRefPool().getObject( targetIds.get( i ), ref2 ).getTimepoint()
+						- graph.vertices().getRefPool().getObject( sourceIds.get( i ), ref1 ).getTimepoint();
+				offsets[ i + 1 ] = offsets[ i ] + steps - 1;
 			}
+			graph.releaseRef( ref1 );
+			graph.releaseRef( ref2 );
+			positions = new double[ 3 * offsets[ numEdges() ] ];
+			covariances = new double[ 9 * offsets[ numEdges() ] ];
 		}
-		finally
+
+		private int numEdges()
 		{
-			lock.writeLock().unlock();
+			return sourceIds.size();
 		}
-	}
-
-	private void interpolateEdge( final Link edge )
-	{
-		final Spot from = edge.getSource( vref1 );
-		final Spot to = edge.getTarget( vref2 );
-		graph.remove( edge );
 
-		final int t0 = from.getTimepoint();
-		final int t1 = to.getTimepoint();
+		/**
+		 * Phase 1: Fills the buffers. Only reads from the graph.
+		 */
+		private void compute( final int numThreads, final Cancelable cancelable )
+		{
+			if ( numThreads <= 1 )
+			{
+				for ( int i = 0; i < numEdges(); i++ )
+				{
+					if ( cancelable != null && cancelable.isCanceled() )
+						throw new CancellationException( cancelable.getCancelReason() );
+					computeEdge( i );
+				}
+				return;
+			}
+			final ForkJoinPool pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+			try
+			{
+				pool.submit( () -> IntStream.range( 0, numEdges() ).parallel().forEach( i -> {
+					if ( cancelable != null && cancelable.isCanceled() )
+						throw new CancellationException( cancelable.getCancelReason() );
+					computeEdge( i );
+				} ) ).get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof CancellationException )
+					throw new CancellationException( e.getCause().getMessage() );
+				throw new RuntimeException( e.getCause() );
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
 
-		final int steps = t1 - t0;
-		if( steps >= 2 )
+		/**
+		 * Computes the interpolated spots of link i. The position is
+		 * interpolated linearly, the covariance as specified by
+		 * {@link #covarianceInterpolation}.
+		 */
+		private void computeEdge( final int i )
 		{
+			final RefPool< Spot > spots = graph.vertices().getRefPool();
+			final Spot ref1 = graph.vertexRef();
+			final Spot ref2 = graph.vertexRef();
+			final double[] pos0 = new double[ 3 ];
+			final double[] pos1 = new double[ 3 ];
+			final double[] pos = new double[ 3 ];
+			final double[][] cov0 = new double[ 3 ][ 3 ];
+			final double[][] cov = new double[ 3 ][ 3 ];
+			final Spot from = spots.getObject( sourceIds.get( i ), ref1 );
+			final Spot to = spots.getObject( targetIds.get( i ), ref2 );
 			from.localize( pos0 );
 			to.localize( pos1 );
 			from.getCovariance( cov0 );
 			final double radiusRatio = Math.sqrt( to.getBoundingSphereRadiusSquared() / from.getBoundingSphereRadiusSquared() );
-
-			Spot previous = from;
+			LogEuclideanInterpolator logEuclidean = null;
+			if ( covarianceInterpolation == CovarianceInterpolation.LOG_EUCLIDEAN )
+			{
+				final double[][] cov1 = new double[ 3 ][ 3 ];
+				to.getCovariance( cov1 );
+				logEuclidean = new LogEuclideanInterpolator();
+				logEuclidean.setEndpoints( cov0, cov1 );
+			}
+			final int steps = offsets[ i + 1 ] - offsets[ i ] + 1;
 			for ( int s = 1; s < steps; ++s )
 			{
 				final double ratio = ( double ) s / steps;
-
-				final int t = t0 + s;
 				LinAlgHelpers.lerp( pos0, pos1, ratio, pos );
-				final double scale = ( 1.0 - ratio ) + ratio * radiusRatio;
-				LinAlgHelpers.scale( cov0, scale * scale, cov );
+				if ( logEuclidean == null )
+				{
+					final double scale = ( 1.0 - ratio ) + ratio * radiusRatio;
+					LinAlgHelpers.scale( cov0, scale * scale, cov );
+				}
+				else
+					logEuclidean.interpolate( ratio, cov );
+				final int k = offsets[ i ] + s - 1;
+				System.arraycopy( pos, 0, positions, 3 * k, 3 );
+				for ( int r = 0; r < 3; r++ )
+					System.arraycopy( cov[ r ], 0, covariances, 9 * k + 3 * r, 3 );
+			}
+			graph.releaseRef( ref1 );
+			graph.releaseRef( ref2 );
+		}
 
-				final Spot current = graph.addVertex( vref3 ).init( t, pos, cov );
-				graph.addEdge( previous, current, eref1 ).init();
-				previous = vref1.refTo( current );
+		/**
+		 * Phase 2: Replaces each link with a gap by a chain of the
+		 * interpolated spots.
+		 */
+		private void insert()
+		{
+			final RefPool< Spot > spots = graph.vertices().getRefPool();
+			final Spot fromRef = graph.vertexRef();
+			final Spot toRef = graph.vertexRef();
+			final Spot previousRef = graph.vertexRef();
+			final Spot currentRef = graph.vertexRef();
+			final Link eref = graph.edgeRef();
+			final double[] pos = new double[ 3 ];
+			final double[][] cov = new double[ 3 ][ 3 ];
+			for ( int i = 0; i < numEdges(); i++ )
+			{
+				final Spot from = spots.getObject( sourceIds.get( i ), fromRef );
+				final Spot to = spots.getObject( targetIds.get( i ), toRef );
+				graph.remove( graph.getEdge( from, to, eref ) );
+				final int t0 = from.getTimepoint();
+				Spot previous = previousRef.refTo( from );
+				for ( int k = offsets[ i ]; k < offsets[ i + 1 ]; k++ )
+				{
+					System.arraycopy( positions, 3 * k, pos, 0, 3 );
+					for ( int r = 0; r < 3; r++ )
+						System.arraycopy( covariances, 9 * k + 3 * r, cov[ r ], 0, 3 );
+					final Spot current = graph.addVertex( currentRef ).init( t0 + k - offsets[ i ] + 1, pos, cov );
+					graph.addEdge( previous, current, eref ).init();
+					previous = previousRef.refTo( current );
+				}
+				graph.addEdge( previous, to, eref ).init();
 			}
-			graph.addEdge( previous, to, eref1 ).init();
+			graph.releaseRef( fromRef );
+			graph.releaseRef( toRef );
+			graph.releaseRef( previousRef );
+			graph.releaseRef( currentRef );
+			graph.releaseRef( eref );
 		}
 	}
 }
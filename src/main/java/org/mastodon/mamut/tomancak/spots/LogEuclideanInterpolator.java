@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.spots;
+
+/**
+ * Log-Euclidean interpolation between two covariance matrices:
+ * {@code cov( r ) = exp( ( 1 - r ) * log( cov0 ) + r * log( cov1 ) )}.
+ * <p>
+ * Unlike scaling one of the matrices, this rotates and deforms the
+ * ellipsoid smoothly from the first to the second shape, and the result is
+ * always symmetric positive definite. The matrix logarithms are computed
+ * once by {@link #setEndpoints}, then {@link #interpolate} can be called
+ * for all intermediate steps without allocation.
+ * <p>
+ * Not thread safe, every thread needs its own instance.
+ */
+class LogEuclideanInterpolator
+{
+
+	/**
+	 * Smallest eigenvalue that is used for the logarithm. Guards against
+	 * degenerate (singular) covariance matrices.
+	 */
+	private static final double MIN_EIGENVALUE = 1e-12;
+
+	private final double[] log0 = new double[ 9 ];
+
+	private final double[] log1 = new double[ 9 ];
+
+	private final double[] matrix = new double[ 9 ];
+
+	private final double[] eigenvalues = new double[ 3 ];
+
+	private final double[] eigenvectors = new double[ 9 ];
+
+	/**
+	 * Computes the matrix logarithms of the two given covariance matrices.
+	 */
+	void setEndpoints( final double[][] cov0, final double[][] cov1 )
+	{
+		log( cov0, log0 );
+		log( cov1, log1 );
+	}
+
+	/**
+	 * Writes the interpolated covariance matrix for the given ratio into
+	 * {@code cov}. A ratio of 0 gives the first, a ratio of 1 the second
+	 * matrix passed to {@link #setEndpoints}.
+	 */
+	void interpolate( final double ratio, final double[][] cov )
+	{
+		for ( int i = 0; i < 9; i++ )
+			matrix[ i ] = ( 1 - ratio ) * log0[ i ] + ratio * log1[ i ];
+		eigSymmetric3x3( matrix, eigenvalues, eigenvectors );
+		for ( int k = 0; k < 3; k++ )
+			eigenvalues[ k ] = Math.exp( eigenvalues[ k ] );
+		compose( eigenvalues, eigenvectors, cov );
+	}
+
+	private void log( final double[][] cov, final double[] result )
+	{
+		for ( int r = 0; r < 3; r++ )
+			for ( int c = 0; c < 3; c++ )
+				matrix[ 3 * r + c ] = cov[ r ][ c ];
+		eigSymmetric3x3( matrix, eigenvalues, eigenvectors );
+		for ( int k = 0; k < 3; k++ )
+			eigenvalues[ k ] = Math.log( Math.max( MIN_EIGENVALUE, eigenvalues[ k ] ) );
+		for ( int r = 0; r < 3; r++ )
+			for ( int c = 0; c < 3; c++ )
+				result[ 3 * r + c ] = composeEntry( eigenvalues, eigenvectors, r, c );
+	}
+
+	/**
+	 * Writes {@code V * diag( d ) * V^T} into {@code result}.
+	 */
+	private static void compose( final double[] d, final double[] v, final double[][] result )
+	{
+		for ( int r = 0; r < 3; r++ )
+			for ( int c = r; c < 3; c++ )
+				result[ r ][ c ] = result[ c ][ r ] = composeEntry( d, v, r, c );
+	}
+
+	private static double composeEntry( final double[] d, final double[] v, final int r, final int c )
+	{
+		return v[ 3 * r ] * d[ 0 ] * v[ 3 * c ]
+				+ v[ 3 * r + 1 ] * d[ 1 ] * v[ 3 * c + 1 ]
+				+ v[ 3 * r + 2 ] * d[ 2 ] * v[ 3 * c + 2 ];
+	}
+
+	/**
+	 * Eigen decomposition of a symmetric 3x3 matrix, using the cyclic Jacobi
+	 * method.
+	 *
+	 * @param a
+	 *            the matrix, 9 entries, row major. Is overwritten.
+	 * @param d
+	 *            output, the 3 eigenvalues.
+	 * @param v
+	 *            output, 9 entries, row major. The columns are the
+	 *            eigenvectors.
+	 */
+	static void eigSymmetric3x3( final double[] a, final double[] d, final double[] v )
+	{
+		for ( int i = 0; i < 9; i++ )
+			v[ i ] = ( i % 4 == 0 ) ? 1 : 0;
+		for ( int sweep = 0; sweep < 50; sweep++ )
+		{
+			final double offDiagonal = a[ 1 ] * a[ 1 ] + a[ 2 ] * a[ 2 ] + a[ 5 ] * a[ 5 ];
+			final double diagonal = a[ 0 ] * a[ 0 ] + a[ 4 ] * a[ 4 ] + a[ 8 ] * a[ 8 ];
+			if ( offDiagonal <= 1e-30 * diagonal || offDiagonal == 0 )
+				break;
+			rotate( a, v, 0, 1 );
+			rotate( a, v, 0, 2 );
+			rotate( a, v, 1, 2 );
+		}
+		for ( int k = 0; k < 3; k++ )
+			d[ k ] = a[ 4 * k ];
+	}
+
+	/**
+	 * Applies the Jacobi rotation that eliminates {@code a[p][q]}:
+	 * {@code a = J^T a J} and {@code v = v J}.
+	 */
+	private static void rotate( final double[] a, final double[] v, final int p, final int q )
+	{
+		final double apq = a[ 3 * p + q ];
+		if ( apq == 0 )
+			return;
+		final double theta = ( a[ 4 * q ] - a[ 4 * p ] ) / ( 2 * apq );
+		final double t = ( theta >= 0 ? 1 : -1 ) / ( Math.abs( theta ) + Math.sqrt( theta * theta + 1 ) );
+		final double c = 1 / Math.sqrt( t * t + 1 );
+		final double s = t * c;
+		for ( int k = 0; k < 3; k++ )
+		{
+			final double akp = a[ 3 * k + p ];
+			final double akq = a[ 3 * k + q ];
+			a[ 3 * k + p ] = c * akp - s * akq;
+			a[ 3 * k + q ] = s * akp + c * akq;
+		}
+		for ( int k = 0; k < 3; k++ )
+		{
+			final double apk = a[ 3 * p + k ];
+			final double aqk = a[ 3 * q + k ];
+			a[ 3 * p + k ] = c * apk - s * aqk;
+			a[ 3 * q + k ] = s * apk + c * aqk;
+		}
+		for ( int k = 0; k < 3; k++ )
+		{
+			final double vkp = v[ 3 * k + p ];
+			final double vkq = v[ 3 * k + q ];
+			v[ 3 * k + p ] = c * vkp - s * vkq;
+			v[ 3 * k + q ] = s * vkp + c * vkq;
+		}
+	}
+}
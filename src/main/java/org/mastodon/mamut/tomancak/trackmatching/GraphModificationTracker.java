@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.trackmatching;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+/**
+ * Records whether spots or links of a {@link ModelGraph} were added, removed
+ * or moved, since the tracker was started.
+ * <p>
+ * This is used to detect if a graph was modified between releasing its read
+ * lock and acquiring its write lock. The graph events are fired while the
+ * modifying thread holds the write lock, therefore a modification is
+ * visible to any thread that acquires the lock afterwards.
+ */
+class GraphModificationTracker implements GraphListener< Spot, Link >, VertexPositionListener< Spot >, AutoCloseable
+{
+	private final ModelGraph graph;
+
+	private volatile boolean modified = false;
+
+	private GraphModificationTracker( ModelGraph graph )
+	{
+		this.graph = graph;
+	}
+
+	/**
+	 * Starts listening to the given graph. Call {@link #close()} to stop
+	 * listening.
+	 */
+	public static GraphModificationTracker start( ModelGraph graph )
+	{
+		GraphModificationTracker tracker = new GraphModificationTracker( graph );
+		graph.addGraphListener( tracker );
+		graph.addVertexPositionListener( tracker );
+		return tracker;
+	}
+
+	public boolean isModified()
+	{
+		return modified;
+	}
+
+	@Override
+	public void close()
+	{
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( this );
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		modified = true;
+	}
+
+	@Override
+	public void vertexAdded( Spot vertex )
+	{
+		modified = true;
+	}
+
+	@Override
+	public void vertexRemoved( Spot vertex )
+	{
+		modified = true;
+	}
+
+	@Override
+	public void edgeAdded( Link edge )
+	{
+		modified = true;
+	}
+
+	@Override
+	public void edgeRemoved( Link edge )
+	{
+		modified = true;
+	}
+
+	@Override
+	public void vertexPositionChanged( Spot vertex )
+	{
+		modified = true;
+	}
+}
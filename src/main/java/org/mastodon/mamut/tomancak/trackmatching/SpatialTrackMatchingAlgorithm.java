@@ -28,12 +28,19 @@
  */
 package org.mastodon.mamut.tomancak.trackmatching;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import net.imglib2.realtransform.AffineTransform3D;
 
+import org.mastodon.RefPool;
 import org.mastodon.collection.RefDoubleMap;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.collection.ref.RefDoubleHashMap;
 import org.mastodon.collection.ref.RefRefHashMap;
+import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
@@ -41,8 +48,15 @@ import org.mastodon.mamut.tomancak.trackmatching.spatial_registration.NotEnoughP
 import org.mastodon.mamut.tomancak.trackmatching.spatial_registration.SpatialRegistration;
 import org.mastodon.mamut.tomancak.trackmatching.spatial_registration.SpatialRegistrationFactory;
 import org.mastodon.mamut.tomancak.trackmatching.spatial_registration.SpatialRegistrationMethod;
+import org.mastodon.mamut.tomancak.sort_tree.DivisionDirectionIndex;
 import org.mastodon.mamut.tomancak.sort_tree.SortTreeUtils;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
 /**
  * An algorithm that compares the "cell division directions" in two lineages.
  * By doing so it figures out which spots need to be flipped in order
@@ -60,6 +74,14 @@ public class SpatialTrackMatchingAlgorithm
 
 	private final ModelGraph graphB;
 
+	/**
+	 * The cell division directions of all dividing spots in graphA and
+	 * graphB. Both graphs must not be modified while the algorithm runs.
+	 */
+	private final DivisionDirectionIndex divisionDirectionsA;
+
+	private final DivisionDirectionIndex divisionDirectionsB;
+
 	/**
 	 * Map branch starting spots in graphA to branch starting spots in graphB.
 	 */
@@ -70,6 +92,8 @@ public class SpatialTrackMatchingAlgorithm
 	 */
 	private final RefDoubleMap< Spot > angles;
 
+	private final TrackMatchingProgress progress;
+
 	/**
 	 * Runs the spatial track matching for to given graphs. The spots before
 	 * the given timepoints are ignored.
@@ -83,14 +107,38 @@ public class SpatialTrackMatchingAlgorithm
 			Model modelB,
 			int firstTimepointB,
 			SpatialRegistrationMethod spatialRegistrationMethod )
+	{
+		return run( modelA, firstTimepointA, modelB, firstTimepointB, spatialRegistrationMethod,
+				new DivisionDirectionIndex( modelA.getGraph() ), new DivisionDirectionIndex( modelB.getGraph() ),
+				new TrackMatchingProgress() );
+	}
+
+	/**
+	 * Same as {@link #run(Model, int, Model, int, SpatialRegistrationMethod)},
+	 * but looks up the cell division directions in the given indices. The
+	 * indices can be shared between multiple runs, see
+	 * {@link DivisionDirectionIndex#start(ModelGraph)}. The progress is
+	 * reported to the given {@link TrackMatchingProgress}, and the algorithm
+	 * stops with a {@link java.util.concurrent.CancellationException} if it
+	 * is canceled.
+	 */
+	public static RegisteredGraphs run(
+			Model modelA,
+			int firstTimepointA,
+			Model modelB,
+			int firstTimepointB,
+			SpatialRegistrationMethod spatialRegistrationMethod,
+			DivisionDirectionIndex divisionDirectionsA,
+			DivisionDirectionIndex divisionDirectionsB,
+			TrackMatchingProgress progress )
 	{
 		try
 		{
 			RefRefMap< Spot, Spot > roots =
 					RootsPairing.pairDividingRoots( modelA.getGraph(), firstTimepointA, modelB.getGraph(), firstTimepointB );
-			SpatialRegistrationFactory algorithm = SpatialRegistrationMethod.getFactory( spatialRegistrationMethod );
+			SpatialRegistrationFactory algorithm = SpatialRegistrationMethod.getFactory( spatialRegistrationMethod, progress );
 			SpatialRegistration spatialRegistration = algorithm.run( modelA, modelB, roots );
-			return run( modelA, modelB, roots, spatialRegistration );
+			return run( modelA, modelB, roots, spatialRegistration, divisionDirectionsA, divisionDirectionsB, progress );
 		}
 		catch ( NotEnoughPairedRootsException e )
 		{
@@ -116,10 +164,20 @@ public class SpatialTrackMatchingAlgorithm
 
 	public static RegisteredGraphs run( Model modelA, Model modelB,
 			RefRefMap< Spot, Spot > roots, SpatialRegistration spatialRegistration )
+	{
+		return run( modelA, modelB, roots, spatialRegistration,
+				new DivisionDirectionIndex( modelA.getGraph() ), new DivisionDirectionIndex( modelB.getGraph() ),
+				new TrackMatchingProgress() );
+	}
+
+	public static RegisteredGraphs run( Model modelA, Model modelB,
+			RefRefMap< Spot, Spot > roots, SpatialRegistration spatialRegistration,
+			DivisionDirectionIndex divisionDirectionsA, DivisionDirectionIndex divisionDirectionsB,
+			TrackMatchingProgress progress )
 	{
 		SpatialTrackMatchingAlgorithm algorithm = new SpatialTrackMatchingAlgorithm(
 				modelA.getGraph(), modelB.getGraph(),
-				roots, spatialRegistration );
+				roots, spatialRegistration, divisionDirectionsA, divisionDirectionsB, progress );
 		return new RegisteredGraphs( modelA, modelB, spatialRegistration, algorithm.getMapping(), algorithm.getAngles() );
 	}
 
@@ -129,71 +187,150 @@ public class SpatialTrackMatchingAlgorithm
 	}
 
 	private SpatialTrackMatchingAlgorithm( ModelGraph graphA, ModelGraph graphB, RefRefMap< Spot, Spot > roots,
-			SpatialRegistration spatialRegistration )
+			SpatialRegistration spatialRegistration,
+			DivisionDirectionIndex divisionDirectionsA, DivisionDirectionIndex divisionDirectionsB,
+			TrackMatchingProgress progress )
 	{
 		this.spatialRegistration = spatialRegistration;
 		this.graphA = graphA;
 		this.graphB = graphB;
+		this.divisionDirectionsA = divisionDirectionsA;
+		this.divisionDirectionsB = divisionDirectionsB;
+		this.progress = progress;
 		this.mapAB = new RefRefHashMap<>( graphA.vertices().getRefPool(), graphB.vertices().getRefPool() );
 		this.angles = new RefDoubleHashMap<>( graphA.vertices().getRefPool(), Double.NaN );
+		int[] rootsA = new int[ roots.size() ];
+		int[] rootsB = new int[ roots.size() ];
 		Spot refB = graphB.vertexRef();
 		try
 		{
+			int i = 0;
 			for ( Spot rootA : roots.keySet() )
 			{
-				Spot rootB = roots.get( rootA, refB );
-				matchTree( rootA, rootB );
+				rootsA[ i ] = rootA.getInternalPoolIndex();
+				rootsB[ i ] = roots.get( rootA, refB ).getInternalPoolIndex();
+				i++;
 			}
 		}
 		finally
 		{
 			graphB.releaseRef( refB );
 		}
+		// NB: The trees of different roots are independent, they are matched
+		// in parallel, and the results are merged on this thread.
+		AtomicInteger done = new AtomicInteger();
+		progress.showProgress( 0, rootsA.length );
+		List< TreeMatch > matches = IntStream.range( 0, rootsA.length ).parallel()
+				.mapToObj( i -> {
+					TreeMatch match = matchTree( rootsA[ i ], rootsB[ i ] );
+					progress.showProgress( done.incrementAndGet(), rootsA.length );
+					return match;
+				} )
+				.collect( Collectors.toList() );
+		matches.forEach( this::addToMapping );
 	}
 
-	private void matchTree( Spot rootA, Spot rootB )
+	/**
+	 * The result of matching the tree of one pair of roots. Spots are
+	 * identified by their internal pool index.
+	 */
+	private static class TreeMatch
 	{
-		mapAB.put( rootA, rootB );
-		Spot refA = graphA.vertexRef();
-		Spot refB = graphB.vertexRef();
+		private final TIntIntMap mapAB = new TIntIntHashMap();
+
+		private final TIntDoubleMap angles = new TIntDoubleHashMap();
+	}
+
+	/**
+	 * Matches the trees of the two given roots. The trees are traversed with
+	 * an explicit stack of pairs of branch starts, such that very deep
+	 * lineages don't cause a {@link StackOverflowError}. This method only
+	 * reads the graphs, and can be called concurrently for different roots.
+	 * The cancellation is checked for every pair of branches.
+	 */
+	private TreeMatch matchTree( int rootA, int rootB )
+	{
+		TreeMatch result = new TreeMatch();
+		TIntArrayList stackA = new TIntArrayList();
+		TIntArrayList stackB = new TIntArrayList();
+		stackA.add( rootA );
+		stackB.add( rootB );
+		Spot startRefA = graphA.vertexRef();
+		Spot startRefB = graphB.vertexRef();
+		Spot endRefA = graphA.vertexRef();
+		Spot endRefB = graphB.vertexRef();
+		Spot childRefA = graphA.vertexRef();
+		Spot childRefB = graphB.vertexRef();
+		Link edgeRefA = graphA.edgeRef();
+		Link edgeRefB = graphB.edgeRef();
 		try
 		{
-			Spot dividingA = BranchGraphUtils.getBranchEnd( rootA, refA );
-			Spot dividingB = BranchGraphUtils.getBranchEnd( rootB, refB );
-			boolean bothDivide = dividingA.outgoingEdges().size() == 2 &&
-					dividingB.outgoingEdges().size() == 2;
-			if ( !bothDivide )
-				return;
-			double[] directionA = SortTreeUtils.directionOfCellDivision( graphA, dividingA );
-			double[] directionB = SortTreeUtils.directionOfCellDivision( graphB, dividingB );
-			AffineTransform3D transformAB = noOffsetTransform( spatialRegistration.getTransformationAtoB(
-					dividingA.getTimepoint() + TIME_OFFSET, dividingB.getTimepoint() + TIME_OFFSET ) );
-			transformAB.apply( directionA, directionA );
-			double angle = SortTreeUtils.angleInDegree( directionA, directionB );
-			angles.put( rootA, angle );
-			boolean flip = angle > 90;
-			matchChildTree( dividingA, dividingB, 0, flip ? 1 : 0 );
-			matchChildTree( dividingA, dividingB, 1, flip ? 0 : 1 );
+			while ( !stackA.isEmpty() )
+			{
+				progress.checkCanceled();
+				int last = stackA.size() - 1;
+				Spot startA = graphA.vertices().getRefPool().getObject( stackA.removeAt( last ), startRefA );
+				Spot startB = graphB.vertices().getRefPool().getObject( stackB.removeAt( last ), startRefB );
+				result.mapAB.put( startA.getInternalPoolIndex(), startB.getInternalPoolIndex() );
+				Spot dividingA = BranchGraphUtils.getBranchEnd( startA, endRefA );
+				Spot dividingB = BranchGraphUtils.getBranchEnd( startB, endRefB );
+				boolean bothDivide = dividingA.outgoingEdges().size() == 2 &&
+						dividingB.outgoingEdges().size() == 2;
+				if ( !bothDivide )
+					continue;
+				double[] directionA = divisionDirectionsA.get( dividingA );
+				double[] directionB = divisionDirectionsB.get( dividingB );
+				AffineTransform3D transformAB = noOffsetTransform( spatialRegistration.getTransformationAtoB(
+						dividingA.getTimepoint() + TIME_OFFSET, dividingB.getTimepoint() + TIME_OFFSET ) );
+				transformAB.apply( directionA, directionA );
+				double angle = SortTreeUtils.angleInDegree( directionA, directionB );
+				result.angles.put( startA.getInternalPoolIndex(), angle );
+				boolean flip = angle > 90;
+				for ( int indexA = 0; indexA < 2; indexA++ )
+				{
+					int indexB = flip ? 1 - indexA : indexA;
+					Spot childA = dividingA.outgoingEdges().get( indexA, edgeRefA ).getTarget( childRefA );
+					Spot childB = dividingB.outgoingEdges().get( indexB, edgeRefB ).getTarget( childRefB );
+					stackA.add( childA.getInternalPoolIndex() );
+					stackB.add( childB.getInternalPoolIndex() );
+				}
+			}
 		}
 		finally
 		{
-			graphA.releaseRef( refA );
-			graphB.releaseRef( refB );
+			graphA.releaseRef( startRefA );
+			graphB.releaseRef( startRefB );
+			graphA.releaseRef( endRefA );
+			graphB.releaseRef( endRefB );
+			graphA.releaseRef( childRefA );
+			graphB.releaseRef( childRefB );
+			graphA.releaseRef( edgeRefA );
+			graphB.releaseRef( edgeRefB );
 		}
+		return result;
 	}
 
-	private void matchChildTree( Spot dividingA, Spot dividingB, int indexA, int indexB )
+	private void addToMapping( TreeMatch match )
 	{
-		Spot childA = dividingA.outgoingEdges().get( indexA ).getTarget();
-		Spot childB = dividingB.outgoingEdges().get( indexB ).getTarget();
+		RefPool< Spot > poolA = graphA.vertices().getRefPool();
+		RefPool< Spot > poolB = graphB.vertices().getRefPool();
+		Spot refA = graphA.vertexRef();
+		Spot refB = graphB.vertexRef();
 		try
 		{
-			matchTree( childA, childB );
+			match.mapAB.forEachEntry( ( a, b ) -> {
+				mapAB.put( poolA.getObject( a, refA ), poolB.getObject( b, refB ) );
+				return true;
+			} );
+			match.angles.forEachEntry( ( a, angle ) -> {
+				angles.put( poolA.getObject( a, refA ), angle );
+				return true;
+			} );
 		}
 		finally
 		{
-			graphA.releaseRef( childA );
-			graphB.releaseRef( childB );
+			graphA.releaseRef( refA );
+			graphB.releaseRef( refB );
 		}
 	}
 
@@ -30,8 +30,16 @@ package org.mastodon.mamut.tomancak.trackmatching;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.DoubleConsumer;
+import java.util.function.Function;
 
 import javax.swing.JOptionPane;
 
@@ -40,10 +48,14 @@ import net.imagej.ImageJService;
 import org.mastodon.collection.RefDoubleMap;
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.sort_tree.DivisionDirectionIndex;
 import org.mastodon.mamut.tomancak.trackmatching.angle_feature.CellDivisionAngleFeature;
 import org.mastodon.mamut.tomancak.trackmatching.coupling.ModelCoupling;
 import org.mastodon.model.tag.TagSetStructure;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.service.AbstractService;
 
@@ -65,9 +77,42 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 
 	private final List< ProjectModel > projectModels = new ArrayList<>();
 
+	/**
+	 * The cell division directions of the registered projects. The indices
+	 * listen to the graphs, and are shared by all operations on a project.
+	 */
+	private final Map< ProjectModel, DivisionDirectionIndex > divisionDirections = new ConcurrentHashMap<>();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool( runnable -> {
+		Thread thread = new Thread( runnable, "spatial track matching" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	/**
+	 * The task that is currently executed, {@code null} if none. The
+	 * {@link SpatialTrackMatchingFrame} has one progress bar and one cancel
+	 * button, therefore only one task is executed at a time.
+	 */
+	private final AtomicReference< TrackMatchingTask > runningTask = new AtomicReference<>();
+
+	@Parameter
+	private LogService logService;
+
 	public void registerMastodonInstance( ProjectModel projectModel )
 	{
 		projectModels.add( projectModel );
+		ModelGraph graph = projectModel.getModel().getGraph();
+		Lock lock = graph.getLock().writeLock();
+		lock.lock();
+		try
+		{
+			divisionDirections.put( projectModel, DivisionDirectionIndex.start( graph ) );
+		}
+		finally
+		{
+			lock.unlock();
+		}
 		if ( dialog != null )
 			dialog.setMastodonInstances( projectModels );
 	}
@@ -75,6 +120,7 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 	public void unregisterMastodonInstance( ProjectModel projectModel )
 	{
 		projectModels.remove( projectModel );
+		closeDivisionDirections( projectModel );
 		if ( dialog != null )
 			dialog.setMastodonInstances( projectModels );
 	}
@@ -93,19 +139,165 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 		dialog.setVisible( true );
 	}
 
-	/** Executes the specified task in a new thread, while locking both models. */
-	private static void executeTask( boolean writeLock, SelectedProject projectA, SelectedProject projectB, Runnable task )
+	@Override
+	public void dispose()
+	{
+		TrackMatchingTask task = runningTask.get();
+		if ( task != null )
+			task.cancel( "The service is disposed." );
+		executor.shutdown();
+		new ArrayList<>( divisionDirections.keySet() ).forEach( this::closeDivisionDirections );
+	}
+
+	private void closeDivisionDirections( ProjectModel projectModel )
+	{
+		DivisionDirectionIndex index = divisionDirections.remove( projectModel );
+		if ( index == null )
+			return;
+		Lock lock = projectModel.getModel().getGraph().getLock().writeLock();
+		lock.lock();
+		try
+		{
+			index.close();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the shared {@link DivisionDirectionIndex} of the given project.
+	 * Falls back to a new index, that doesn't listen to the graph, if the
+	 * project isn't registered.
+	 */
+	private DivisionDirectionIndex getDivisionDirections( SelectedProject project )
+	{
+		DivisionDirectionIndex index = divisionDirections.get( project.getProjectModel() );
+		return index != null ? index : new DivisionDirectionIndex( project.getGraph() );
+	}
+
+	/**
+	 * Executes the specified task in the background. Only one task is
+	 * executed at a time.
+	 * <p>
+	 * The {@code compute} step runs while both projects are read-locked, such
+	 * that they can still be viewed, and returns a commit step. The commit step
+	 * runs while the projects to be modified are write-locked. If a project was
+	 * modified in between, the compute step is repeated under the write lock.
+	 * The compute step reports its progress to the given
+	 * {@link TrackMatchingProgress}, and the task can be canceled until the
+	 * commit step starts.
+	 */
+	private void executeTask( String description, SelectedProject projectA, SelectedProject projectB,
+			boolean modifyA, boolean modifyB, Function< TrackMatchingProgress, Runnable > compute )
 	{
-		new Thread( () -> {
-			ReentrantReadWriteLock readWriteLockA = projectA.getGraph().getLock();
-			ReentrantReadWriteLock readWriteLockB = projectB.getGraph().getLock();
-			Lock lockA = writeLock ? readWriteLockA.writeLock() : readWriteLockA.readLock();
-			Lock lockB = writeLock ? readWriteLockB.writeLock() : readWriteLockB.readLock();
-			try ( ClosableLock ignored = LockUtils.lockBoth( lockA, lockB ) )
+		TrackMatchingTask task = new TrackMatchingTask( fraction -> dialog.showProgress( description + " (computing)", fraction ) );
+		if ( !runningTask.compareAndSet( null, task ) )
+		{
+			JOptionPane.showMessageDialog( dialog,
+					"Another operation is still running.\n"
+							+ "Please wait until it is finished, or cancel it." );
+			return;
+		}
+		executor.submit( () -> {
+			try
+			{
+				runTwoPhase( task, description, projectA.getGraph(), projectB.getGraph(), modifyA, modifyB, compute );
+				dialog.log( "done." );
+			}
+			catch ( CancellationException e )
+			{
+				dialog.log( "canceled." );
+			}
+			catch ( RuntimeException e )
 			{
-				task.run();
+				dialog.log( "failed: %s", e.getMessage() );
+				logService.error( "Spatial track matching: " + description + " failed.", e );
 			}
-		} ).start();
+			finally
+			{
+				runningTask.set( null );
+				dialog.hideProgress();
+			}
+		} );
+	}
+
+	private void runTwoPhase( TrackMatchingTask task, String description, ModelGraph graphA, ModelGraph graphB,
+			boolean modifyA, boolean modifyB, Function< TrackMatchingProgress, Runnable > compute )
+	{
+		ReentrantReadWriteLock lockA = graphA.getLock();
+		ReentrantReadWriteLock lockB = graphB.getLock();
+		GraphModificationTracker trackerA;
+		GraphModificationTracker trackerB;
+		// NB: The graph events are sent to the listeners while the graph is
+		// write-locked. Listeners are therefore only added and removed while
+		// the graphs are write-locked, too.
+		try ( ClosableLock ignored = LockUtils.lockBoth( lockA.writeLock(), lockB.writeLock() ) )
+		{
+			trackerA = GraphModificationTracker.start( graphA );
+			trackerB = GraphModificationTracker.start( graphB );
+		}
+		try
+		{
+			Runnable commit;
+			dialog.showProgress( description + " (computing)", 0 );
+			try ( ClosableLock ignored = LockUtils.lockBoth( lockA.readLock(), lockB.readLock() ) )
+			{
+				commit = compute.apply( task );
+				task.checkCanceled();
+			}
+
+			dialog.showProgress( description + " (applying changes)", -1 );
+			Lock commitLockA = modifyA ? lockA.writeLock() : lockA.readLock();
+			Lock commitLockB = modifyB ? lockB.writeLock() : lockB.readLock();
+			try ( ClosableLock ignored = LockUtils.lockBoth( commitLockA, commitLockB ) )
+			{
+				task.checkCanceled();
+				if ( trackerA.isModified() || trackerB.isModified() )
+				{
+					dialog.log( "The projects were modified in the meantime, repeat the computation..." );
+					commit = compute.apply( task );
+				}
+				task.startCommit();
+				commit.run();
+			}
+		}
+		finally
+		{
+			try ( ClosableLock ignored = LockUtils.lockBoth( lockA.writeLock(), lockB.writeLock() ) )
+			{
+				trackerA.close();
+				trackerB.close();
+			}
+		}
+	}
+
+	/**
+	 * Progress and cancellation state of a task started by
+	 * {@link #executeTask}. Cancellation has no effect once the commit step
+	 * started.
+	 */
+	private static class TrackMatchingTask extends TrackMatchingProgress
+	{
+		private boolean committing = false;
+
+		TrackMatchingTask( DoubleConsumer listener )
+		{
+			super( listener );
+		}
+
+		@Override
+		public synchronized boolean isCanceled()
+		{
+			return super.isCanceled() && !committing;
+		}
+
+		synchronized void startCommit()
+		{
+			checkCanceled();
+			committing = true;
+		}
 	}
 
 	private class Listener implements SpatialTrackMatchingFrame.Listener
@@ -127,15 +319,16 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 
 		private void sortSecondTrackScheme( SelectedProject project1, SelectedProject project2 )
 		{
-			executeTask( true, project1, project2, () -> {
-				dialog.clearLog();
-				dialog.log( "Sort the order of the child cells in the TrackScheme of project \"%s\".", project1.getName() );
-				dialog.log( "Use project \"%s\" as reference...", project2.getName() );
-				RegisteredGraphs registration = runRegistrationAlgorithm( project1, project2 );
-				SpatialTrackMatchingUtils.sortSecondTrackSchemeToMatch( registration );
-				project2.getProjectModel().getBranchGraphSync().sync();
-				project2.getModel().setUndoPoint();
-				dialog.log( "done." );
+			dialog.clearLog();
+			dialog.log( "Sort the order of the child cells in the TrackScheme of project \"%s\".", project1.getName() );
+			dialog.log( "Use project \"%s\" as reference...", project2.getName() );
+			executeTask( "sort TrackScheme", project1, project2, false, true, progress -> {
+				RegisteredGraphs registration = runRegistrationAlgorithm( project1, project2, progress );
+				return () -> {
+					SpatialTrackMatchingUtils.sortSecondTrackSchemeToMatch( registration );
+					project2.getProjectModel().getBranchGraphSync().sync();
+					project2.getModel().setUndoPoint();
+				};
 			} );
 		}
 
@@ -144,16 +337,15 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 		{
 			SelectedProject projectA = dialog.getProjectA();
 			SelectedProject projectB = dialog.getProjectB();
-			executeTask( false, projectA, projectB, () -> {
-				dialog.clearLog();
-				dialog.log( "Create tag set \"lineages\" in project \"%s\"...", projectA.getName() );
-				dialog.log( "Create tag set \"lineages\" in project \"%s\"...", projectB.getName() );
+			dialog.clearLog();
+			dialog.log( "Create tag set \"lineages\" in project \"%s\"...", projectA.getName() );
+			dialog.log( "Create tag set \"lineages\" in project \"%s\"...", projectB.getName() );
+			executeTask( "color lineages", projectA, projectB, true, true, progress -> () -> {
 				TrackColoring.tagLineages(
 						projectA.getModel(), projectA.getFirstTimepoint(),
 						projectB.getModel(), projectB.getFirstTimepoint() );
 				projectA.getModel().setUndoPoint();
 				projectB.getModel().setUndoPoint();
-				dialog.log( "done." );
 			} );
 		}
 
@@ -171,14 +363,16 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 
 		private void copyLabelsFromTo( SelectedProject fromProject, SelectedProject toProject )
 		{
-			executeTask( true, fromProject, toProject, () -> {
-				dialog.clearLog();
-				dialog.log( "Copy labels from project \"%s\" to project \"%s\"...",
-						fromProject.getName(), toProject.getName() );
-				RegisteredGraphs registration = runRegistrationAlgorithm( fromProject, toProject );
-				SpatialTrackMatchingUtils.copySpotLabelsFromAtoB( registration );
-				toProject.getModel().setUndoPoint();
-				dialog.log( "done." );
+			dialog.clearLog();
+			dialog.log( "Copy labels from project \"%s\" to project \"%s\"...",
+					fromProject.getName(), toProject.getName() );
+			executeTask( "copy labels", fromProject, toProject, false, true, progress -> {
+				RegisteredGraphs registration = runRegistrationAlgorithm( fromProject, toProject, progress );
+				return () -> {
+					SpatialTrackMatchingUtils.syncBranchGraphs( toProject.getProjectModel() );
+					SpatialTrackMatchingUtils.copySpotLabelsFromAtoB( registration );
+					toProject.getModel().setUndoPoint();
+				};
 			} );
 		}
 
@@ -216,15 +410,19 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 			if ( tagSet == null )
 				return;
 
-			executeTask( false, fromProject, toProject, () -> {
-				dialog.clearLog();
-				dialog.log( "Copy tag set \"%s\" from project \"%s\" to project \"%s\"...",
-						tagSet.getName(), fromProject.getName(), toProject.getName() );
-				String newTagSetName = tagSet.getName() + " (" + fromProject.getName() + ")";
-				RegisteredGraphs registration = runRegistrationAlgorithm( fromProject, toProject );
-				SpatialTrackMatchingUtils.copyTagSetToSecondModel( registration, tagSet, newTagSetName );
-				toModel.setUndoPoint();
-				dialog.log( "done." );
+			dialog.clearLog();
+			dialog.log( "Copy tag set \"%s\" from project \"%s\" to project \"%s\"...",
+					tagSet.getName(), fromProject.getName(), toProject.getName() );
+			String newTagSetName = tagSet.getName() + " (" + fromProject.getName() + ")";
+			// NB: Both projects are write-locked in the commit step, such that
+			// both branch graphs can be synced.
+			executeTask( "copy tag set", fromProject, toProject, true, true, progress -> {
+				RegisteredGraphs registration = runRegistrationAlgorithm( fromProject, toProject, progress );
+				return () -> {
+					SpatialTrackMatchingUtils.syncBranchGraphs( fromProject.getProjectModel(), toProject.getProjectModel() );
+					SpatialTrackMatchingUtils.copyTagSetToSecondModel( registration, tagSet, newTagSetName );
+					toModel.setUndoPoint();
+				};
 			} );
 		}
 
@@ -250,19 +448,20 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 		{
 			SelectedProject projectA = dialog.getProjectA();
 			SelectedProject projectB = dialog.getProjectB();
-			executeTask( false, projectA, projectB, () -> {
-				dialog.clearLog();
-				if ( modifyA )
-					dialog.log( "Create tag set \"spatial track matching\" in project \"%s\"...", projectA.getName() );
-				if ( modifyB )
-					dialog.log( "Create tag set \"spatial track matching\" in project \"%s\"...", projectB.getName() );
-				RegisteredGraphs registration = runRegistrationAlgorithm( projectA, projectB );
-				SpatialTrackMatchingUtils.tagCells( registration, modifyA, modifyB );
-				if ( modifyA )
-					projectA.getModel().setUndoPoint();
-				if ( modifyB )
-					projectB.getModel().setUndoPoint();
-				dialog.log( "done." );
+			dialog.clearLog();
+			if ( modifyA )
+				dialog.log( "Create tag set \"spatial track matching\" in project \"%s\"...", projectA.getName() );
+			if ( modifyB )
+				dialog.log( "Create tag set \"spatial track matching\" in project \"%s\"...", projectB.getName() );
+			executeTask( "tag cells", projectA, projectB, modifyA, modifyB, progress -> {
+				RegisteredGraphs registration = runRegistrationAlgorithm( projectA, projectB, progress );
+				return () -> {
+					SpatialTrackMatchingUtils.tagCells( registration, modifyA, modifyB );
+					if ( modifyA )
+						projectA.getModel().setUndoPoint();
+					if ( modifyB )
+						projectB.getModel().setUndoPoint();
+				};
 			} );
 		}
 
@@ -312,13 +511,31 @@ public class SpatialTrackMatchingControlService extends AbstractService implemen
 			CellDivisionAngleFeature.declare( registeredGraphs.modelB, registeredGraphs.anglesB );
 		}
 
+		@Override
+		public void onCancelClicked()
+		{
+			TrackMatchingTask task = runningTask.get();
+			if ( task == null )
+				return;
+			task.cancel( "Canceled by user." );
+			dialog.log( "cancel requested..." );
+		}
+
 	}
 
 	private RegisteredGraphs runRegistrationAlgorithm( SelectedProject projectA, SelectedProject projectB )
+	{
+		return runRegistrationAlgorithm( projectA, projectB, new TrackMatchingProgress() );
+	}
+
+	private RegisteredGraphs runRegistrationAlgorithm( SelectedProject projectA, SelectedProject projectB,
+			TrackMatchingProgress progress )
 	{
 		return SpatialTrackMatchingAlgorithm.run(
 				projectA.getModel(), projectA.getFirstTimepoint(),
 				projectB.getModel(), projectB.getFirstTimepoint(),
-				dialog.getSpatialRegistrationMethod() );
+				dialog.getSpatialRegistrationMethod(),
+				getDivisionDirections( projectA ), getDivisionDirections( projectB ),
+				progress );
 	}
 }
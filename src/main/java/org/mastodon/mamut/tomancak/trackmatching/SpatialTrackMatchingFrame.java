@@ -40,11 +40,13 @@ import javax.swing.JComponent;
 import javax.swing.JFormattedTextField;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JProgressBar;
 import javax.swing.JSeparator;
 import javax.swing.JTextArea;
 import javax.swing.JTextPane;
 import javax.swing.JToggleButton;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import javax.swing.text.NumberFormatter;
 
@@ -150,6 +152,10 @@ public class SpatialTrackMatchingFrame extends JFrame
 
 	private final JTextArea logArea;
 
+	private final JProgressBar progressBar = new JProgressBar();
+
+	private final JButton cancelButton;
+
 	public SpatialTrackMatchingFrame( Listener listener )
 	{
 		super( "Spatial Track Matching Across Two Mastodon Projects" );
@@ -218,7 +224,13 @@ public class SpatialTrackMatchingFrame extends JFrame
 		add( new JSeparator(), "span, grow, wrap" );
 		logArea = new JTextArea( 3, 50 );
 		logArea.setEditable( false );
-		add( logArea, "gaptop unrelated, span, grow" );
+		add( logArea, "gaptop unrelated, span, grow, wrap" );
+		progressBar.setStringPainted( true );
+		progressBar.setString( "" );
+		add( progressBar, "span, split 2, growx" );
+		cancelButton = newSimpleButton( "Cancel", listener::onCancelClicked );
+		cancelButton.setEnabled( false );
+		add( cancelButton, "wrap" );
 		add( newSimpleButton( "Close", this::onCloseClicked ), "gaptop unrelated, span, align right" );
 		updateEnableComponents();
 	}
@@ -237,6 +249,34 @@ public class SpatialTrackMatchingFrame extends JFrame
 		logArea.setText( text );
 	}
 
+	/**
+	 * Shows the progress of the running task. A negative {@code fraction}
+	 * shows an indeterminate progress bar. May be called from any thread.
+	 */
+	public void showProgress( String message, double fraction )
+	{
+		SwingUtilities.invokeLater( () -> {
+			progressBar.setString( message );
+			progressBar.setIndeterminate( fraction < 0 );
+			progressBar.setValue( fraction < 0 ? 0 : ( int ) Math.round( 100 * fraction ) );
+			cancelButton.setEnabled( true );
+		} );
+	}
+
+	/**
+	 * Resets the progress bar and disables the cancel button. May be called
+	 * from any thread.
+	 */
+	public void hideProgress()
+	{
+		SwingUtilities.invokeLater( () -> {
+			progressBar.setString( "" );
+			progressBar.setIndeterminate( false );
+			progressBar.setValue( 0 );
+			cancelButton.setEnabled( false );
+		} );
+	}
+
 	private static JFormattedTextField createNumberTextField()
 	{
 		NumberFormatter numberFormatter = new NumberFormatter( NumberFormat.getIntegerInstance() );
@@ -454,6 +494,8 @@ public class SpatialTrackMatchingFrame extends JFrame
 		void onPlotAnglesClicked();
 
 		void onAddAnglesFeatureClicked();
+
+		void onCancelClicked();
 	}
 
 	private static class DummyListener implements Listener
@@ -536,6 +578,12 @@ public class SpatialTrackMatchingFrame extends JFrame
 		{
 
 		}
+
+		@Override
+		public void onCancelClicked()
+		{
+
+		}
 	}
 
 	public static void main( String... args )
@@ -30,6 +30,7 @@ package org.mastodon.mamut.tomancak.trackmatching;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -46,10 +47,13 @@ import org.mastodon.collection.RefDoubleMap;
 import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefSet;
 import org.mastodon.collection.ref.RefArrayList;
+import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.model.branch.BranchSpot;
+import org.mastodon.mamut.model.branch.ModelBranchGraph;
 import org.mastodon.mamut.tomancak.sort_tree.FlipDescendants;
 import org.mastodon.model.tag.ObjTagMap;
 import org.mastodon.model.tag.TagSetStructure;
@@ -73,11 +77,26 @@ public class SpatialTrackMatchingUtils
 		FlipDescendants.flipDescendants( result.modelB, spotsToFlipB );
 	}
 
+	/**
+	 * Syncs the branch graphs of the given projects with their model graphs.
+	 * This must be done, while the model graphs are write-locked, before
+	 * calling {@link #copyTagSetToSecondModel} or
+	 * {@link #copySpotLabelsFromAtoB}, which use the branch graphs.
+	 */
+	public static void syncBranchGraphs( ProjectModel... projectModels )
+	{
+		for ( ProjectModel projectModel : projectModels )
+			projectModel.getBranchGraphSync().sync();
+	}
+
 	/**
 	 * Copy a tag set from {@link RegisteredGraphs#modelA} to
 	 * {@link RegisteredGraphs#modelB}. The tags are copied from the branches in
 	 * modelA to the corresponding branches in modelB. The copying is down with
 	 * respect to {@link RegisteredGraphs#mapAB}.
+	 * <p>
+	 * The branch graphs of both models must be in sync with the model graphs,
+	 * see {@link #syncBranchGraphs}.
 	 */
 	public static TagSetStructure.TagSet copyTagSetToSecondModel( RegisteredGraphs result,
 			TagSetStructure.TagSet tagSetModelA, String newTagSetName )
@@ -97,9 +116,14 @@ public class SpatialTrackMatchingUtils
 	{
 		ModelGraph graphA = result.graphA;
 		ModelGraph graphB = result.graphB;
+		ModelBranchGraph branchGraphA = result.modelA.getBranchGraph();
+		ModelBranchGraph branchGraphB = result.modelB.getBranchGraph();
+		BranchSpot branchRefA = branchGraphA.vertexRef();
+		BranchSpot branchRefB = branchGraphB.vertexRef();
 		Spot refA = graphA.vertexRef();
 		Spot refA2 = graphA.vertexRef();
 		Spot refB = graphB.vertexRef();
+		Spot refB1 = graphB.vertexRef();
 		Spot refB2 = graphB.vertexRef();
 		Link erefB = graphB.edgeRef();
 		try
@@ -108,9 +132,9 @@ public class SpatialTrackMatchingUtils
 			ObjTagMap< Link, TagSetStructure.Tag > edgeTagsB = result.modelB.getTagSetModel().getEdgeTags().tags( tagSetModelB );
 			for ( Spot spotA : result.mapAB.keySet() )
 			{
-				Spot spotB = result.mapAB.get( spotA, refB );
-				Spot branchEndA = BranchGraphUtils.getBranchEnd( spotA, refA );
-				Spot branchEndB = BranchGraphUtils.getBranchEnd( spotB, refB );
+				Spot spotB = result.mapAB.get( spotA, refB1 );
+				Spot branchEndA = branchGraphA.getLastLinkedVertex( branchGraphA.getBranchVertex( spotA, branchRefA ), refA );
+				Spot branchEndB = branchGraphB.getLastLinkedVertex( branchGraphB.getBranchVertex( spotB, branchRefB ), refB );
 				for ( Link linkA : branchEndA.outgoingEdges() )
 				{
 					Spot targetA = linkA.getTarget( refA2 );
@@ -124,24 +148,57 @@ public class SpatialTrackMatchingUtils
 		}
 		finally
 		{
+			branchGraphA.releaseRef( branchRefA );
+			branchGraphB.releaseRef( branchRefB );
 			graphA.releaseRef( refA );
 			graphA.releaseRef( refA2 );
 			graphB.releaseRef( refB );
+			graphB.releaseRef( refB1 );
 			graphB.releaseRef( refB2 );
 			graphB.releaseRef( erefB );
 		}
 	}
 
+	/**
+	 * Copies the branch tags of {@link RegisteredGraphs#modelA} to the
+	 * matched branches of {@link RegisteredGraphs#modelB}. The spans of the
+	 * branches in modelB are resolved once with the {@link ModelBranchGraph},
+	 * and all spots and links of a branch are tagged in one pass.
+	 */
 	private static void copyBranchSpotTags( TagSetStructure.TagSet tagSetModelA, RegisteredGraphs result,
 			TagSetStructure.TagSet tagSetModelB,
 			Function< TagSetStructure.Tag, TagSetStructure.Tag > tagsAB )
 	{
-		for ( Spot spotA : result.mapAB.keySet() )
+		ModelBranchGraph branchGraphB = result.modelB.getBranchGraph();
+		ObjTagMap< Spot, TagSetStructure.Tag > spotTagsB = result.modelB.getTagSetModel().getVertexTags().tags( tagSetModelB );
+		ObjTagMap< Link, TagSetStructure.Tag > edgeTagsB = result.modelB.getTagSetModel().getEdgeTags().tags( tagSetModelB );
+		BranchSpot branchRefB = branchGraphB.vertexRef();
+		Spot refB = result.graphB.vertexRef();
+		try
 		{
-			Spot spotB = result.mapAB.get( spotA );
-			TagSetStructure.Tag tagA = TagSetUtils.getBranchTag( result.modelA, tagSetModelA, spotA );
-			TagSetStructure.Tag tagB = tagsAB.apply( tagA );
-			TagSetUtils.tagBranch( result.modelB, tagSetModelB, tagB, spotB );
+			for ( Spot spotA : result.mapAB.keySet() )
+			{
+				TagSetStructure.Tag tagA = TagSetUtils.getBranchTag( result.modelA, tagSetModelA, spotA );
+				TagSetStructure.Tag tagB = tagsAB.apply( tagA );
+				// NB: The tag set in modelB is new, untagged branches stay untagged.
+				if ( tagB == null )
+					continue;
+				Spot spotB = result.mapAB.get( spotA, refB );
+				BranchSpot branchB = branchGraphB.getBranchVertex( spotB, branchRefB );
+				Iterator< Spot > spots = branchGraphB.vertexBranchIterator( branchB );
+				while ( spots.hasNext() )
+					spotTagsB.set( spots.next(), tagB );
+				branchGraphB.releaseIterator( spots );
+				Iterator< Link > links = branchGraphB.edgeBranchIterator( branchB );
+				while ( links.hasNext() )
+					edgeTagsB.set( links.next(), tagB );
+				branchGraphB.releaseIterator( links );
+			}
+		}
+		finally
+		{
+			branchGraphB.releaseRef( branchRefB );
+			result.graphB.releaseRef( refB );
 		}
 	}
 
@@ -319,9 +376,19 @@ public class SpatialTrackMatchingUtils
 		frame.setVisible( true );
 	}
 
+	/**
+	 * Copies the labels of the branch starts in {@link RegisteredGraphs#modelA}
+	 * to all spots of the matched branches in {@link RegisteredGraphs#modelB}.
+	 * Spots in modelA that have no label (i.e. the default label) are
+	 * ignored. The spans of the branches in modelB are resolved with the
+	 * {@link ModelBranchGraph}, which must be in sync with the model graph,
+	 * see {@link #syncBranchGraphs}.
+	 */
 	public static void copySpotLabelsFromAtoB( final RegisteredGraphs registration )
 	{
 		final ModelGraph graphB = registration.graphB;
+		final ModelBranchGraph branchGraphB = registration.modelB.getBranchGraph();
+		final BranchSpot branchRefB = branchGraphB.vertexRef();
 		final Spot refB = graphB.vertexRef();
 		try
 		{
@@ -330,15 +397,19 @@ public class SpatialTrackMatchingUtils
 				boolean hasLabel = !Integer.toString( spotA.getInternalPoolIndex() ).equals( spotA.getLabel() );
 				if ( hasLabel )
 				{
+					final String label = spotA.getLabel();
 					final Spot spotB = registration.mapAB.get( spotA, refB );
-					final RefList< Spot > spotsOfBranchB = BranchGraphUtils.getBranchSpotsAndLinks( graphB, spotB ).getA();
-					for ( final Spot spot : spotsOfBranchB )
-						spot.setLabel( spotA.getLabel() );
+					final BranchSpot branchB = branchGraphB.getBranchVertex( spotB, branchRefB );
+					final Iterator< Spot > spots = branchGraphB.vertexBranchIterator( branchB );
+					while ( spots.hasNext() )
+						spots.next().setLabel( label );
+					branchGraphB.releaseIterator( spots );
 				}
 			}
 		}
 		finally
 		{
+			branchGraphB.releaseRef( branchRefB );
 			graphB.releaseRef( refB );
 		}
 	}
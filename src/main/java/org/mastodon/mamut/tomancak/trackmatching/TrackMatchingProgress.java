@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.trackmatching;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.DoubleConsumer;
+
+import org.scijava.Cancelable;
+
+/**
+ * Reports the progress of the {@link SpatialTrackMatchingAlgorithm}, and
+ * allows to cancel it. The algorithm calls {@link #checkCanceled()}
+ * regularly, and stops with a {@link CancellationException} once
+ * {@link #cancel} was called. All methods may be called from any thread.
+ */
+public class TrackMatchingProgress implements Cancelable
+{
+	private final DoubleConsumer listener;
+
+	private volatile String cancelReason = null;
+
+	private int percent = -1;
+
+	public TrackMatchingProgress()
+	{
+		this( fraction -> {} );
+	}
+
+	/**
+	 * @param listener
+	 *            receives the fraction of the work that is done, a value
+	 *            between 0 and 1. It is only notified if the percentage
+	 *            increases, or if the work starts again with {@code done == 0}.
+	 *            It must not block, as it is notified while this object is
+	 *            locked.
+	 */
+	public TrackMatchingProgress( DoubleConsumer listener )
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Reports that {@code done} out of {@code total} work items are done.
+	 * Work items may be done concurrently, the reported progress never
+	 * decreases until the work starts again with {@code done == 0}.
+	 */
+	public synchronized void showProgress( int done, int total )
+	{
+		double fraction = total <= 0 ? 1 : Math.min( 1, ( double ) done / total );
+		int newPercent = ( int ) ( 100 * fraction );
+		if ( done > 0 && newPercent <= percent )
+			return;
+		percent = newPercent;
+		listener.accept( fraction );
+	}
+
+	/**
+	 * Throws a {@link CancellationException} if the operation was canceled.
+	 */
+	public void checkCanceled()
+	{
+		if ( isCanceled() )
+			throw new CancellationException( getCancelReason() );
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	@Override
+	public void cancel( String reason )
+	{
+		cancelReason = reason != null ? reason : "";
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+}
@@ -35,6 +35,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Collectors;
 
 import net.imglib2.realtransform.AffineTransform3D;
@@ -52,7 +53,11 @@ import org.mastodon.mamut.tomancak.trackmatching.RefMapUtils;
 import org.mastodon.mamut.tomancak.sort_tree.SortTreeUtils;
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.util.TagSetUtils;
+import org.scijava.Cancelable;
 
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 
@@ -87,18 +92,41 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 	/** The number of timepoints in {@code modelB}. */
 	private final int numTimepointsB;
 
+	/**
+	 * Maps a pair of timepoints, see {@link #key(int, int)}, to the slot of
+	 * the respective transform in {@link #coefficients}.
+	 */
+	private final TLongIntMap transformSlots = new TLongIntHashMap( 100, 0.5f, -1, -1 );
+
+	/**
+	 * The row packed 12 coefficients of the cached transforms, one block of
+	 * 12 values per slot.
+	 */
+	private final TDoubleArrayList coefficients = new TDoubleArrayList();
+
 	/**
 	 * Initializes a {@link DynamicLandmarkRegistration}. The given pairs of roots
 	 * and all their descendants positions are used to compute a registration
 	 * between the two given {@link Model models}.
 	 */
 	public static DynamicLandmarkRegistration forRoots( Model modelA, Model modelB, RefRefMap< Spot, Spot > rootsAB )
+	{
+		return forRoots( modelA, modelB, rootsAB, null );
+	}
+
+	/**
+	 * Same as {@link #forRoots(Model, Model, RefRefMap)}, but stops with a
+	 * {@link CancellationException} if {@code cancelable} is canceled.
+	 * {@code cancelable} may be {@code null}.
+	 */
+	public static DynamicLandmarkRegistration forRoots( Model modelA, Model modelB, RefRefMap< Spot, Spot > rootsAB, Cancelable cancelable )
 	{
 		if ( rootsAB.size() < 3 )
 			throw new NotEnoughPairedRootsException();
 
 		DynamicLandmarkRegistration dynamicLandmarkRegistration = new DynamicLandmarkRegistration( modelA.getGraph(), modelB.getGraph() );
 		RefMapUtils.forEach( rootsAB, ( rootA, rootB ) -> {
+			checkCanceled( cancelable );
 			Collection< Spot > descendantsA = getDescendants( modelA.getGraph(), rootA );
 			Collection< Spot > descendantsB = getDescendants( modelB.getGraph(), rootB );
 			dynamicLandmarkRegistration.addLandmark( descendantsA, descendantsB );
@@ -112,6 +140,16 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 	 * Both tag sets must contain the same tags.
 	 */
 	public static DynamicLandmarkRegistration forTagSet( Model modelA, Model modelB )
+	{
+		return forTagSet( modelA, modelB, null );
+	}
+
+	/**
+	 * Same as {@link #forTagSet(Model, Model)}, but stops with a
+	 * {@link CancellationException} if {@code cancelable} is canceled.
+	 * {@code cancelable} may be {@code null}.
+	 */
+	public static DynamicLandmarkRegistration forTagSet( Model modelA, Model modelB, Cancelable cancelable )
 	{
 		Map< String, TagSetStructure.Tag > tagSetA =
 				tagSetAsMap( TagSetUtils.findTagSet( modelA, "landmarks" ) );
@@ -123,6 +161,7 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 		for ( String tagLabel : tagSetA.keySet() )
 			if ( tagSetB.containsKey( tagLabel ) )
 			{
+				checkCanceled( cancelable );
 				Collection< Spot > landmarkA = modelA.getTagSetModel().getVertexTags().getTaggedWith( tagSetA.get( tagLabel ) );
 				Collection< Spot > landmarkB = modelB.getTagSetModel().getVertexTags().getTaggedWith( tagSetB.get( tagLabel ) );
 				boolean valid = !landmarkA.isEmpty() && !landmarkB.isEmpty();
@@ -169,6 +208,7 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 		List< double[] > rollingAverageA = rollingAverage( landmarkA );
 		List< double[] > rollingAverageB = rollingAverage( landmarkB );
 		landmarks.add( Pair.of( rollingAverageA, rollingAverageB ) );
+		clearTransformCache();
 	}
 
 	private static Collection< Spot > getDescendants( ModelGraph graph, Spot spot )
@@ -180,10 +220,73 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 		return descendants;
 	}
 
+	/**
+	 * Returns the transformation that maps positions of {@code modelA} at
+	 * timepoint {@code timepointA} to positions of {@code modelB} at
+	 * timepoint {@code timepointB}.
+	 * <p>
+	 * Fitting the transformation is expensive, and the same pair of
+	 * timepoints is requested many times, e.g. once per cell division.
+	 * Therefore the transformations are cached. Timepoints outside of the
+	 * range of the models are clamped, as are the landmark positions. This
+	 * method is thread-safe.
+	 */
 	@Override
 	public AffineTransform3D getTransformationAtoB( int timepointA, int timepointB )
 	{
-		List< PointMatch > matches = new ArrayList<>();
+		int tA = clamp( timepointA, numTimepointsA );
+		int tB = clamp( timepointB, numTimepointsB );
+		long key = key( tA, tB );
+		double[] values = new double[ 12 ];
+		synchronized ( transformSlots )
+		{
+			int slot = transformSlots.get( key );
+			if ( slot >= 0 )
+			{
+				coefficients.toArray( values, 12 * slot, 12 );
+				AffineTransform3D transform = new AffineTransform3D();
+				transform.set( values );
+				return transform;
+			}
+		}
+		// NB: The transform is fitted outside of the synchronized block, such
+		// that different pairs of timepoints can be fitted concurrently.
+		AffineTransform3D transform = fitTransformAtoB( tA, tB );
+		values = transform.getRowPackedCopy();
+		synchronized ( transformSlots )
+		{
+			if ( !transformSlots.containsKey( key ) )
+			{
+				transformSlots.put( key, coefficients.size() / 12 );
+				coefficients.add( values );
+			}
+		}
+		return transform;
+	}
+
+	/**
+	 * Returns the number of cached transformations.
+	 */
+	int getNumberOfCachedTransforms()
+	{
+		synchronized ( transformSlots )
+		{
+			return transformSlots.size();
+		}
+	}
+
+	private void clearTransformCache()
+	{
+		synchronized ( transformSlots )
+		{
+			transformSlots.clear();
+			coefficients.clear();
+		}
+	}
+
+	private AffineTransform3D fitTransformAtoB( int timepointA, int timepointB )
+	{
+		List< PointMatch > matches = new ArrayList<>( landmarks.size() );
 		landmarks.forEach( pair -> {
 			List< double[] > landmarkA = pair.getLeft();
 			List< double[] > landmarkB = pair.getRight();
@@ -196,6 +299,24 @@ public class DynamicLandmarkRegistration implements SpatialRegistration
 
 	// -- Helper methods --
 
+	private static void checkCanceled( Cancelable cancelable )
+	{
+		if ( cancelable != null && cancelable.isCanceled() )
+			throw new CancellationException( cancelable.getCancelReason() );
+	}
+
+	private static long key( int timepointA, int timepointB )
+	{
+		return ( ( long ) timepointA << 32 ) | ( timepointB & 0xffffffffL );
+	}
+
+	private static int clamp( int timepoint, int numTimepoints )
+	{
+		if ( numTimepoints <= 0 )
+			return timepoint;
+		return Math.max( 0, Math.min( numTimepoints - 1, timepoint ) );
+	}
+
 	private static List< double[] > rollingAverage( List< double[] > list )
 	{
 		List< double[] > output = new ArrayList<>( list.size() );
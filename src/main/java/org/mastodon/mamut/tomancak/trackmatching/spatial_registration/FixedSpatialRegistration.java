@@ -59,7 +59,7 @@ public class FixedSpatialRegistration implements SpatialRegistration
 	@Override
 	public AffineTransform3D getTransformationAtoB( int timepointA, int timepointB )
 	{
-		return transformAB;
+		return transformAB.copy();
 	}
 
 	/**
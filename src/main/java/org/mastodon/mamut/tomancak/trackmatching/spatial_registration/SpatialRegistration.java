@@ -30,8 +30,22 @@ package org.mastodon.mamut.tomancak.trackmatching.spatial_registration;
 
 import net.imglib2.realtransform.AffineTransform3D;
 
+/**
+ * Spatial registration between two models, that may change over time.
+ * <p>
+ * Implementations must be thread-safe: the
+ * {@link org.mastodon.mamut.tomancak.trackmatching.SpatialTrackMatchingAlgorithm}
+ * matches the lineage trees in parallel and calls
+ * {@link #getTransformationAtoB} concurrently.
+ */
 public interface SpatialRegistration
 {
 
+	/**
+	 * Returns the transformation that maps positions of model A at timepoint
+	 * {@code timepointA} to positions of model B at timepoint
+	 * {@code timepointB}. The returned transformation is a new instance, the
+	 * caller may modify it.
+	 */
 	AffineTransform3D getTransformationAtoB( int timepointA, int timepointB );
 }
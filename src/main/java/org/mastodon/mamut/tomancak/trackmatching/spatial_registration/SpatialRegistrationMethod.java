@@ -28,6 +28,8 @@
  */
 package org.mastodon.mamut.tomancak.trackmatching.spatial_registration;
 
+import org.scijava.Cancelable;
+
 /**
  * An enum that can be used to select between different {@link SpatialRegistration}
  * implementations.
@@ -52,15 +54,26 @@ public enum SpatialRegistrationMethod
 	}
 
 	public static SpatialRegistrationFactory getFactory( SpatialRegistrationMethod method )
+	{
+		return getFactory( method, null );
+	}
+
+	/**
+	 * Same as {@link #getFactory(SpatialRegistrationMethod)}, but the
+	 * returned factory stops with a
+	 * {@link java.util.concurrent.CancellationException} if the given
+	 * {@link Cancelable} is canceled. {@code cancelable} may be {@code null}.
+	 */
+	public static SpatialRegistrationFactory getFactory( SpatialRegistrationMethod method, Cancelable cancelable )
 	{
 		switch ( method )
 		{
 		case FIXED_ROOTS:
 			return FixedSpatialRegistration::forDividingRoots;
 		case DYNAMIC_ROOTS:
-			return DynamicLandmarkRegistration::forRoots;
+			return ( modelA, modelB, rootsAB ) -> DynamicLandmarkRegistration.forRoots( modelA, modelB, rootsAB, cancelable );
 		case DYNAMIC_LANDMARKS:
-			return ( modelA, modelB, rootsAB ) -> DynamicLandmarkRegistration.forTagSet( modelA, modelB );
+			return ( modelA, modelB, rootsAB ) -> DynamicLandmarkRegistration.forTagSet( modelA, modelB, cancelable );
 		}
 		throw new AssertionError();
 	}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class MappedFileElementArrayTest
+{
+	@Test
+	public void testResizeAcrossChunks() throws IOException
+	{
+		final File directory = Files.createTempDirectory( "mapped-file-element-array" ).toFile();
+		// chunks of four elements, 4 bytes each
+		final MappedFileElementArray.FileFactory factory = new MappedFileElementArray.FileFactory( directory, 16 );
+		final MappedFileElementArray array = factory.createArray( 3, 4 );
+		final File file = directory.listFiles()[ 0 ];
+		assertEquals( 3, array.capacity() );
+		assertEquals( 12, file.length() );
+
+		final MappedFileElement access = array.createAccess();
+		for ( int i = 0; i < 3; i++ )
+		{
+			array.updateAccess( access, i );
+			access.putInt( i, 0 );
+		}
+
+		array.resize( 10 );
+		assertEquals( 10, array.size() );
+		assertEquals( 40, file.length() );
+		for ( int i = 3; i < 10; i++ )
+		{
+			array.updateAccess( access, i );
+			access.putInt( i, 0 );
+		}
+		for ( int i = 0; i < 10; i++ )
+		{
+			array.updateAccess( access, i );
+			assertEquals( i, access.getInt( 0 ) );
+		}
+
+		factory.close();
+		assertFalse( file.exists() );
+		assertTrue( directory.delete() );
+	}
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.StringJoiner;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.scijava.log.StderrLogService;
+
+public class MatchCandidatesTest
+{
+	@Test
+	public void testPruneMatchingGraphInPlace()
+	{
+		final ModelGraph graphA = createGraph( 100 );
+		final ModelGraph graphB = createGraph( 100 );
+		final MatchCandidates candidates = new MatchCandidates( 1000, 1, 1.5 );
+		final MatchingGraph expected = candidates.pruneMatchingGraph( createRandomMatchingGraph( graphA, graphB ) );
+		final MatchingGraph actual = candidates.pruneMatchingGraphInPlace( createRandomMatchingGraph( graphA, graphB ) );
+		for ( final ModelGraph graph : Arrays.asList( graphA, graphB ) )
+		{
+			for ( final Spot spot : graph.vertices() )
+			{
+				assertEquals( outgoingEdgesAsString( expected.getVertex( spot ) ), outgoingEdgesAsString( actual.getVertex( spot ) ) );
+				assertEquals( incomingEdgesAsString( expected.getVertex( spot ) ), incomingEdgesAsString( actual.getVertex( spot ) ) );
+			}
+		}
+	}
+
+	@Test
+	public void testMemoryMappedMatchingGraph() throws IOException
+	{
+		final Model modelA = createModel( 0 );
+		final Model modelB = createModel( 0.1 );
+		final MatchCandidates candidates = new MatchCandidates( 1000, 1, 1.5 );
+		final SpotCovarianceCache cacheA = new SpotCovarianceCache( modelA.getGraph() );
+		final SpotCovarianceCache cacheB = new SpotCovarianceCache( modelB.getGraph() );
+		final File directory = Files.createTempDirectory( "matching-graph" ).toFile();
+		directory.deleteOnExit();
+		final MatchingGraph expected = candidates.pruneMatchingGraphInPlace( candidates.buildMatchingGraph( modelA, modelB, cacheA, cacheB, 0, 1 ) );
+		final MatchingGraph actual = candidates.pruneMatchingGraphInPlace( candidates.buildMatchingGraph( MatchingGraph.newMemoryMapped( directory, modelA, modelB ), modelA, modelB, cacheA, cacheB, 0, 1 ) );
+		assertEquals( expected.edges().size(), actual.edges().size() );
+		for ( final Model model : Arrays.asList( modelA, modelB ) )
+		{
+			for ( final Spot spot : model.getGraph().vertices() )
+			{
+				assertEquals( outgoingEdgesAsString( expected.getVertex( spot ) ), outgoingEdgesAsString( actual.getVertex( spot ) ) );
+				assertEquals( incomingEdgesAsString( expected.getVertex( spot ) ), incomingEdgesAsString( actual.getVertex( spot ) ) );
+			}
+		}
+		assertTrue( directory.listFiles().length > 0 );
+		actual.close();
+		assertEquals( 0, directory.listFiles().length );
+	}
+
+	@Test
+	public void testCandidateCache() throws IOException
+	{
+		final Model modelA = createModel( 0 );
+		final Model modelB = createModel( 0.1 );
+		final SpotCovarianceCache cacheA = new SpotCovarianceCache( modelA.getGraph() );
+		final SpotCovarianceCache cacheB = new SpotCovarianceCache( modelB.getGraph() );
+		final File directory = Files.createTempDirectory( "candidate-cache" ).toFile();
+		directory.deleteOnExit();
+
+		// fill the cache with larger cutoffs
+		new MatchCandidates( 10, 8, 1.5 ).buildMatchingGraph( modelA, modelB, cacheA, cacheB, 0, 1, new CandidateCache( directory ) );
+
+		final MatchCandidates candidates = new MatchCandidates( 4, 3, 1.5 );
+		final MatchingGraph expected = candidates.buildMatchingGraph( modelA, modelB, cacheA, cacheB, 0, 1 );
+		final MatchingGraph actual = candidates.buildMatchingGraph( modelA, modelB, cacheA, cacheB, 0, 1, new CandidateCache( directory ) );
+		assertEquals( expected.edges().size(), actual.edges().size() );
+		for ( final Model model : Arrays.asList( modelA, modelB ) )
+			for ( final Spot spot : model.getGraph().vertices() )
+				assertEquals( outgoingEdgesAsString( expected.getVertex( spot ) ), outgoingEdgesAsString( actual.getVertex( spot ) ) );
+
+		for ( final File file : directory.listFiles() )
+			file.delete();
+	}
+
+	@Test
+	public void testCandidateCacheEviction() throws IOException
+	{
+		final Model modelA = createModel( 0 );
+		final Model modelB = createModel( 0.1 );
+		final Model modelC = createModel( 0.2 );
+		final File directory = Files.createTempDirectory( "candidate-cache" ).toFile();
+		directory.deleteOnExit();
+		final MatchCandidates candidates = new MatchCandidates( 10, 8, 1.5 );
+		candidates.buildMatchingGraph( modelA, modelB, null, null, 0, 1, new CandidateCache( directory ) );
+		final File fileAB = directory.listFiles()[ 0 ];
+		fileAB.setLastModified( System.currentTimeMillis() - 10000 );
+
+		// the least recently used file is evicted if the cache is too large
+		final long maxBytes = fileAB.length() * 3 / 2;
+		final CandidateCache cache = new CandidateCache( directory, maxBytes, CandidateCache.DEFAULT_MAX_AGE_MILLIS, new StderrLogService() );
+		candidates.buildMatchingGraph( modelA, modelC, null, null, 0, 1, cache );
+		assertEquals( 1, directory.listFiles().length );
+		assertNull( new CandidateCache( directory ).get( CandidateCache.key( modelA, modelB ) ) );
+		assertNotNull( new CandidateCache( directory ).get( CandidateCache.key( modelA, modelC ) ) );
+
+		// files that were not used for too long are evicted
+		directory.listFiles()[ 0 ].setLastModified( System.currentTimeMillis() - 10000 );
+		new CandidateCache( directory, maxBytes, 1000, new StderrLogService() ).evict();
+		assertEquals( 0, directory.listFiles().length );
+	}
+
+	private static Model createModel( final double offset )
+	{
+		final Model model = new Model();
+		for ( int t = 0; t < 2; t++ )
+			for ( int i = 0; i < 100; i++ )
+				model.getGraph().addVertex().init( t, new double[] { 3 * i + offset, 0, 0 }, 1 );
+		return model;
+	}
+
+	static ModelGraph createGraph( final int numSpots )
+	{
+		final ModelGraph graph = new ModelGraph();
+		for ( int i = 0; i < numSpots; i++ )
+			graph.addVertex().init( 0, new double[] { i, 0, 0 }, 1 );
+		return graph;
+	}
+
+	/**
+	 * Returns a matching graph, where every vertex has 3 outgoing edges to
+	 * random vertices of the other model, with random distances.
+	 */
+	static MatchingGraph createRandomMatchingGraph( final ModelGraph graphA, final ModelGraph graphB )
+	{
+		final Random random = new Random( 42 );
+		final int sizeA = graphA.vertices().size();
+		final int sizeB = graphB.vertices().size();
+		final MatchingGraph matching = MatchingGraph.newWithAllSpots( Arrays.asList( graphA, graphB ) );
+		final MatchingVertex ref1 = matching.vertexRef();
+		final MatchingVertex ref2 = matching.vertexRef();
+		final MatchingEdge eref = matching.edgeRef();
+		for ( int graphId = 0; graphId < 2; graphId++ )
+		{
+			final int size = graphId == 0 ? sizeA : sizeB;
+			final int otherSize = graphId == 0 ? sizeB : sizeA;
+			for ( int i = 0; i < size; i++ )
+			{
+				final MatchingVertex source = matching.getVertex( graphId, i, ref1 );
+				final int first = random.nextInt( otherSize );
+				for ( int k = 0; k < 3; k++ )
+				{
+					final MatchingVertex target = matching.getVertex( 1 - graphId, ( first + k ) % otherSize, ref2 );
+					final double distSqu = random.nextDouble();
+					matching.addEdge( source, target, eref ).init( distSqu, distSqu * random.nextDouble() );
+				}
+			}
+		}
+		return matching;
+	}
+
+	private static String outgoingEdgesAsString( final MatchingVertex vertex )
+	{
+		final StringJoiner joiner = new StringJoiner( ", " );
+		for ( final MatchingEdge edge : vertex.outgoingEdges() )
+			joiner.add( edge.getTarget() + ":" + edge.getMahalDistSqu() );
+		return joiner.toString();
+	}
+
+	private static String incomingEdgesAsString( final MatchingVertex vertex )
+	{
+		final StringJoiner joiner = new StringJoiner( ", " );
+		for ( final MatchingEdge edge : vertex.incomingEdges() )
+			joiner.add( edge.getSource() + ":" + edge.getMahalDistSqu() );
+		return joiner.toString();
+	}
+}
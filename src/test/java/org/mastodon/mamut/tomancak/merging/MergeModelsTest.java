@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class MergeModelsTest
+{
+	@Test
+	public void testResultIndependentOfNumThreads()
+	{
+		final ModelGraph serial = merge( 1 );
+		final ModelGraph parallel = merge( 4 );
+		assertEquals( serial.vertices().size(), parallel.vertices().size() );
+		assertEquals( serial.edges().size(), parallel.edges().size() );
+		final Iterator< Spot > it = parallel.vertices().iterator();
+		for ( final Spot expected : serial.vertices() )
+		{
+			final Spot actual = it.next();
+			assertEquals( expected.getTimepoint(), actual.getTimepoint() );
+			assertEquals( expected.getDoublePosition( 0 ), actual.getDoublePosition( 0 ), 0 );
+			assertEquals( expected.getDoublePosition( 1 ), actual.getDoublePosition( 1 ), 0 );
+			assertEquals( expected.incomingEdges().size(), actual.incomingEdges().size() );
+		}
+	}
+
+	private static ModelGraph merge( final int numThreads )
+	{
+		final Model mA = createModel( 1 );
+		final Model mB = createModel( 2 );
+		final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( new Model() );
+		MergeModels.merge( mA, mB, output, 0, 4, new MergeSettings( 10, 2, 2 ).numThreads( numThreads ) );
+		return output.getModel().getGraph();
+	}
+
+	/**
+	 * Tracks on a grid that move slightly, with random jitter, divisions and
+	 * spots that are close to each other, such that all kinds of matches
+	 * occur.
+	 */
+	private static Model createModel( final long seed )
+	{
+		final Random random = new Random( seed );
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		for ( int x = 0; x < 10; x++ )
+		{
+			for ( int y = 0; y < 10; y++ )
+			{
+				Spot previous = null;
+				for ( int t = 0; t < 5; t++ )
+				{
+					final double[] pos = { 10 * x + t + random.nextDouble(), 10 * y + random.nextDouble(), 0 };
+					final Spot spot = graph.addVertex().init( t, pos, 1 );
+					if ( previous != null )
+						graph.addEdge( previous, spot ).init();
+					if ( random.nextInt( 10 ) == 0 )
+					{
+						pos[ 1 ] += 1.5;
+						final Spot sibling = graph.addVertex().init( t, pos, 1 );
+						if ( previous != null )
+							graph.addEdge( previous, sibling ).init();
+					}
+					previous = spot;
+				}
+			}
+		}
+		return model;
+	}
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class MergeMultipleModelsTest
+{
+	@Test
+	public void testMergeIdenticalTracks()
+	{
+		final List< Model > models = new ArrayList<>();
+		for ( int i = 0; i < 4; i++ )
+			models.add( createTrack( 0.1 * i ) );
+		final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( new Model() );
+		MergeMultipleModels.merge( models, output, 1000, 1, 2, 1 );
+		final ModelGraph graph = output.getModel().getGraph();
+		assertEquals( 3, graph.vertices().size() );
+		assertEquals( 2, graph.edges().size() );
+	}
+
+	@Test
+	public void testMergeWithMissingSpot()
+	{
+		final List< Model > models = new ArrayList<>();
+		for ( int i = 0; i < 3; i++ )
+			models.add( createTrack( 0.1 * i ) );
+		// a spot far away, that only exists in the second model
+		models.get( 1 ).getGraph().addVertex().init( 0, new double[] { 100, 0, 0 }, 1 );
+		final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( new Model() );
+		MergeMultipleModels.merge( models, output, 1000, 1, 2, 1 );
+		assertEquals( 4, output.getModel().getGraph().vertices().size() );
+	}
+
+	@Test( expected = CancellationException.class )
+	public void testCancel()
+	{
+		final List< Model > models = new ArrayList<>();
+		for ( int i = 0; i < 3; i++ )
+			models.add( createTrack( 0.1 * i ) );
+		final MergeProgress progress = new MergeProgress();
+		progress.cancel( "test" );
+		MergeMultipleModels.merge( models, new MergeDatasets.OutputDataSet( new Model() ), 0, 2, new MergeSettings( 1000, 1, 2 ).progress( progress ) );
+	}
+
+	@Test
+	public void testSourceName()
+	{
+		assertEquals( "A", MergeMultipleModels.sourceName( 0 ) );
+		assertEquals( "Z", MergeMultipleModels.sourceName( 25 ) );
+		assertEquals( "AA", MergeMultipleModels.sourceName( 26 ) );
+		assertEquals( "BA", MergeMultipleModels.sourceName( 52 ) );
+	}
+
+	private static Model createTrack( final double offset )
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		Spot previous = null;
+		for ( int t = 0; t < 3; t++ )
+		{
+			final Spot spot = graph.addVertex().init( t, new double[] { 10 * t + offset, 0, 0 }, 1 );
+			if ( previous != null )
+				graph.addEdge( previous, spot ).init();
+			previous = spot;
+		}
+		return model;
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Model;
+
+public class MergeProgressTest
+{
+	@Test
+	public void testPhasesAccumulate()
+	{
+		final MergeProgress progress = new MergeProgress();
+		progress.startPhase( "a" );
+		progress.addCount( 2 );
+		progress.startPhase( "b" );
+		progress.addCount( 5 );
+		progress.startPhase( "a" );
+		progress.addCount( 3 );
+		progress.finish();
+		assertEquals( 5, progress.getCount( "a" ) );
+		assertEquals( 5, progress.getCount( "b" ) );
+		assertEquals( 0, progress.getCount( "c" ) );
+		final String summary = progress.getSummary();
+		assertTrue( summary, summary.startsWith( "{\"phases\":[{\"name\":\"a\",\"count\":5," ) );
+		assertTrue( summary, summary.endsWith( "\"canceled\":false}" ) );
+	}
+
+	@Test
+	public void testMergeReportsPhases()
+	{
+		final Model mA = new Model();
+		final Model mB = new Model();
+		for ( int t = 0; t < 3; t++ )
+		{
+			mA.getGraph().addVertex().init( t, new double[] { 0, 0, 0 }, 1 );
+			mB.getGraph().addVertex().init( t, new double[] { 0.1, 0, 0 }, 1 );
+		}
+		final MergeProgress progress = new MergeProgress();
+		MergeModels.merge( mA, mB, new MergeDatasets.OutputDataSet( new Model() ), 0, 2, new MergeSettings( 1000, 1, 2 ).progress( progress ) );
+		assertEquals( 6, progress.getCount( MergeProgress.INTERPOLATION ) );
+		assertEquals( 3, progress.getCount( MergeProgress.PLACE_SPOTS_B ) );
+		assertEquals( 6, progress.getCount( MergeProgress.PRUNING ) );
+	}
+
+	@Test
+	public void testCancel()
+	{
+		final MergeProgress progress = new MergeProgress();
+		progress.cancel( "test" );
+		try
+		{
+			MergeModels.merge( new Model(), new Model(), new MergeDatasets.OutputDataSet( new Model() ), 0, 0, new MergeSettings( 1000, 1, 2 ).progress( progress ) );
+			fail();
+		}
+		catch ( final CancellationException e )
+		{
+			assertEquals( "test", e.getMessage() );
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mastodon.collection.RefMaps;
+import org.mastodon.collection.RefRefMap;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.MergeTags.TagSetStructureMaps;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+public class MergeTagsTest
+{
+	@Test
+	public void testTransferTags()
+	{
+		// source model with spots tagged x, y, and untagged
+		final Model source = new Model();
+		final ModelGraph sourceGraph = source.getGraph();
+		final Spot s0 = sourceGraph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		final Spot s1 = sourceGraph.addVertex().init( 0, new double[] { 1, 0, 0 }, 1 );
+		final Spot s2 = sourceGraph.addVertex().init( 0, new double[] { 2, 0, 0 }, 1 );
+		final TagSetStructure sourceTss = new TagSetStructure();
+		final TagSet sourceTagSet = sourceTss.createTagSet( "ts" );
+		sourceTagSet.createTag( "x", 0xffff0000 );
+		sourceTagSet.createTag( "y", 0xff00ff00 );
+		source.getTagSetModel().setTagSetStructure( sourceTss );
+		final TagSet ts = source.getTagSetModel().getTagSetStructure().getTagSets().get( 0 );
+		source.getTagSetModel().getVertexTags().set( s0, ts.getTags().get( 0 ) );
+		source.getTagSetModel().getVertexTags().set( s1, ts.getTags().get( 1 ) );
+
+		// destination model, d1 already has merged tag x
+		final Model dest = new Model();
+		final ModelGraph destGraph = dest.getGraph();
+		final Spot d0 = destGraph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		final Spot d1 = destGraph.addVertex().init( 0, new double[] { 1, 0, 0 }, 1 );
+		final Spot d2 = destGraph.addVertex().init( 0, new double[] { 2, 0, 0 }, 1 );
+		final TagSetStructure destTss = new TagSetStructure();
+		final TagSet conflictTagSet = destTss.createTagSet( "conflict" );
+		final Tag conflict = conflictTagSet.createTag( "conflict", 0xffff0000 );
+		final TagSetStructure tss = source.getTagSetModel().getTagSetStructure();
+		final TagSetStructureMaps copyMaps = MergeTags.addTagSetStructureCopy( destTss, tss, "((A)) " );
+		final TagSetStructureMaps mergeMaps = MergeTags.mergeTagSetStructure( destTss, tss );
+		dest.getTagSetModel().setTagSetStructure( destTss );
+		final ObjTags< Spot > destTags = dest.getTagSetModel().getVertexTags();
+		destTags.set( d1, mergeMaps.tagMap.get( ts.getTags().get( 0 ) ) );
+
+		final RefRefMap< Spot, Spot > map = RefMaps.createRefRefMap( sourceGraph.vertices(), destGraph.vertices() );
+		map.put( s0, d0 );
+		map.put( s1, d1 );
+		map.put( s2, d2 );
+		MergeTags.transferTags( source.getTagSetModel().getVertexTags(), tss, map, destTags, copyMaps, mergeMaps, conflict );
+
+		final TagSet mergedTagSet = mergeMaps.tagSetMap.get( ts );
+		final TagSet copiedTagSet = copyMaps.tagSetMap.get( ts );
+		assertEquals( "x", destTags.tags( mergedTagSet ).get( d0 ).label() );
+		assertEquals( "x", destTags.tags( copiedTagSet ).get( d0 ).label() );
+		assertEquals( "y", destTags.tags( copiedTagSet ).get( d1 ).label() );
+		assertEquals( "x", destTags.tags( mergedTagSet ).get( d1 ).label() );
+		assertEquals( conflict, destTags.tags( conflictTagSet ).get( d1 ) );
+		assertEquals( null, destTags.tags( mergedTagSet ).get( d2 ) );
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.BiFunction;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class PoolIndexMapTest
+{
+	@Test
+	public void testDense()
+	{
+		testMap( ( source, dest ) -> PoolIndexMap.dense( source.vertices().getRefPool(), dest.vertices().getRefPool(), 1 ) );
+	}
+
+	@Test
+	public void testSparse()
+	{
+		testMap( ( source, dest ) -> PoolIndexMap.sparse( source.vertices().getRefPool(), dest.vertices().getRefPool() ) );
+	}
+
+	@Test
+	public void testAutomatic()
+	{
+		testMap( ( source, dest ) -> PoolIndexMap.automatic( source.vertices().getRefPool(), dest.vertices().getRefPool(), 1 ) );
+	}
+
+	@Test
+	public void testAutomaticFallsBackToSparse()
+	{
+		final ModelGraph source = new ModelGraph();
+		final ModelGraph dest = new ModelGraph();
+		final PoolIndexMap< Spot, Spot > map = PoolIndexMap.automatic( source.vertices().getRefPool(), dest.vertices().getRefPool(), 1 );
+		for ( int i = 0; i < 1000; i++ )
+		{
+			final Spot s = source.addVertex().init( 0, new double[] { i, 0, 0 }, 1 );
+			if ( i % 100 == 0 )
+				map.put( s, dest.addVertex().init( 0, new double[] { 2 * i, 0, 0 }, 1 ) );
+		}
+		assertTrue( map.isSparse() );
+		assertEquals( 10, map.size() );
+		final Spot ref = dest.vertexRef();
+		for ( final Spot s : source.vertices() )
+		{
+			final double x = s.getDoublePosition( 0 );
+			if ( x % 100 == 0 )
+				assertEquals( 2 * x, map.get( s, ref ).getDoublePosition( 0 ), 0 );
+			else
+				assertFalse( map.containsKey( s ) );
+		}
+	}
+
+	private static void testMap( final BiFunction< ModelGraph, ModelGraph, PoolIndexMap< Spot, Spot > > factory )
+	{
+		final ModelGraph source = new ModelGraph();
+		final ModelGraph dest = new ModelGraph();
+		final PoolIndexMap< Spot, Spot > map = factory.apply( source, dest );
+		final Spot unmapped = source.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		for ( int i = 0; i < 100; i++ )
+		{
+			final Spot s = source.addVertex().init( 0, new double[] { i, 0, 0 }, 1 );
+			final Spot d = dest.addVertex().init( 0, new double[] { 2 * i, 0, 0 }, 1 );
+			map.put( s, d );
+		}
+		assertEquals( 100, map.size() );
+		assertFalse( map.containsKey( unmapped ) );
+		assertNull( map.get( unmapped, dest.vertexRef() ) );
+		final Spot ref = dest.vertexRef();
+		for ( final Spot s : source.vertices() )
+		{
+			if ( s.equals( unmapped ) )
+				continue;
+			assertTrue( map.containsKey( s ) );
+			assertEquals( 2 * s.getDoublePosition( 0 ), map.get( s, ref ).getDoublePosition( 0 ), 0 );
+		}
+	}
+}
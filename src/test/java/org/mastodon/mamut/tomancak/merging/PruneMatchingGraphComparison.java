@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import java.util.function.UnaryOperator;
+
+import org.mastodon.mamut.model.ModelGraph;
+
+/**
+ * Compares memory consumption and run time of
+ * {@link MatchCandidates#pruneMatchingGraph(MatchingGraph)} and
+ * {@link MatchCandidates#pruneMatchingGraphInPlace(MatchingGraph)} on a
+ * synthetic matching graph with 10 million vertices (5 million spots per
+ * model) and 3 outgoing edges per vertex.
+ * <p>
+ * Run with a large heap, e.g. {@code -Xmx16g}. The number of spots per model
+ * can be given as first argument.
+ */
+public class PruneMatchingGraphComparison
+{
+	public static void main( final String... args )
+	{
+		final int spotsPerModel = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 5_000_000;
+		final ModelGraph graphA = MatchCandidatesTest.createGraph( spotsPerModel );
+		final ModelGraph graphB = MatchCandidatesTest.createGraph( spotsPerModel );
+		final MatchCandidates candidates = new MatchCandidates( 1000, 1, 2 );
+		for ( int i = 0; i < 3; i++ )
+		{
+			measure( "copy    ", graphA, graphB, candidates::pruneMatchingGraph );
+			measure( "in place", graphA, graphB, candidates::pruneMatchingGraphInPlace );
+		}
+	}
+
+	private static void measure( final String title, final ModelGraph graphA, final ModelGraph graphB, final UnaryOperator< MatchingGraph > prune )
+	{
+		final MatchingGraph graph = MatchCandidatesTest.createRandomMatchingGraph( graphA, graphB );
+		final int vertices = graph.vertices().size();
+		final int edges = graph.edges().size();
+		final long memoryBefore = usedMemory();
+		final long start = System.nanoTime();
+		final MatchingGraph pruned = prune.apply( graph );
+		final long time = System.nanoTime() - start;
+		final long memoryAfter = usedMemory();
+		System.out.printf( "%s: %,d vertices, %,d edges -> %,d vertices, %,d edges, %,d ms, %,d MB additional memory%n",
+				title, vertices, edges, pruned.vertices().size(), pruned.edges().size(),
+				time / 1_000_000, ( memoryAfter - memoryBefore ) / ( 1024 * 1024 ) );
+		// NB: keep the input graph reachable until the memory is measured
+		if ( graph.vertices().isEmpty() )
+			System.out.println();
+	}
+
+	private static long usedMemory()
+	{
+		System.gc();
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.merging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+public class StreamingMergeModelsTest
+{
+	@Test
+	public void testSameResultAsMergeModels()
+	{
+		final Model expected = new Model();
+		MergeModels.merge( createModel( 1 ), createModel( 2 ), new MergeDatasets.OutputDataSet( expected ), 10, 2, 2 );
+		final List< String > expectedSpots = describeSpots( expected );
+		final List< String > expectedLinks = describeLinks( expected );
+
+		for ( final int windowSize : new int[] { 1, 3, 0 } )
+		{
+			final Model actual = new Model();
+			StreamingMergeModels.merge( createModel( 1 ), createModel( 2 ), new MergeDatasets.OutputDataSet( actual ), windowSize, 10, 2, 2, 2 );
+			assertEquals( "window size " + windowSize, expectedSpots, describeSpots( actual ) );
+			assertEquals( "window size " + windowSize, expectedLinks, describeLinks( actual ) );
+		}
+	}
+
+	/**
+	 * Sorted descriptions (timepoint, position, label and tags) of all spots.
+	 */
+	private static List< String > describeSpots( final Model model )
+	{
+		final List< String > list = new ArrayList<>();
+		for ( final Spot spot : model.getGraph().vertices() )
+			list.add( describe( model, spot ) );
+		Collections.sort( list );
+		return list;
+	}
+
+	/**
+	 * Sorted descriptions (source, target and tags) of all links.
+	 */
+	private static List< String > describeLinks( final Model model )
+	{
+		final List< String > list = new ArrayList<>();
+		final Spot ref = model.getGraph().vertexRef();
+		final ObjTags< Link > edgeTags = model.getTagSetModel().getEdgeTags();
+		for ( final Link link : model.getGraph().edges() )
+		{
+			final StringBuilder sb = new StringBuilder();
+			sb.append( describe( model, link.getSource( ref ) ) ).append( " -> " );
+			sb.append( describe( model, link.getTarget( ref ) ) );
+			for ( final TagSet tagSet : model.getTagSetModel().getTagSetStructure().getTagSets() )
+			{
+				final Tag tag = edgeTags.tags( tagSet ).get( link );
+				if ( tag != null )
+					sb.append( " [" ).append( tagSet.getName() ).append( ":" ).append( tag.label() ).append( "]" );
+			}
+			list.add( sb.toString() );
+		}
+		Collections.sort( list );
+		return list;
+	}
+
+	private static String describe( final Model model, final Spot spot )
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append( spot.getTimepoint() );
+		for ( int d = 0; d < 3; d++ )
+			sb.append( " " ).append( spot.getDoublePosition( d ) );
+		if ( MergingUtil.hasLabel( spot ) )
+			sb.append( " \"" ).append( spot.getLabel() ).append( "\"" );
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		for ( final TagSet tagSet : model.getTagSetModel().getTagSetStructure().getTagSets() )
+		{
+			final Tag tag = vertexTags.tags( tagSet ).get( spot );
+			if ( tag != null )
+				sb.append( " [" ).append( tagSet.getName() ).append( ":" ).append( tag.label() ).append( "]" );
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Tracks on a grid with random jitter, divisions, gaps (links that skip
+	 * a timepoint), labels and tags, such that all kinds of matches and
+	 * conflicts occur.
+	 */
+	private static Model createModel( final long seed )
+	{
+		final Random random = new Random( seed );
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final TagSetStructure tss = new TagSetStructure();
+		final TagSet cellType = tss.createTagSet( "cell type" );
+		cellType.createTag( "x", 0xffff0000 );
+		cellType.createTag( "y", 0xff00ff00 );
+		model.getTagSetModel().setTagSetStructure( tss );
+		final List< Tag > tags = model.getTagSetModel().getTagSetStructure().getTagSets().get( 0 ).getTags();
+		final ObjTags< Spot > vertexTags = model.getTagSetModel().getVertexTags();
+		final ObjTags< Link > edgeTags = model.getTagSetModel().getEdgeTags();
+
+		for ( int x = 0; x < 6; x++ )
+		{
+			for ( int y = 0; y < 6; y++ )
+			{
+				Spot previous = null;
+				for ( int t = 0; t < 7; t++ )
+				{
+					if ( previous != null && random.nextInt( 8 ) == 0 )
+						continue; // gap
+					final double[] pos = { 10 * x + t + random.nextDouble(), 10 * y + random.nextDouble(), 0 };
+					final Spot spot = graph.addVertex().init( t, pos, 1 );
+					if ( random.nextInt( 4 ) == 0 )
+						vertexTags.set( spot, tags.get( random.nextInt( 2 ) ) );
+					if ( random.nextInt( 6 ) == 0 )
+						spot.setLabel( "label " + random.nextInt( 2 ) );
+					if ( previous != null )
+					{
+						final Link link = graph.addEdge( previous, spot ).init();
+						if ( random.nextInt( 4 ) == 0 )
+							edgeTags.set( link, tags.get( random.nextInt( 2 ) ) );
+					}
+					if ( random.nextInt( 10 ) == 0 )
+					{
+						pos[ 1 ] += 1.5;
+						final Spot sibling = graph.addVertex().init( t, pos, 1 );
+						if ( previous != null )
+							graph.addEdge( previous, sibling ).init();
+					}
+					previous = spot;
+				}
+			}
+		}
+		return model;
+	}
+}
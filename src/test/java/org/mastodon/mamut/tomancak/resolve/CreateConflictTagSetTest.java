@@ -50,6 +50,32 @@ public class CreateConflictTagSetTest
 		assertEquals( 2, new TagHelper( model, "Conflicting Spots", "Conflict 0 (b)" ).getTaggedSpots().size() );
 	}
 
+	@Test
+	public void testRunMultiThreaded()
+	{
+		final Model model = new Model();
+		addShortTack( model, 1, 2, 3, 1.1, 2.1, 3.1 );
+		addShortTack( model, 5, 3, 4, 5.1, 3.1, 4.1 );
+		addShortTack( model, 5, 3.2, 4, 5.1, 3.2, 4.1 );
+		CreateConflictTagSet.run( model, "Conflicting Spots", 0.4, null, 4 );
+		assertEquals( 2, new TagHelper( model, "Conflicting Spots", "Conflict 0 (a)" ).getTaggedSpots().size() );
+		assertEquals( 2, new TagHelper( model, "Conflicting Spots", "Conflict 0 (b)" ).getTaggedSpots().size() );
+	}
+
+	@Test
+	public void testRunDenseCluster()
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		for ( int i = 0; i < 15; i++ )
+			graph.addVertex().init( 0, new double[] { 0.01 * i, 0, 0 }, 1 );
+		graph.addVertex().init( 0, new double[] { 10, 0, 0 }, 1 );
+		CreateConflictTagSet.run( model, "Conflicting Spots", 0.4, null, 1, 20 );
+		assertEquals( 1, new TagHelper( model, "Conflicting Spots", "Conflict 0 (a)" ).getTaggedSpots().size() );
+		assertEquals( 1, new TagHelper( model, "Conflicting Spots", "Conflict 0 (o)" ).getTaggedSpots().size() );
+		assertEquals( 15, model.getTagSetModel().getTagSetStructure().getTagSets().get( 0 ).getTags().size() );
+	}
+
 	private void addShortTack( final Model model, final double x1, final double y1, final double z1, final double x2, final double y2, final double z2 )
 	{
 		final ModelGraph graph = model.getGraph();
@@ -31,6 +31,9 @@ package org.mastodon.mamut.tomancak.resolve;
 import static org.junit.Assert.assertEquals;
 
 import org.junit.Test;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.merging.SpotCovarianceCache;
 
 public class HellingerDistanceTest
 {
@@ -45,6 +48,42 @@ public class HellingerDistanceTest
 		assertEquals( 0.32, HellingerDistance.hellingerDistance( mean, cov, mean, diagonal( 1, 5, 6 ) ), 0.01 );
 	}
 
+	@Test
+	public void testHellingerDistanceWithCache()
+	{
+		final ModelGraph graph = new ModelGraph();
+		final Spot a = graph.addVertex().init( 0, new double[] { 1, 2, 3 }, new double[][] { { 4, 1, 0 }, { 1, 5, 0.5 }, { 0, 0.5, 6 } } );
+		final Spot b = graph.addVertex().init( 0, new double[] { 2, 2, 4 }, diagonal( 1, 5, 6 ) );
+		final Spot c = graph.addVertex().init( 0, new double[] { 100, 100, 100 }, diagonal( 4, 5, 6 ) );
+		final SpotCovarianceCache cache = new SpotCovarianceCache( graph );
+		final int ia = a.getInternalPoolIndex();
+		final int ib = b.getInternalPoolIndex();
+		final int ic = c.getInternalPoolIndex();
+		assertEquals( 0, HellingerDistance.hellingerDistance( cache, ia, cache, ia ), 1e-10 );
+		assertEquals( HellingerDistance.hellingerDistance( a, b ), HellingerDistance.hellingerDistance( cache, ia, cache, ib ), 1e-10 );
+		assertEquals( HellingerDistance.hellingerDistance( b, a ), HellingerDistance.hellingerDistance( cache, ib, cache, ia ), 1e-10 );
+		assertEquals( 1, HellingerDistance.hellingerDistance( cache, ia, cache, ic ), 1e-10 );
+	}
+
+	@Test
+	public void testHellingerDistanceBatch()
+	{
+		final ModelGraph graph = new ModelGraph();
+		final Spot a = graph.addVertex().init( 0, new double[] { 1, 2, 3 }, new double[][] { { 4, 1, 0 }, { 1, 5, 0.5 }, { 0, 0.5, 6 } } );
+		final Spot b = graph.addVertex().init( 0, new double[] { 2, 2, 4 }, diagonal( 1, 5, 6 ) );
+		final Spot c = graph.addVertex().init( 0, new double[] { 100, 100, 100 }, diagonal( 4, 5, 6 ) );
+		final SpotCovarianceCache cache = new SpotCovarianceCache( graph );
+		final Spot[][] pairs = { { a, a }, { a, b }, { b, a }, { a, c }, { b, c } };
+		// NB: start with capacity 1 to test that the batch grows.
+		final HellingerDistanceBatch batch = new HellingerDistanceBatch( 1 );
+		for ( final Spot[] pair : pairs )
+			batch.add( cache, pair[ 0 ].getInternalPoolIndex(), cache, pair[ 1 ].getInternalPoolIndex() );
+		final double[] distances = batch.compute();
+		assertEquals( pairs.length, batch.size() );
+		for ( int i = 0; i < pairs.length; i++ )
+			assertEquals( HellingerDistance.hellingerDistance( pairs[ i ][ 0 ], pairs[ i ][ 1 ] ), distances[ i ], 1e-10 );
+	}
+
 	static double[][] diagonal( final double a, final double b, final double c )
 	{
 		return new double[][] { { a, 0, 0 }, { 0, b, 0 }, { 0, 0, c } };
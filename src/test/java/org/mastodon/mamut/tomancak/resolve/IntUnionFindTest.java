@@ -0,0 +1,58 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.resolve;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+import gnu.trove.list.array.TIntArrayList;
+
+public class IntUnionFindTest
+{
+	@Test
+	public void testUnion()
+	{
+		final IntUnionFind unionFind = new IntUnionFind();
+		unionFind.union( 5, 7 );
+		unionFind.union( 1, 2 );
+		unionFind.union( 7, 9 );
+		unionFind.union( 2, 9 );
+		unionFind.union( 10, 11 );
+		assertEquals( unionFind.find( 1 ), unionFind.find( 5 ) );
+		assertEquals( unionFind.find( 9 ), unionFind.find( 2 ) );
+		assertNotEquals( unionFind.find( 1 ), unionFind.find( 10 ) );
+		final TIntArrayList[] sets = unionFind.getSets();
+		assertEquals( 2, sets.length );
+		assertArrayEquals( new int[] { 5, 7, 1, 2, 9 }, sets[ 0 ].toArray() );
+		assertArrayEquals( new int[] { 10, 11 }, sets[ 1 ].toArray() );
+	}
+}
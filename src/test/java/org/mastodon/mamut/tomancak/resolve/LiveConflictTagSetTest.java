@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.resolve;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.util.TagHelper;
+
+public class LiveConflictTagSetTest
+{
+	@Test
+	public void testUpdates() throws Exception
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		graph.addVertex().init( 0, new double[] { 1, 2, 3 }, 1 );
+		graph.addVertex().init( 1, new double[] { 1, 2, 3 }, 1 );
+		final LiveConflictTagSet live = LiveConflictTagSet.start( model, "live conflicts", 0.4, 10 );
+		final TagHelper tagA = new TagHelper( model, "live conflicts", "Conflict (a)" );
+		final TagHelper tagB = new TagHelper( model, "live conflicts", "Conflict (b)" );
+		assertEquals( 0, tagA.getTaggedSpots().size() );
+
+		// add a spot that overlaps with the first spot
+		final Spot b = graph.addVertex().init( 0, new double[] { 1.1, 2, 3 }, 1 );
+		graph.notifyGraphChanged();
+		live.awaitUpdates();
+		assertEquals( 1, tagA.getTaggedSpots().size() );
+		assertEquals( 1, tagB.getTaggedSpots().size() );
+
+		// remove it again
+		graph.remove( b );
+		graph.notifyGraphChanged();
+		live.awaitUpdates();
+		assertEquals( 0, tagA.getTaggedSpots().size() );
+		assertEquals( 0, tagB.getTaggedSpots().size() );
+
+		// no updates after close
+		live.close();
+		graph.addVertex().init( 0, new double[] { 1.1, 2, 3 }, 1 );
+		graph.notifyGraphChanged();
+		assertEquals( 0, tagA.getTaggedSpots().size() );
+	}
+
+	@Test
+	public void testMoreSpotsThanTags() throws Exception
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		graph.addVertex().init( 0, new double[] { 1, 2, 3 }, 1 );
+		final LiveConflictTagSet live = LiveConflictTagSet.start( model, "live conflicts", 0.4, 20 );
+
+		// ten overlapping spots, each of them is a branch of its own
+		for ( int i = 1; i < 10; i++ )
+			graph.addVertex().init( 0, new double[] { 1 + 0.01 * i, 2, 3 }, 1 );
+		graph.notifyGraphChanged();
+		live.awaitUpdates();
+		assertEquals( 10, live.getTagSet().getTags().size() );
+		assertEquals( 1, new TagHelper( model, "live conflicts", "Conflict (h)" ).getTaggedSpots().size() );
+		assertEquals( 1, new TagHelper( model, "live conflicts", "Conflict (j)" ).getTaggedSpots().size() );
+		live.close();
+	}
+
+	@Test( timeout = 10000 )
+	public void testNotifyWhileHoldingReadLock() throws Exception
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		graph.addVertex().init( 0, new double[] { 1, 2, 3 }, 1 );
+		final LiveConflictTagSet live = LiveConflictTagSet.start( model, "live conflicts", 0.4, 10 );
+		final TagHelper tagA = new TagHelper( model, "live conflicts", "Conflict (a)" );
+
+		graph.addVertex().init( 0, new double[] { 1.1, 2, 3 }, 1 );
+		graph.getLock().readLock().lock();
+		try
+		{
+			graph.notifyGraphChanged();
+		}
+		finally
+		{
+			graph.getLock().readLock().unlock();
+		}
+		live.awaitUpdates();
+		assertEquals( 1, tagA.getTaggedSpots().size() );
+		live.close();
+	}
+}
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.sort_tree;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class DivisionDirectionIndexTest
+{
+	@Test
+	public void testGet()
+	{
+		ModelGraph graph = new ModelGraph();
+		Spot spot = graph.addVertex().init( 0, array( 2, 2, 2 ), 0.5 );
+		Spot a = graph.addVertex().init( 1, array( 1, 2, 2 ), 0.5 );
+		Spot b = graph.addVertex().init( 1, array( 3, 4, 2 ), 0.5 );
+		graph.addEdge( spot, a ).init();
+		graph.addEdge( spot, b ).init();
+		DivisionDirectionIndex index = new DivisionDirectionIndex( graph );
+		assertArrayEquals( SortTreeUtils.directionOfCellDivision( graph, spot ), index.get( spot ), 0.0 );
+		assertArrayEquals( array( 0, 0, 0 ), index.get( a ), 0.0 );
+	}
+
+	@Test
+	public void testInvalidatedByGraphChange()
+	{
+		ModelGraph graph = new ModelGraph();
+		Spot spot = graph.addVertex().init( 0, array( 2, 2, 2 ), 0.5 );
+		Spot a = graph.addVertex().init( 1, array( 1, 2, 2 ), 0.5 );
+		Spot b = graph.addVertex().init( 1, array( 3, 2, 2 ), 0.5 );
+		graph.addEdge( spot, a ).init();
+		Link link = graph.addEdge( spot, b ).init();
+		DivisionDirectionIndex index = DivisionDirectionIndex.start( graph );
+		try
+		{
+			assertArrayEquals( array( 2, 0, 0 ), index.get( spot ), 0.0 );
+			graph.remove( link );
+			assertArrayEquals( array( 0, 0, 0 ), index.get( spot ), 0.0 );
+			graph.addEdge( spot, b ).init();
+			assertArrayEquals( array( 2, 0, 0 ), index.get( spot ), 0.0 );
+		}
+		finally
+		{
+			index.close();
+		}
+	}
+
+	private static double[] array( double... values )
+	{
+		return values;
+	}
+}
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.spots;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.scijava.Cancelable;
+
+/**
+ * Tests {@link InterpolateMissingSpots}.
+ */
+public class InterpolateMissingSpotsTest
+{
+	@Test
+	public void testInterpolate()
+	{
+		final Model model = createModelWithGaps();
+		InterpolateMissingSpots.interpolate( model );
+		assertEquals( 10, model.getGraph().vertices().size() );
+		assertEquals( 8, model.getGraph().edges().size() );
+		final Spot spot = findSpot( model, 1 );
+		assertArrayEquals( new double[] { 2, 4, 6 }, spot.positionAsDoubleArray(), 1e-10 );
+	}
+
+	@Test
+	public void testInterpolateMultiThreaded()
+	{
+		final Model expected = createModelWithGaps();
+		InterpolateMissingSpots.interpolate( expected );
+		final Model actual = createModelWithGaps();
+		InterpolateMissingSpots.interpolate( actual, 4 );
+		assertEquals( expected.getGraph().vertices().size(), actual.getGraph().vertices().size() );
+		assertEquals( expected.getGraph().edges().size(), actual.getGraph().edges().size() );
+		final double[][] covExpected = new double[ 3 ][ 3 ];
+		final double[][] covActual = new double[ 3 ][ 3 ];
+		for ( final Spot e : expected.getGraph().vertices() )
+		{
+			final Spot a = actual.getGraph().vertices().getRefPool().getObject( e.getInternalPoolIndex(), actual.getGraph().vertexRef() );
+			assertEquals( e.getTimepoint(), a.getTimepoint() );
+			assertArrayEquals( e.positionAsDoubleArray(), a.positionAsDoubleArray(), 0 );
+			e.getCovariance( covExpected );
+			a.getCovariance( covActual );
+			for ( int r = 0; r < 3; r++ )
+				assertArrayEquals( covExpected[ r ], covActual[ r ], 0 );
+			assertEquals( e.incomingEdges().size(), a.incomingEdges().size() );
+			assertEquals( e.outgoingEdges().size(), a.outgoingEdges().size() );
+		}
+		// the spatio-temporal index must contain the new spots
+		assertEquals( 2, actual.getSpatioTemporalIndex().getSpatialIndex( 1 ).size() );
+	}
+
+	@Test
+	public void testInterpolateMultiThreadedDoesNotCopyLinkTags()
+	{
+		final Model model = createModelWithGaps();
+		final TagSetStructure tss = new TagSetStructure();
+		tss.createTagSet( "ts" ).createTag( "x", 0xffff0000 );
+		model.getTagSetModel().setTagSetStructure( tss );
+		final TagSet tagSet = model.getTagSetModel().getTagSetStructure().getTagSets().get( 0 );
+		final ObjTags< Link > edgeTags = model.getTagSetModel().getEdgeTags();
+		for ( final Link link : model.getGraph().edges() )
+			edgeTags.set( link, tagSet.getTags().get( 0 ) );
+
+		InterpolateMissingSpots.interpolate( model, 2 );
+
+		// only the link without gap (a3 -> a4) is still tagged
+		assertEquals( 8, model.getGraph().edges().size() );
+		assertEquals( 1, edgeTags.tags( tagSet ).getTaggedWith( tagSet.getTags().get( 0 ) ).size() );
+	}
+
+	@Test
+	public void testInterpolateCanceled()
+	{
+		final Model model = createModelWithGaps();
+		final Cancelable canceled = new Cancelable()
+		{
+			@Override
+			public boolean isCanceled()
+			{
+				return true;
+			}
+
+			@Override
+			public void cancel( final String reason )
+			{}
+
+			@Override
+			public String getCancelReason()
+			{
+				return "test";
+			}
+		};
+		try
+		{
+			InterpolateMissingSpots.interpolate( model, 2, InterpolateMissingSpots.CovarianceInterpolation.RADIUS_RATIO, canceled );
+			fail( "expected CancellationException" );
+		}
+		catch ( final CancellationException e )
+		{
+			// the model is not modified
+			assertEquals( 5, model.getGraph().vertices().size() );
+			assertEquals( 3, model.getGraph().edges().size() );
+		}
+	}
+
+	/**
+	 * Two tracks: one with a gap of two timepoints, and one with a gap of
+	 * three timepoints and a radius that changes.
+	 */
+	private static Model createModelWithGaps()
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final Spot a0 = graph.addVertex().init( 0, new double[] { 1, 2, 3 }, 1 );
+		final Spot a3 = graph.addVertex().init( 3, new double[] { 4, 8, 12 }, 1 );
+		final Spot a4 = graph.addVertex().init( 4, new double[] { 5, 10, 15 }, 1 );
+		graph.addEdge( a0, a3 ).init();
+		graph.addEdge( a3, a4 ).init();
+		final Spot b0 = graph.addVertex().init( 0, new double[] { 10, 10, 10 }, 1 );
+		final Spot b4 = graph.addVertex().init( 4, new double[] { 20, 10, 10 }, 3 );
+		graph.addEdge( b0, b4 ).init();
+		return model;
+	}
+
+	/**
+	 * Returns the spot of track "a" at the given timepoint.
+	 */
+	private static Spot findSpot( final Model model, final int timepoint )
+	{
+		for ( final Spot spot : model.getSpatioTemporalIndex().getSpatialIndex( timepoint ) )
+			if ( spot.getDoublePosition( 0 ) < 8 )
+				return spot;
+		throw new AssertionError( "spot not found" );
+	}
+}
@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * mastodon-tomancak
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.tomancak.spots;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link LogEuclideanInterpolator}.
+ */
+public class LogEuclideanInterpolatorTest
+{
+	@Test
+	public void testEigSymmetric3x3()
+	{
+		final double[] matrix = { 4, 1, 0.5, 1, 5, 0.3, 0.5, 0.3, 6 };
+		final double[] a = matrix.clone();
+		final double[] d = new double[ 3 ];
+		final double[] v = new double[ 9 ];
+		LogEuclideanInterpolator.eigSymmetric3x3( a, d, v );
+		for ( int k = 0; k < 3; k++ )
+		{
+			// matrix * v_k == d_k * v_k
+			for ( int r = 0; r < 3; r++ )
+			{
+				final double mv = matrix[ 3 * r ] * v[ k ] + matrix[ 3 * r + 1 ] * v[ 3 + k ] + matrix[ 3 * r + 2 ] * v[ 6 + k ];
+				assertEquals( d[ k ] * v[ 3 * r + k ], mv, 1e-10 );
+			}
+		}
+	}
+
+	@Test
+	public void testInterpolate()
+	{
+		final double[][] cov0 = { { 4, 1, 0 }, { 1, 5, 0.5 }, { 0, 0.5, 6 } };
+		final double[][] cov1 = { { 1, 0, 0 }, { 0, 9, 0 }, { 0, 0, 2 } };
+		final LogEuclideanInterpolator interpolator = new LogEuclideanInterpolator();
+		interpolator.setEndpoints( cov0, cov1 );
+		final double[][] cov = new double[ 3 ][ 3 ];
+		interpolator.interpolate( 0, cov );
+		assertMatrixEquals( cov0, cov );
+		interpolator.interpolate( 1, cov );
+		assertMatrixEquals( cov1, cov );
+		// for diagonal matrices, log-euclidean interpolation is the geometric mean of the entries
+		interpolator.setEndpoints( new double[][] { { 1, 0, 0 }, { 0, 4, 0 }, { 0, 0, 9 } }, new double[][] { { 4, 0, 0 }, { 0, 1, 0 }, { 0, 0, 9 } } );
+		interpolator.interpolate( 0.5, cov );
+		assertMatrixEquals( new double[][] { { 2, 0, 0 }, { 0, 2, 0 }, { 0, 0, 9 } }, cov );
+	}
+
+	private static void assertMatrixEquals( final double[][] expected, final double[][] actual )
+	{
+		for ( int r = 0; r < 3; r++ )
+			assertArrayEquals( expected[ r ], actual[ r ], 1e-10 );
+	}
+}
@@ -31,11 +31,13 @@ package org.mastodon.mamut.tomancak.trackmatching;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import net.imglib2.realtransform.AffineTransform3D;
 
@@ -43,6 +45,7 @@ import org.junit.Test;
 import org.mastodon.collection.RefDoubleMap;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.sort_tree.DivisionDirectionIndex;
 import org.mastodon.mamut.tomancak.trackmatching.spatial_registration.SpatialRegistrationMethod;
 
 public class SpatialTrackMatchingAlgorithmTest
@@ -87,6 +90,41 @@ public class SpatialTrackMatchingAlgorithmTest
 		assertTransformEquals( embryoB.transform, result.spatialRegistration.getTransformationAtoB( 0, 2 ) );
 	}
 
+	@Test
+	public void testProgress()
+	{
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		List< Double > fractions = Collections.synchronizedList( new ArrayList<>() );
+		RegisteredGraphs result = SpatialTrackMatchingAlgorithm.run( embryoA.model, 0, embryoB.model, 0,
+				SpatialRegistrationMethod.DYNAMIC_ROOTS,
+				new DivisionDirectionIndex( embryoA.graph ), new DivisionDirectionIndex( embryoB.graph ),
+				new TrackMatchingProgress( fractions::add ) );
+		assertEquals( expected, asStrings( result.mapAB ) );
+		assertEquals( 1.0, fractions.get( fractions.size() - 1 ), 0.0 );
+	}
+
+	@Test
+	public void testCanceled()
+	{
+		EmbryoA embryoA = new EmbryoA();
+		EmbryoB embryoB = new EmbryoB();
+		TrackMatchingProgress progress = new TrackMatchingProgress();
+		progress.cancel( "test" );
+		try
+		{
+			SpatialTrackMatchingAlgorithm.run( embryoA.model, 0, embryoB.model, 0,
+					SpatialRegistrationMethod.DYNAMIC_ROOTS,
+					new DivisionDirectionIndex( embryoA.graph ), new DivisionDirectionIndex( embryoB.graph ),
+					progress );
+			fail( "expected CancellationException" );
+		}
+		catch ( CancellationException e )
+		{
+			assertEquals( "test", e.getMessage() );
+		}
+	}
+
 	private void assertTransformEquals( AffineTransform3D expected, AffineTransform3D actual )
 	{
 		double[] expectedValues = new double[ 12 ];
@@ -30,15 +30,23 @@ package org.mastodon.mamut.tomancak.trackmatching;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Before;
 import org.junit.Test;
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.ProjectModelTestUtils;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
@@ -46,6 +54,7 @@ import org.mastodon.mamut.tomancak.trackmatching.spatial_registration.SpatialReg
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.util.TagHelper;
 import org.mastodon.util.TagSetUtils;
+import org.scijava.Context;
 
 public class SpatialTrackMatchingUtilsTest
 {
@@ -116,6 +125,32 @@ public class SpatialTrackMatchingUtilsTest
 		assertEquals( set( "B~2 -> B2" ), getTaggedEdges( barB ) );
 	}
 
+	@Test
+	public void testCopyTagSetAfterModification() throws IOException
+	{
+		try (Context context = new Context())
+		{
+			ProjectModel projectA = wrapAsProjectModel( embryoA.model, context );
+			ProjectModel projectB = wrapAsProjectModel( embryoB.model, context );
+			projectA.getBranchGraphSync().sync();
+			projectB.getBranchGraphSync().sync();
+			// setup: tag set for embryoA
+			TagSetStructure.TagSet tagSet = TagSetUtils.addNewTagSetToModel( embryoA.model, "test", Arrays.asList(
+					Pair.of( "foo", 0xffff0000 )
+			) );
+			new TagHelper( embryoA.model, tagSet, "foo" ).tagBranch( embryoA.a1 );
+			// modify embryoB after the last sync: extend the branch A1
+			EmbryoA.addSpot( embryoB.graph, "A1~1", embryoB.a1, 2, 0, 1 );
+			// process
+			SpatialTrackMatchingUtils.syncBranchGraphs( projectA, projectB );
+			SpatialTrackMatchingUtils.copyTagSetToSecondModel( registration, tagSet, "new-tag-set" );
+			// test: the new spot is tagged, too
+			TagHelper fooB = new TagHelper( embryoB.model, "new-tag-set", "foo" );
+			assertEquals( set( "A1", "A1~1" ), getTaggedSpots( fooB ) );
+			assertEquals( set( "A1 -> A1~1" ), getTaggedEdges( fooB ) );
+		}
+	}
+
 	@Test
 	public void testCopyLabels()
 	{
@@ -137,6 +172,14 @@ public class SpatialTrackMatchingUtilsTest
 		assertEquals( "C2_test", embryoB.c2.getLabel() );
 	}
 
+	private static ProjectModel wrapAsProjectModel( Model model, Context context ) throws IOException
+	{
+		Img< FloatType > img = ArrayImgs.floats( 1, 1, 1 );
+		File mastodonFile = File.createTempFile( "test", ".mastodon" );
+		mastodonFile.deleteOnExit();
+		return ProjectModelTestUtils.wrapAsAppModel( img, model, context, mastodonFile );
+	}
+
 	private static < T > Set< T > set( T... values )
 	{
 		return new HashSet<>( Arrays.asList( values ) );
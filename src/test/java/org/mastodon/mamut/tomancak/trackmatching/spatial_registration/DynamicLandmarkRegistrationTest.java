@@ -35,6 +35,8 @@ import java.awt.Color;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import net.imglib2.realtransform.AffineTransform3D;
 
@@ -45,6 +47,8 @@ import org.mastodon.collection.RefRefMap;
 import org.mastodon.collection.ref.RefRefHashMap;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.tomancak.trackmatching.BranchGraphUtils;
+import org.mastodon.mamut.tomancak.trackmatching.RefMapUtils;
 import org.mastodon.mamut.tomancak.trackmatching.SpatialTrackMatchingAlgorithm;
 import org.mastodon.mamut.tomancak.trackmatching.RegisteredGraphs;
 import org.mastodon.mamut.tomancak.sort_tree.SortTreeUtils;
@@ -110,6 +114,20 @@ public class DynamicLandmarkRegistrationTest
 		assertArrayEquals( expected.getRowPackedCopy(), transformation.getRowPackedCopy(), 0.1 );
 	}
 
+	@Test
+	public void testTransformCache()
+	{
+		DynamicLandmarkRegistration spatialRegistration = DynamicLandmarkRegistration.forRoots( embryo1.model, embryo2.model, pairedRoots );
+		AffineTransform3D first = spatialRegistration.getTransformationAtoB( 0, 2 );
+		AffineTransform3D second = spatialRegistration.getTransformationAtoB( 0, 2 );
+		AffineTransform3D clamped = spatialRegistration.getTransformationAtoB( -5, 2 );
+		assertArrayEquals( first.getRowPackedCopy(), second.getRowPackedCopy(), 0 );
+		assertArrayEquals( first.getRowPackedCopy(), clamped.getRowPackedCopy(), 0 );
+		assertEquals( 1, spatialRegistration.getNumberOfCachedTransforms() );
+		spatialRegistration.getTransformationAtoB( 2, 2 );
+		assertEquals( 2, spatialRegistration.getNumberOfCachedTransforms() );
+	}
+
 	private static void addTags( ExampleEmbryo embryo )
 	{
 		List< Pair< String, Integer > > colors = Arrays.asList(
@@ -142,6 +160,75 @@ public class DynamicLandmarkRegistrationTest
 		assertEquals( embryo2.c22, result.mapAB.get( embryo1.c22 ) );
 	}
 
+	/**
+	 * Regression test: the iterative, parallel matching of the
+	 * {@link SpatialTrackMatchingAlgorithm} gives the same mapping and angles
+	 * as the recursive implementation it replaced, see
+	 * {@link #matchTreeRecursively}.
+	 */
+	@Test
+	public void testMatchingEqualsRecursiveReference()
+	{
+		List< SpatialRegistration > registrations = Arrays.asList(
+				DynamicLandmarkRegistration.forRoots( embryo1.model, embryo2.model, pairedRoots ),
+				FixedSpatialRegistration.forDividingRoots( embryo1.model, embryo2.model, pairedRoots ) );
+		for ( SpatialRegistration registration : registrations )
+		{
+			RegisteredGraphs result = SpatialTrackMatchingAlgorithm.run( embryo1.model, embryo2.model, pairedRoots, registration );
+			Map< String, String > expectedMapping = new TreeMap<>();
+			Map< String, Double > expectedAngles = new TreeMap<>();
+			RefMapUtils.forEach( pairedRoots, ( rootA, rootB ) -> matchTreeRecursively( registration, rootA, rootB, expectedMapping, expectedAngles ) );
+
+			Map< String, String > actualMapping = new TreeMap<>();
+			RefMapUtils.forEach( result.mapAB, ( spotA, spotB ) -> actualMapping.put( spotA.getLabel(), spotB.getLabel() ) );
+			Map< String, Double > actualAngles = new TreeMap<>();
+			result.anglesA.forEachEntry( ( spotA, angle ) -> {
+				actualAngles.put( spotA.getLabel(), angle );
+				return true;
+			} );
+			assertEquals( expectedMapping, actualMapping );
+			assertEquals( expectedAngles.keySet(), actualAngles.keySet() );
+			for ( String label : expectedAngles.keySet() )
+				assertEquals( expectedAngles.get( label ), actualAngles.get( label ), 1e-10 );
+		}
+	}
+
+	/**
+	 * The recursive implementation of the tree matching, as it was before the
+	 * {@link SpatialTrackMatchingAlgorithm} matched the trees iteratively and
+	 * in parallel.
+	 */
+	private static void matchTreeRecursively( SpatialRegistration registration, Spot rootA, Spot rootB,
+			Map< String, String > mapping, Map< String, Double > angles )
+	{
+		mapping.put( rootA.getLabel(), rootB.getLabel() );
+		ModelGraph graphA = rootA.getModelGraph();
+		ModelGraph graphB = rootB.getModelGraph();
+		Spot dividingA = BranchGraphUtils.getBranchEnd( rootA, graphA.vertexRef() );
+		Spot dividingB = BranchGraphUtils.getBranchEnd( rootB, graphB.vertexRef() );
+		boolean bothDivide = dividingA.outgoingEdges().size() == 2 &&
+				dividingB.outgoingEdges().size() == 2;
+		if ( !bothDivide )
+			return;
+		double[] directionA = SortTreeUtils.directionOfCellDivision( graphA, dividingA );
+		double[] directionB = SortTreeUtils.directionOfCellDivision( graphB, dividingB );
+		int offset = SortTreeUtils.DIVISION_DIRECTION_TIME_OFFSET;
+		AffineTransform3D transformAB = new AffineTransform3D();
+		transformAB.set( registration.getTransformationAtoB( dividingA.getTimepoint() + offset, dividingB.getTimepoint() + offset ) );
+		transformAB.setTranslation( 0, 0, 0 );
+		transformAB.apply( directionA, directionA );
+		double angle = SortTreeUtils.angleInDegree( directionA, directionB );
+		angles.put( rootA.getLabel(), angle );
+		boolean flip = angle > 90;
+		for ( int indexA = 0; indexA < 2; indexA++ )
+		{
+			int indexB = flip ? 1 - indexA : indexA;
+			Spot childA = dividingA.outgoingEdges().get( indexA ).getTarget();
+			Spot childB = dividingB.outgoingEdges().get( indexB ).getTarget();
+			matchTreeRecursively( registration, childA, childB, mapping, angles );
+		}
+	}
+
 	static void rotateGraphPerTimepoint( ModelGraph graph, double rotationPerTimepoint )
 	{
 		int numberOfTimepoints = SortTreeUtils.getNumberOfTimePoints( graph );